@@ -0,0 +1,445 @@
+package client;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.function.Consumer;
+
+/**
+ * Programmatic client for one principal. Every command returns a future of the server's response text.
+ *
+ * <p>A fixed pool of authenticated connections is kept open and reused. Concurrent calls go into one
+ * queue, and whichever connection is free takes the next call, so a slow response delays only its own
+ * connection. A connection the server has closed (idle timeout, restart) is reopened, and a call that never
+ * reached the server is retried once on the new connection. The server's per-user rate budgets and session
+ * share still apply, so the pool should stay within {@code hospital.maxSharePercent} of its connections.
+ */
+public class AsyncClient implements AutoCloseable {
+    private static final String END_OF_MESSAGE = "ENDOFMSG";
+    private static final String AWAITING_INFORMATION = "Write information";
+    private static final String TIMEOUT_MESSAGE = "Session timed out due to inactivity.";
+    private static final String BUSY_MESSAGE = "Server is busy, please try again later.";
+    private static final String OVER_SHARE_MESSAGE = "Too many open sessions for this user, retry after closing one.";
+    private static final String CONNECTION_LOST_NOTICE = "* connection lost, read your subscribed records again";
+    private static final long RECONNECT_DELAY_MILLIS = 1000;
+    private static final Request SHUTDOWN = new Request(null, null);
+
+    private final String host;
+    private final int port;
+    private final String username;
+    private final SSLSocketFactory socketFactory;
+    private final BlockingQueue<Request> requests = new LinkedBlockingQueue<>();
+    private final List<Thread> workers = new ArrayList<>();
+    private final SubscriptionConnection subscriptions = new SubscriptionConnection();
+    private volatile Consumer<String> pushListener = update -> { };
+    private volatile boolean closed;
+
+    public AsyncClient(String host, int port, String username, String password, int poolSize) throws IOException {
+        if (poolSize < 1) {
+            throw new IllegalArgumentException("Pool size must be at least 1");
+        }
+        SSLContext sslContext = Client.initializeSSLContext(username, password);
+        if (sslContext == null) {
+            throw new IOException("Cannot load the key store of " + username);
+        }
+        this.host = host;
+        this.port = port;
+        this.username = username;
+        this.socketFactory = sslContext.getSocketFactory();
+        for (int i = 0; i < poolSize; i++) {
+            Thread worker = new Thread(new PooledConnection(), "client-" + username + "-" + i);
+            worker.setDaemon(true);
+            workers.add(worker);
+            worker.start();
+        }
+    }
+
+    /**
+     * Sends one command line, e.g. "3 5", and completes with the response without its end marker.
+     */
+    public CompletableFuture<String> send(String command) {
+        return submit(new Request(command, null));
+    }
+
+    public CompletableFuture<String> listPatients() {
+        return send("1");
+    }
+
+    /**
+     * One page of the division listing, starting after the cursor (null for the first page).
+     */
+    public CompletableFuture<String> listDivision(String cursor) {
+        return send(cursor == null ? "2" : "2 " + cursor);
+    }
+
+    public CompletableFuture<String> read(String patientId) {
+        return send("3 " + patientId);
+    }
+
+    /**
+     * Adds an entry to the caller's record of the patient. Completes with the refusal if the server does not
+     * ask for the text, e.g. when no such record exists.
+     */
+    public CompletableFuture<String> write(String patientId, String information) {
+        return submit(new Request("4 " + patientId, information));
+    }
+
+    public CompletableFuture<String> create(String patientId, String nurseId) {
+        return send("5 " + patientId + " " + nurseId);
+    }
+
+    public CompletableFuture<String> delete(String patientId) {
+        return send("6 " + patientId);
+    }
+
+    public CompletableFuture<String> search(String words) {
+        return send("7 " + words);
+    }
+
+    /**
+     * Receives "patientId date:entry" for every entry pushed to a subscription, on a client thread.
+     * A line starting with "*" means updates may have been missed.
+     */
+    public void onPush(Consumer<String> listener) {
+        this.pushListener = listener;
+    }
+
+    /**
+     * Has new entries of the patient pushed to the {@link #onPush} listener as they are written.
+     */
+    public CompletableFuture<String> subscribe(String patientId) {
+        return closed ? closedFuture() : subscriptions.send(patientId, true);
+    }
+
+    public CompletableFuture<String> unsubscribe(String patientId) {
+        return closed ? closedFuture() : subscriptions.send(patientId, false);
+    }
+
+    private static CompletableFuture<String> closedFuture() {
+        return CompletableFuture.failedFuture(new IOException("Client is closed"));
+    }
+
+    private CompletableFuture<String> submit(Request request) {
+        if (closed) {
+            request.future.completeExceptionally(new IOException("Client is closed"));
+        } else {
+            requests.add(request);
+        }
+        return request.future;
+    }
+
+    /**
+     * Logs off every connection once the calls already queued have completed. If the calling thread is
+     * interrupted while waiting, the connections are told to stop instead and the interrupt status is kept.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        subscriptions.close();
+        for (int i = 0; i < workers.size(); i++) {
+            requests.add(SHUTDOWN);
+        }
+        try {
+            for (Thread worker : workers) {
+                worker.join();
+            }
+        } catch (InterruptedException e) {
+            for (Thread worker : workers) {
+                worker.interrupt();
+            }
+            Thread.currentThread().interrupt();
+        }
+        // Calls that raced with close
+        Request request;
+        while ((request = requests.poll()) != null) {
+            request.future.completeExceptionally(new IOException("Client is closed"));
+        }
+    }
+
+    private static class Request {
+        final String command;
+        final String information;
+        final CompletableFuture<String> future = new CompletableFuture<>();
+
+        Request(String command, String information) {
+            this.command = command;
+            this.information = information;
+        }
+    }
+
+    // Thrown when the server closed the connection before seeing the call, so it is safe to resend
+    private static class StaleConnectionException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        StaleConnectionException(String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * An authenticated connection, past compression negotiation and the greeting menu.
+     */
+    private class Connection {
+        final SSLSocket socket;
+        final ResponseReader in;
+        final PrintWriter out;
+
+        Connection() throws IOException {
+            socket = (SSLSocket) socketFactory.createSocket(host, port);
+            try {
+                socket.startHandshake();
+                in = new ResponseReader(new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8)));
+                in.setPushListener(update -> pushListener.accept(update));
+                out = new PrintWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8), true);
+                if (Client.REQUEST_COMPRESSION) {
+                    Client.negotiateCompression(in, out);
+                }
+                // Like the console client, the username line is answered with the menu
+                out.println(username);
+                String greeting = readResponse();
+                if (greeting == null || greeting.startsWith(BUSY_MESSAGE) || greeting.startsWith(OVER_SHARE_MESSAGE)) {
+                    throw new IOException(greeting == null ? "Connection closed by the server" : greeting);
+                }
+            } catch (IOException e) {
+                close(false);
+                throw e;
+            }
+        }
+
+        // null if the stream ended before any line of the response
+        String readResponse() throws IOException {
+            StringBuilder response = new StringBuilder();
+            String line;
+            boolean first = true;
+            while ((line = in.readLine()) != null && !line.equals(END_OF_MESSAGE)) {
+                if (!first) {
+                    response.append('\n');
+                }
+                response.append(line);
+                first = false;
+            }
+            if (line == null && first) {
+                return null;
+            }
+            return response.toString();
+        }
+
+        void close(boolean logOff) {
+            if (logOff && out != null) {
+                out.println("quit");
+            }
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // Already unusable
+            }
+        }
+    }
+
+    private class PooledConnection implements Runnable {
+        private Connection connection;
+
+        @Override
+        public void run() {
+            try {
+                while (true) {
+                    Request request = requests.take();
+                    if (request == SHUTDOWN) {
+                        break;
+                    }
+                    execute(request);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                disconnect(true);
+            }
+        }
+
+        private void execute(Request request) {
+            boolean reused = connection != null;
+            try {
+                request.future.complete(call(request));
+            } catch (StaleConnectionException e) {
+                disconnect(false);
+                if (!reused) {
+                    request.future.completeExceptionally(e);
+                    return;
+                }
+                try {
+                    request.future.complete(call(request));
+                } catch (IOException retryFailure) {
+                    disconnect(false);
+                    request.future.completeExceptionally(retryFailure);
+                }
+            } catch (IOException | RuntimeException e) {
+                disconnect(false);
+                request.future.completeExceptionally(e);
+            }
+        }
+
+        private String call(Request request) throws IOException {
+            if (connection == null) {
+                connection = new Connection();
+            }
+            String response = exchange(request.command, true);
+            if (request.information == null || !response.equals(AWAITING_INFORMATION)) {
+                return response;
+            }
+            return exchange(request.information, false);
+        }
+
+        private String exchange(String line, boolean resendable) throws IOException {
+            connection.out.println(line);
+            if (connection.out.checkError() && resendable) {
+                throw new StaleConnectionException("Connection closed by the server");
+            }
+            String response = connection.readResponse();
+            if (response == null) {
+                if (resendable) {
+                    throw new StaleConnectionException("Connection closed by the server");
+                }
+                throw new IOException("Connection closed before the response");
+            }
+            if (response.equals(TIMEOUT_MESSAGE)) {
+                throw new StaleConnectionException(TIMEOUT_MESSAGE);
+            }
+            return response;
+        }
+
+        private void disconnect(boolean logOff) {
+            if (connection != null) {
+                connection.close(logOff);
+                connection = null;
+            }
+        }
+    }
+
+    /**
+     * The connection holding the subscriptions. Unlike the pool, it is read all the time, so pushed entries
+     * reach the listener as soon as they arrive. Subscriptions are renewed after a reconnect.
+     */
+    private class SubscriptionConnection implements Runnable {
+        private final Set<String> patients = ConcurrentHashMap.newKeySet();
+        private final Queue<CompletableFuture<String>> pending = new ConcurrentLinkedQueue<>();
+        private Connection connection;
+        private Thread reader;
+
+        synchronized CompletableFuture<String> send(String patientId, boolean subscribe) {
+            CompletableFuture<String> future = new CompletableFuture<>();
+            try {
+                if (connection == null) {
+                    connect();
+                }
+                if (reader == null) {
+                    reader = new Thread(this, "client-" + username + "-subscriptions");
+                    reader.setDaemon(true);
+                    reader.start();
+                }
+                if (subscribe) {
+                    patients.add(patientId);
+                } else {
+                    patients.remove(patientId);
+                }
+                pending.add(future);
+                connection.out.println(subscribe ? "8 " + patientId : "8 " + patientId + " off");
+            } catch (IOException e) {
+                future.completeExceptionally(e);
+            }
+            return future;
+        }
+
+        @Override
+        public void run() {
+            while (!closed) {
+                Connection current = currentConnection();
+                try {
+                    if (current == null) {
+                        Thread.sleep(RECONNECT_DELAY_MILLIS);
+                        if (!reconnect()) {
+                            return;
+                        }
+                        continue;
+                    }
+                    String response;
+                    while ((response = current.readResponse()) != null) {
+                        CompletableFuture<String> future = pending.poll();
+                        if (future != null) {
+                            future.complete(response);
+                        }
+                    }
+                    throw new IOException("Connection closed by the server");
+                } catch (IOException e) {
+                    lost(current, e);
+                } catch (InterruptedException e) {
+                    break;
+                }
+            }
+            close();
+        }
+
+        private synchronized Connection currentConnection() {
+            return connection;
+        }
+
+        // false once there is nothing left to hold a connection for; the next send starts a new reader
+        private synchronized boolean reconnect() throws IOException {
+            if (connection != null) {
+                return true;
+            }
+            if (patients.isEmpty()) {
+                reader = null;
+                return false;
+            }
+            connect();
+            return true;
+        }
+
+        private void connect() throws IOException {
+            connection = new Connection();
+            for (String patient : patients) {
+                pending.add(new CompletableFuture<>());
+                connection.out.println("8 " + patient);
+            }
+        }
+
+        private synchronized void lost(Connection current, IOException e) {
+            if (current != null && connection == current) {
+                current.close(false);
+                connection = null;
+                CompletableFuture<String> future;
+                while ((future = pending.poll()) != null) {
+                    future.completeExceptionally(e);
+                }
+                if (!closed) {
+                    pushListener.accept(CONNECTION_LOST_NOTICE);
+                }
+            }
+        }
+
+        synchronized void close() {
+            if (connection != null) {
+                connection.close(true);
+                connection = null;
+            }
+            if (reader != null) {
+                reader.interrupt();
+            }
+        }
+    }
+}
@@ -2,8 +2,11 @@ package client;
 
 import javax.net.ssl.*;
 import java.io.*;
+import java.nio.charset.StandardCharsets;
 import java.security.KeyStore;
 import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * SSL Client that connects to a server, authenticates using certificates, and communicates securely.
@@ -18,6 +21,9 @@ public class Client {
     private static final String CLIENT_TRUSTSTORE = "clienttruststore";
     private static final String GOVERNMENT_TRUSTSTORE_PASSWORD = "govpass";
     private static final String CLIENT_TRUSTSTORE_PASSWORD = "clientpw";
+    private static final String AWAITING_INFORMATION = "Write information";
+    static final boolean REQUEST_COMPRESSION =
+            Boolean.parseBoolean(System.getProperty("hospital.compression", "true"));
 
     public static void main(String[] args) {
         // Validate and parse command-line arguments
@@ -50,10 +56,17 @@ public class Client {
             displaySessionInfo(session, sslSocket);
 
             // Setup I/O streams
-            try (PrintWriter out = new PrintWriter(sslSocket.getOutputStream(), true);
-                 BufferedReader in = new BufferedReader(new InputStreamReader(sslSocket.getInputStream()));
+            try (PrintWriter out = new PrintWriter(new OutputStreamWriter(sslSocket.getOutputStream(), StandardCharsets.UTF_8), true);
+                 BufferedReader serverReader = new BufferedReader(new InputStreamReader(sslSocket.getInputStream(), StandardCharsets.UTF_8));
                  BufferedReader consoleReader = new BufferedReader(new InputStreamReader(System.in))) {
 
+                ResponseReader in = new ResponseReader(serverReader);
+                // Entries pushed for subscribed patients arrive with the next response
+                in.setPushListener(update -> System.out.println("[new entry for patient " + update + "]"));
+                if (REQUEST_COMPRESSION && negotiateCompression(in, out)) {
+                    System.out.println("Response compression enabled.\n");
+                }
+
                 // Send username to the server
                 System.out.println("Sending username...\n");
                 out.println(credentials.getUsername());
@@ -141,7 +154,7 @@ public class Client {
      * @param password The password for the client's keystore.
      * @return The initialized SSLContext, or null if initialization fails.
      */
-    private static SSLContext initializeSSLContext(String username, String password) {
+    static SSLContext initializeSSLContext(String username, String password) {
         try {
             // Load KeyStore and TrustStore
             KeyStore keyStore = loadKeyStore(username, password);
@@ -265,20 +278,57 @@ public class Client {
         }
     }
 
+    /**
+     * Asks the server to compress large responses. Older servers answer with their menu, which is ignored.
+     *
+     * @param in  The reader for server responses.
+     * @param out The PrintWriter for sending messages to the server.
+     * @return true if the server agreed to compress.
+     * @throws IOException If an I/O error occurs.
+     */
+    static boolean negotiateCompression(ResponseReader in, PrintWriter out) throws IOException {
+        out.println("COMPRESS deflate");
+
+        String reply = in.readLine();
+        boolean enabled = "Compression enabled".equals(reply);
+        String line = reply;
+        while (line != null && !line.equals("ENDOFMSG")) {
+            line = in.readLine();
+        }
+        if (enabled) {
+            in.enableCompression();
+        }
+        return enabled;
+    }
+
     /**
      * Handles the communication loop between the client and the server.
      *
      * @param consoleReader The BufferedReader for reading user input.
-     * @param in            The BufferedReader for reading server responses.
+     * @param in            The ResponseReader for reading server responses.
      * @param out           The PrintWriter for sending messages to the server.
      * @throws IOException If an I/O error occurs.
      */
-    private static void communicateWithServer(BufferedReader consoleReader, BufferedReader in, PrintWriter out) throws IOException {
+    private static void communicateWithServer(BufferedReader consoleReader, ResponseReader in, PrintWriter out) throws IOException {
+        RecordCache cache = new RecordCache();
         while (true) {
             // Read and display server messages
             String serverResponse;
-            while ((serverResponse = in.readLine()) != null && !serverResponse.equals("ENDOFMSG")) {
-                System.out.println(serverResponse);
+            String lastLine = null;
+            if (cache.awaitsResponse()) {
+                // A record read is shown once merged with the cached copy
+                List<String> response = new ArrayList<>();
+                while ((serverResponse = in.readLine()) != null && !serverResponse.equals("ENDOFMSG")) {
+                    response.add(serverResponse);
+                }
+                for (String line : cache.complete(response)) {
+                    System.out.println(line);
+                }
+            } else {
+                while ((serverResponse = in.readLine()) != null && !serverResponse.equals("ENDOFMSG")) {
+                    System.out.println(serverResponse);
+                    lastLine = serverResponse;
+                }
             }
 
             // Prompt user for input
@@ -288,7 +338,8 @@ public class Client {
                 break; // EOF reached
             }
 
-            out.println(userInput); // Send user input to the server
+            // Send user input to the server; the text of a new entry goes as typed
+            out.println(AWAITING_INFORMATION.equals(lastLine) ? userInput : cache.prepare(userInput));
 
             if ("quit".equalsIgnoreCase(userInput.trim())) {
                 break; // Exit the loop if the user types "quit"
@@ -0,0 +1,119 @@
+package client;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Patient records the client has read, by patient and the version the server gave them. A read of a patient
+ * in the cache asks only for what changed since that version ("3 5 since=..."): the server answers that
+ * nothing did, or sends just the entries added to each record, which are merged into the cached copy.
+ */
+class RecordCache {
+    private static final String READ_COMMAND = "3";
+    private static final String VERSION_PREFIX = "#VERSION ";
+    private static final String RECORD_HEADER = "Doctor=";
+    private static final int MAX_PATIENTS = 1000;
+
+    private final Map<String, Cached> records = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Cached> eldest) {
+            return size() > MAX_PATIENTS;
+        }
+    };
+    // Patient id of the read waiting for its response, "" for the user's own records
+    private String pending;
+
+    /**
+     * Turns a plain read of a record ("3 5", or "3" for a patient) into a conditional one. Any other command
+     * is returned unchanged.
+     */
+    String prepare(String command) {
+        String[] parts = command.trim().split("\\s+");
+        if (!parts[0].equals(READ_COMMAND) || parts.length > 2) {
+            pending = null;
+            return command;
+        }
+        pending = parts.length == 2 ? parts[1] : "";
+        Cached cached = records.get(pending);
+        return command.trim() + " since=" + (cached == null ? "0" : cached.version);
+    }
+
+    /**
+     * Whether the next response answers a conditional read and should go through {@link #complete}.
+     */
+    boolean awaitsResponse() {
+        return pending != null;
+    }
+
+    /**
+     * Takes the response to a conditional read and returns it as it would read without the cache: the whole
+     * record, then the rest of the response.
+     */
+    List<String> complete(List<String> response) {
+        String patientId = pending;
+        pending = null;
+        if (response.isEmpty() || !response.get(0).startsWith(VERSION_PREFIX)) {
+            // Not a read the server could answer, e.g. the menu after a mistyped id
+            return response;
+        }
+        String[] version = response.get(0).substring(VERSION_PREFIX.length()).split(" ");
+        int bodyEnd = response.indexOf("");
+        if (bodyEnd < 0) {
+            bodyEnd = response.size();
+        }
+        List<String> body = new ArrayList<>(response.subList(1, bodyEnd));
+        Cached cached = records.get(patientId);
+
+        List<String> lines;
+        if ("FULL".equals(version[1]) || cached == null) {
+            lines = body;
+        } else if ("ADDED".equals(version[1])) {
+            lines = merge(cached.lines, body);
+        } else {
+            lines = cached.lines;
+        }
+        records.put(patientId, new Cached(version[0], lines));
+
+        List<String> shown = new ArrayList<>(lines);
+        shown.addAll(response.subList(bodyEnd, response.size()));
+        return shown;
+    }
+
+    // Adds each record's new entries after the entries already cached for it
+    private static List<String> merge(List<String> cached, List<String> added) {
+        List<String> merged = new ArrayList<>(cached);
+        int i = 0;
+        while (i < added.size()) {
+            String header = added.get(i++);
+            List<String> entries = new ArrayList<>();
+            while (i < added.size() && !added.get(i).startsWith(RECORD_HEADER)) {
+                entries.add(added.get(i++));
+            }
+            int at = merged.indexOf(header);
+            if (at < 0) {
+                merged.add(header);
+                merged.addAll(entries);
+                continue;
+            }
+            int end = at + 1;
+            while (end < merged.size() && !merged.get(end).startsWith(RECORD_HEADER)) {
+                end++;
+            }
+            merged.addAll(end, entries);
+        }
+        return merged;
+    }
+
+    private static class Cached {
+        // The server's token, sent back as it came
+        final String version;
+        final List<String> lines;
+
+        Cached(String version, List<String> lines) {
+            this.version = version;
+            this.lines = lines;
+        }
+    }
+}
@@ -0,0 +1,142 @@
+package client;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.CoderResult;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.function.Consumer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Reads server responses line by line, transparently inflating "#DEFLATE" frames once compression is negotiated.
+ * The reader passed in must decode UTF-8, as the server writes it.
+ * Lines the server pushes between responses ("#PUSH") go to the push listener, if one is set.
+ */
+public class ResponseReader {
+    private static final String FRAME_PREFIX = "#DEFLATE ";
+    private static final String PUSH_PREFIX = "#PUSH ";
+
+    private final BufferedReader in;
+    private final StringBuilder pending = new StringBuilder();
+    private Inflater inflater;
+    private byte[] inflateBuffer;
+    private CharsetDecoder decoder;
+    // Inflated bytes not decoded yet: the start of a character whose remaining bytes are in the next frame
+    private ByteBuffer undecoded;
+    private CharBuffer decoded;
+    private Consumer<String> pushListener;
+
+    public ResponseReader(BufferedReader in) {
+        this.in = in;
+    }
+
+    /**
+     * Expects compressed frames from now on. The server keeps one deflate stream per connection,
+     * so a single Inflater is reused for every frame.
+     */
+    public void enableCompression() {
+        if (inflater == null) {
+            inflater = new Inflater(true);
+            inflateBuffer = new byte[64 * 1024];
+            decoder = StandardCharsets.UTF_8.newDecoder()
+                    .onMalformedInput(CodingErrorAction.REPLACE)
+                    .onUnmappableCharacter(CodingErrorAction.REPLACE);
+            undecoded = ByteBuffer.allocate(inflateBuffer.length + 4);
+            decoded = CharBuffer.allocate(inflateBuffer.length);
+        }
+    }
+
+    /**
+     * Receives pushed lines without their prefix, on the thread reading responses.
+     */
+    public void setPushListener(Consumer<String> pushListener) {
+        this.pushListener = pushListener;
+    }
+
+    /**
+     * @return the next line of server output, or null at end of stream.
+     */
+    public String readLine() throws IOException {
+        while (true) {
+            String line = readServerLine();
+            if (line != null && pushListener != null && line.startsWith(PUSH_PREFIX)) {
+                pushListener.accept(line.substring(PUSH_PREFIX.length()));
+                continue;
+            }
+            return line;
+        }
+    }
+
+    private String readServerLine() throws IOException {
+        while (true) {
+            int newline = pending.indexOf("\n");
+            if (newline >= 0) {
+                String line = pending.substring(0, newline);
+                pending.delete(0, newline + 1);
+                return line;
+            }
+
+            String line = in.readLine();
+            if (line == null) {
+                return takePending();
+            }
+            if (inflater != null && line.startsWith(FRAME_PREFIX)) {
+                inflate(line);
+                continue;
+            }
+            if (pending.length() > 0) {
+                return takePending() + line;
+            }
+            return line;
+        }
+    }
+
+    public void close() throws IOException {
+        if (inflater != null) {
+            inflater.end();
+        }
+        in.close();
+    }
+
+    private String takePending() {
+        if (pending.length() == 0) {
+            return null;
+        }
+        String rest = pending.toString();
+        pending.setLength(0);
+        return rest;
+    }
+
+    private void inflate(String frame) throws IOException {
+        byte[] compressed = Base64.getDecoder().decode(frame.substring(FRAME_PREFIX.length()));
+        inflater.setInput(compressed);
+        try {
+            int produced;
+            while ((produced = inflater.inflate(inflateBuffer)) > 0) {
+                undecoded.put(inflateBuffer, 0, produced);
+                decode();
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupt compressed response: " + e.getMessage(), e);
+        }
+    }
+
+    // Decodes every complete character; an incomplete one at the end stays behind for the next frame
+    private void decode() {
+        undecoded.flip();
+        CoderResult result;
+        do {
+            result = decoder.decode(undecoded, decoded, false);
+            decoded.flip();
+            pending.append(decoded);
+            decoded.clear();
+        } while (result.isOverflow());
+        undecoded.compact();
+    }
+}
@@ -1,30 +1,63 @@
 package entities;
 
-import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
-import java.util.List;
+import java.util.Comparator;
+import java.util.NavigableMap;
 import java.util.Objects;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class Division {
+    // Numeric ids sort by value ("9" before "10"), anything else lexicographically
+    private static final Comparator<String> ID_ORDER = Comparator.comparingInt(String::length)
+                                                                 .thenComparing(Comparator.naturalOrder());
+
     private final String id;
     private final String name;
-    private final List<Patient> members;
+    // Sorted by patient id so a listing can resume after the last id it returned, even under concurrent inserts
+    private final NavigableMap<String, Patient> members;
+    // The skip list counts by walking it, so the size is kept alongside
+    private final AtomicInteger memberCount = new AtomicInteger();
     
     public Division(String id, String name) {
         this.id = id;
         this.name = name;
-        this.members = new ArrayList<>();
+        this.members = new ConcurrentSkipListMap<>(ID_ORDER);
     }
     
     public void addMember(Patient patient) {
         Objects.requireNonNull(patient, "Patient cannot be null");
-        members.add(patient);
+        if (members.put(patient.getId(), patient) == null) {
+            memberCount.incrementAndGet();
+        }
+    }
+
+    public int getMemberCount() {
+        return memberCount.get();
     }
     
-    public List<Patient> getMembers() {
-        return Collections.unmodifiableList(members);
+    public Collection<Patient> getMembers() {
+        return Collections.unmodifiableCollection(members.values());
+    }
+
+    /**
+     * Members with an id after the cursor, in id order. A null cursor starts from the first member.
+     */
+    public Collection<Patient> getMembersAfter(String cursor) {
+        if (cursor == null) {
+            return getMembers();
+        }
+        return Collections.unmodifiableCollection(members.tailMap(cursor, false).values());
     }
     
+    /**
+     * Compares patient ids in the order members are kept in.
+     */
+    public static int compareIds(String first, String second) {
+        return ID_ORDER.compare(first, second);
+    }
+
     public String getName() {
         return name;
 
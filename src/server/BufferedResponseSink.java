@@ -0,0 +1,275 @@
+package server;
+
+import java.io.BufferedWriter;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import util.ResponseSink;
+
+/**
+ * Per-connection response buffer. Text is written to the socket when the buffer fills up
+ * and once more when the response ends, so a typical response costs a single socket write.
+ *
+ * <p>A response rendered on a command worker is handed off: the worker only renders and compresses into a
+ * short queue, and the connection's own thread writes the queue to the socket. A client that stops reading
+ * then blocks its own connection thread, and the worker at most for the write timeout, after which it drops
+ * the response.
+ */
+public class BufferedResponseSink implements ResponseSink {
+    private static final int BUFFER_SIZE = 16 * 1024;
+    // Responses have always been followed by a line break before the terminator line
+    private static final String END_OF_MESSAGE = "\nENDOFMSG\n";
+    // Writes of up to a compressed frame each, so a few hundred KB at most wait for a slow client
+    private static final int HAND_OFF_CHUNKS = 16;
+
+    private final CountingOutputStream stream;
+    private final HandOffStream handOff;
+    private final CompressingOutputStream compressor;
+    private final Writer writer;
+    private final ServerMetrics metrics;
+    private IOException failure;
+
+    public BufferedResponseSink(OutputStream out, ServerMetrics metrics, int writeTimeoutMillis) {
+        this.stream = new CountingOutputStream(out);
+        this.handOff = new HandOffStream(stream, metrics, writeTimeoutMillis);
+        this.compressor = new CompressingOutputStream(handOff, metrics);
+        this.writer = new BufferedWriter(new OutputStreamWriter(compressor, StandardCharsets.UTF_8), BUFFER_SIZE);
+        this.metrics = metrics;
+    }
+
+    @Override
+    public ResponseSink append(CharSequence text) {
+        if (failure == null) {
+            try {
+                writer.append(text);
+            } catch (IOException e) {
+                failure = e;
+            }
+        }
+        return this;
+    }
+
+    /**
+     * Full buffers already go out on their own, so this only reports whether the client is still there.
+     */
+    @Override
+    public boolean flushChunk() {
+        return failure == null;
+    }
+
+    /**
+     * Compresses every later response of at least threshold bytes. Only call between responses.
+     */
+    public void enableCompression(int threshold) {
+        compressor.enable(threshold);
+    }
+
+    /**
+     * Terminates the response and pushes it to the client with one flush.
+     */
+    public void endResponse() throws IOException {
+        append(END_OF_MESSAGE);
+        if (failure != null) {
+            IOException e = failure;
+            failure = null;
+            throw e;
+        }
+        writer.flush();
+        if (!handOff.active) {
+            metrics.responseWritten(stream.takeWrites(), stream.takeBytes());
+        }
+    }
+
+    /**
+     * Queues everything written from now on for {@link #writeHandedOff()} instead of writing it to the socket.
+     * Called by the thread about to render a response; the connection thread must hold the output meanwhile.
+     */
+    public void handOff() {
+        handOff.active = true;
+    }
+
+    /**
+     * Marks the end of the handed-off output. The rendering thread calls this last, whether or not it succeeded.
+     */
+    public void handOffDone() {
+        handOff.done();
+    }
+
+    /**
+     * Writes the handed-off output to the socket as it arrives until {@link #handOffDone()}, then goes back to
+     * writing directly.
+     *
+     * @return the nanoseconds spent writing to the socket.
+     * @throws IOException if the socket fails or the rendering thread gave up waiting for it.
+     */
+    public long writeHandedOff() throws IOException, InterruptedException {
+        long writeNanos = 0;
+        try {
+            byte[] chunk;
+            while ((chunk = handOff.take()) != HandOffStream.END) {
+                long started = System.nanoTime();
+                stream.write(chunk, 0, chunk.length);
+                writeNanos += System.nanoTime() - started;
+            }
+            stream.flush();
+        } catch (IOException e) {
+            handOff.abandon();
+            throw e;
+        } finally {
+            handOff.active = false;
+        }
+        metrics.responseWritten(stream.takeWrites(), stream.takeBytes());
+        return writeNanos;
+    }
+
+    /**
+     * Adds an unsolicited line between responses; it is sent on {@link #flushPushes()}.
+     */
+    public void push(String line) {
+        append(line).append("\n");
+    }
+
+    public void flushPushes() throws IOException {
+        if (failure != null) {
+            IOException e = failure;
+            failure = null;
+            throw e;
+        }
+        writer.flush();
+        stream.takeWrites();
+        stream.takeBytes();
+    }
+
+    /**
+     * Passes writes through, or while a response is handed off, queues copies of them for the connection
+     * thread. The queue is bounded, and a write that cannot be queued within the write timeout drops the response.
+     */
+    private static class HandOffStream extends FilterOutputStream {
+        static final byte[] END = new byte[0];
+
+        private final BlockingQueue<byte[]> chunks = new ArrayBlockingQueue<>(HAND_OFF_CHUNKS);
+        private final ServerMetrics metrics;
+        private final int writeTimeoutMillis;
+        volatile boolean active;
+        private volatile boolean abandoned;
+
+        HandOffStream(OutputStream out, ServerMetrics metrics, int writeTimeoutMillis) {
+            super(out);
+            this.metrics = metrics;
+            this.writeTimeoutMillis = writeTimeoutMillis;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (!active) {
+                out.write(b, off, len);
+            } else if (len > 0) {
+                queue(Arrays.copyOfRange(b, off, off + len));
+            }
+        }
+
+        // The connection thread writes each chunk as it comes, so there is nothing to flush here
+        @Override
+        public void flush() throws IOException {
+            if (!active) {
+                out.flush();
+            }
+        }
+
+        void done() {
+            try {
+                queue(END);
+            } catch (IOException e) {
+                // Already dropped, and the connection thread told
+            }
+        }
+
+        // Fails both sides from now on; the end marker wakes a connection thread waiting for more
+        void abandon() {
+            abandoned = true;
+            chunks.clear();
+            chunks.offer(END);
+        }
+
+        private void queue(byte[] chunk) throws IOException {
+            if (abandoned) {
+                throw new IOException("Response was dropped");
+            }
+            boolean queued;
+            try {
+                queued = chunks.offer(chunk, writeTimeoutMillis, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                abandon();
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while handing off the response", e);
+            }
+            if (!queued) {
+                abandon();
+                metrics.writeTimedOut();
+                throw new IOException("Client read nothing for " + writeTimeoutMillis + " ms, response dropped");
+            }
+            if (abandoned) {
+                throw new IOException("Response was dropped");
+            }
+        }
+
+        byte[] take() throws IOException, InterruptedException {
+            byte[] chunk = abandoned ? null : chunks.take();
+            if (abandoned) {
+                throw new IOException("Response was dropped while the client was not reading");
+            }
+            return chunk;
+        }
+    }
+
+    /**
+     * Counts the writes that reach the socket, each of which is at least one TLS record and one syscall.
+     */
+    private static class CountingOutputStream extends FilterOutputStream {
+        private long writes;
+        private long bytes;
+
+        CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            writes++;
+            bytes++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            writes++;
+            bytes += len;
+        }
+
+        long takeWrites() {
+            long taken = writes;
+            writes = 0;
+            return taken;
+        }
+
+        long takeBytes() {
+            long taken = bytes;
+            bytes = 0;
+            return taken;
+        }
+    }
+}
@@ -0,0 +1,30 @@
+package server;
+
+/**
+ * Cost classes used to budget client commands, so cheap reads are not starved by listings.
+ */
+public enum CommandCost {
+    READ,
+    LISTING,
+    WRITE;
+
+    public static CommandCost of(String clientMsg) {
+        String trimmed = clientMsg.trim();
+        int end = trimmed.indexOf(' ');
+        String option = end < 0 ? trimmed : trimmed.substring(0, end);
+
+        switch (option) {
+            case "2":
+            case "7":
+            case "9":
+                return LISTING;
+            case "4":
+            case "5":
+            case "6":
+            case "10":
+                return WRITE;
+            default:
+                return READ;
+        }
+    }
+}
@@ -0,0 +1,32 @@
+package server;
+
+import entities.Govt;
+import entities.Person;
+
+/**
+ * Scheduling classes for client commands, highest first. Each class runs on workers of its own,
+ * so bulk agency work and long listings cannot hold up clinical reads and writes.
+ */
+public enum CommandPriority {
+    CLINICAL,  // staff and patients reading, writing and creating single records
+    LISTING,   // patient and division listings, staff search
+    ADMIN;     // everything the agency does
+
+    public static CommandPriority of(Person person, String clientMsg) {
+        if (person instanceof Govt) {
+            return ADMIN;
+        }
+        String trimmed = clientMsg.trim();
+        int end = trimmed.indexOf(' ');
+        String option = end < 0 ? trimmed : trimmed.substring(0, end);
+
+        switch (option) {
+            case "1":
+            case "2":
+            case "7":
+                return LISTING;
+            default:
+                return CLINICAL;
+        }
+    }
+}
@@ -0,0 +1,105 @@
+package server;
+
+import java.io.IOException;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs commands on per-priority worker pools, each with a fixed number of workers and a bounded queue.
+ * A connection's thread hands its command over and waits for it, so a class only ever uses its own workers.
+ */
+public class CommandScheduler {
+    /**
+     * What the connection's thread does while its command runs, such as writing out the response.
+     */
+    public interface WhileRunning {
+        void run() throws IOException, InterruptedException;
+    }
+
+    private final Map<CommandPriority, ThreadPoolExecutor> pools = new EnumMap<>(CommandPriority.class);
+    private final ServerMetrics metrics;
+
+    public CommandScheduler(ServerConfig config, ServerMetrics metrics) {
+        this.metrics = metrics;
+        for (CommandPriority priority : CommandPriority.values()) {
+            int workers = Math.max(1, config.getPriorityWorkers(priority));
+            String name = priority.name().toLowerCase() + "-worker-";
+            AtomicInteger count = new AtomicInteger();
+            ThreadPoolExecutor pool = new ThreadPoolExecutor(workers, workers, 60L, TimeUnit.SECONDS,
+                    new ArrayBlockingQueue<>(Math.max(1, config.getPriorityQueueSize(priority))), runnable -> {
+                        Thread thread = new Thread(runnable, name + count.incrementAndGet());
+                        thread.setDaemon(true);
+                        return thread;
+                    });
+            pool.allowCoreThreadTimeOut(true);
+            pools.put(priority, pool);
+        }
+    }
+
+    /**
+     * Runs the task on a worker of the given class, does {@code whileRunning} and waits for the task's result.
+     * If {@code whileRunning} fails, the task is still waited for, so a command never outlives its connection's
+     * hold on the server, and then the failure is thrown.
+     *
+     * @throws RejectedExecutionException if the class's queue is full.
+     */
+    public <T> T run(CommandPriority priority, Callable<T> task, WhileRunning whileRunning) throws IOException {
+        long queuedAt = System.nanoTime();
+        Future<T> future;
+        try {
+            future = pools.get(priority).submit(() -> {
+                metrics.commandStarted(priority, System.nanoTime() - queuedAt);
+                return task.call();
+            });
+        } catch (RejectedExecutionException e) {
+            metrics.commandRejected(priority);
+            throw e;
+        }
+
+        try {
+            try {
+                whileRunning.run();
+            } catch (IOException e) {
+                awaitQuietly(future);
+                throw e;
+            }
+            return future.get();
+        } catch (InterruptedException e) {
+            future.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for the command", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException ioException) {
+                throw ioException;
+            } else if (cause instanceof RuntimeException runtimeException) {
+                throw runtimeException;
+            } else if (cause instanceof Error error) {
+                throw error;
+            }
+            throw new IOException(cause);
+        }
+    }
+
+    private static void awaitQuietly(Future<?> future) throws InterruptedException {
+        try {
+            future.get();
+        } catch (ExecutionException e) {
+            // The connection failed first, which is what the caller reports
+        }
+    }
+
+    public void shutdown() {
+        for (ThreadPoolExecutor pool : pools.values()) {
+            pool.shutdown();
+        }
+    }
+}
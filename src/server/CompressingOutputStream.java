@@ -0,0 +1,174 @@
+package server;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.Deflater;
+
+/**
+ * Passes bytes through until compression is negotiated. From then on, output is collected and each
+ * flush sends it either as-is, when small, or as a single "#DEFLATE &lt;base64&gt;" line. Output is UTF-8.
+ * All frames of a connection share one raw deflate stream (sync-flushed per frame), so the
+ * dictionary carries over between responses and no buffers are allocated per message.
+ */
+public class CompressingOutputStream extends FilterOutputStream {
+    public static final String FRAME_PREFIX = "#DEFLATE ";
+
+    private static final byte[] PREFIX_BYTES = FRAME_PREFIX.getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] BASE64 =
+            "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".getBytes(StandardCharsets.US_ASCII);
+    private static final int CAPACITY = 64 * 1024;
+
+    private final ServerMetrics metrics;
+    private Deflater deflater;
+    private int threshold;
+    private byte[] buffer;
+    private byte[] deflated;
+    private byte[] frame;
+    private int count;
+
+    public CompressingOutputStream(OutputStream out, ServerMetrics metrics) {
+        super(out);
+        this.metrics = metrics;
+    }
+
+    /**
+     * Switches on compression for everything written from now on.
+     */
+    public void enable(int threshold) {
+        if (deflater != null) {
+            return;
+        }
+        this.threshold = threshold;
+        this.deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        this.buffer = new byte[CAPACITY];
+        // Stored deflate blocks add 5 bytes per 16 KiB, sync flushes a few more
+        this.deflated = new byte[CAPACITY + CAPACITY / 8 + 64];
+        this.frame = new byte[PREFIX_BYTES.length + (deflated.length + 2) / 3 * 4 + 1];
+    }
+
+    public boolean isEnabled() {
+        return deflater != null;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        if (deflater == null) {
+            out.write(b);
+            return;
+        }
+        if (count == buffer.length) {
+            emitFullLines();
+        }
+        buffer[count++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (deflater == null) {
+            out.write(b, off, len);
+            return;
+        }
+        while (len > 0) {
+            if (count == buffer.length) {
+                emitFullLines();
+            }
+            int copied = Math.min(len, buffer.length - count);
+            System.arraycopy(b, off, buffer, count, copied);
+            count += copied;
+            off += copied;
+            len -= copied;
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        if (deflater != null && count > 0) {
+            if (count >= threshold) {
+                emitFrame(count);
+            } else {
+                out.write(buffer, 0, count);
+            }
+            count = 0;
+        }
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            super.close();
+        } finally {
+            if (deflater != null) {
+                deflater.end();
+            }
+        }
+    }
+
+    // Frames end on a line break where possible, and a line longer than the buffer is cut between characters
+    private void emitFullLines() throws IOException {
+        int cut = count;
+        while (cut > 0 && buffer[cut - 1] != '\n') {
+            cut--;
+        }
+        if (cut == 0) {
+            cut = characterBoundary();
+        }
+        emitFrame(cut);
+        System.arraycopy(buffer, cut, buffer, 0, count - cut);
+        count -= cut;
+    }
+
+    /**
+     * @return the end of the buffer, or the start of the last character if the buffer ends partway through it.
+     */
+    private int characterBoundary() {
+        int start = count - 1;
+        // Continuation bytes are 10xxxxxx; step back to the byte that starts their character
+        while (start > 0 && (buffer[start] & 0xc0) == 0x80) {
+            start--;
+        }
+        int lead = buffer[start] & 0xff;
+        int length = lead >= 0xf0 ? 4 : lead >= 0xe0 ? 3 : lead >= 0xc0 ? 2 : 1;
+        return start > 0 && start + length > count ? start : count;
+    }
+
+    private void emitFrame(int length) throws IOException {
+        long start = System.nanoTime();
+        deflater.setInput(buffer, 0, length);
+        int deflatedLength = 0;
+        int produced;
+        do {
+            produced = deflater.deflate(deflated, deflatedLength, deflated.length - deflatedLength, Deflater.SYNC_FLUSH);
+            deflatedLength += produced;
+        } while (produced > 0 && deflatedLength < deflated.length);
+
+        System.arraycopy(PREFIX_BYTES, 0, frame, 0, PREFIX_BYTES.length);
+        int frameLength = encodeBase64(deflated, deflatedLength, frame, PREFIX_BYTES.length);
+        frame[frameLength++] = '\n';
+        metrics.responseCompressed(length, frameLength, System.nanoTime() - start);
+        out.write(frame, 0, frameLength);
+    }
+
+    private static int encodeBase64(byte[] src, int length, byte[] dst, int dstOffset) {
+        int d = dstOffset;
+        int s = 0;
+        for (; s + 2 < length; s += 3) {
+            int bits = (src[s] & 0xff) << 16 | (src[s + 1] & 0xff) << 8 | (src[s + 2] & 0xff);
+            dst[d++] = BASE64[bits >>> 18 & 0x3f];
+            dst[d++] = BASE64[bits >>> 12 & 0x3f];
+            dst[d++] = BASE64[bits >>> 6 & 0x3f];
+            dst[d++] = BASE64[bits & 0x3f];
+        }
+        int remaining = length - s;
+        if (remaining > 0) {
+            int bits = (src[s] & 0xff) << 16 | (remaining == 2 ? (src[s + 1] & 0xff) << 8 : 0);
+            dst[d++] = BASE64[bits >>> 18 & 0x3f];
+            dst[d++] = BASE64[bits >>> 12 & 0x3f];
+            dst[d++] = remaining == 2 ? BASE64[bits >>> 6 & 0x3f] : (byte) '=';
+            dst[d++] = '=';
+        }
+        return d;
+    }
+}
@@ -0,0 +1,37 @@
+package server;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import entities.Person;
+
+/**
+ * Caps how many worker threads a single principal may hold at once.
+ * Each session runs its commands serially on its own worker, so the cap is enforced per session.
+ */
+public class FairScheduler {
+    private final int maxSessionsPerPrincipal;
+    private final Map<String, Integer> sessions = new ConcurrentHashMap<>();
+
+    public FairScheduler(ServerConfig config) {
+        this.maxSessionsPerPrincipal = Math.max(1, config.getMaxConnections() * config.getMaxSharePercent() / 100);
+    }
+
+    public boolean tryOpen(Person person) {
+        boolean[] admitted = new boolean[1];
+        sessions.compute(person.getId(), (id, count) -> {
+            int current = count == null ? 0 : count;
+            admitted[0] = current < maxSessionsPerPrincipal;
+            return admitted[0] ? current + 1 : count;
+        });
+        return admitted[0];
+    }
+
+    public void close(Person person) {
+        sessions.computeIfPresent(person.getId(), (id, count) -> count > 1 ? count - 1 : null);
+    }
+
+    public int getMaxSessionsPerPrincipal() {
+        return maxSessionsPerPrincipal;
+    }
+}
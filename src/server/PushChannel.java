@@ -0,0 +1,121 @@
+package server;
+
+import java.io.IOException;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.Lock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import entities.Person;
+import util.Subscriptions;
+
+/**
+ * One connection's pushed updates. Lines wait in a bounded queue and are written by a thread of the
+ * connection's own, started on its first subscription, so a client that stops reading only stalls itself.
+ * When the queue is full new lines are dropped and the client is told to read its records again.
+ */
+class PushChannel implements Subscriptions {
+    private static final Logger LOGGER = Logger.getLogger(PushChannel.class.getName());
+    private static final String OVERFLOW_NOTICE = PushDispatcher.PUSH_PREFIX
+            + "* updates were dropped, read your subscribed records again";
+
+    private final Person person;
+    private final BufferedResponseSink sink;
+    private final Lock outputLock;
+    private final PushDispatcher dispatcher;
+    private final ServerMetrics metrics;
+    private final BlockingQueue<String> queue;
+    private final Set<String> patients = ConcurrentHashMap.newKeySet();
+    private volatile boolean overflowed;
+    private Thread writer;
+
+    PushChannel(Person person, BufferedResponseSink sink, Lock outputLock, PushDispatcher dispatcher,
+                ServerMetrics metrics, int capacity) {
+        this.person = person;
+        this.sink = sink;
+        this.outputLock = outputLock;
+        this.dispatcher = dispatcher;
+        this.metrics = metrics;
+        this.queue = new ArrayBlockingQueue<>(Math.max(1, capacity));
+    }
+
+    Person getPerson() {
+        return person;
+    }
+
+    @Override
+    public synchronized void subscribe(String patientId) {
+        if (writer == null) {
+            writer = new Thread(this::writeLoop, "push-" + person.getId());
+            writer.setDaemon(true);
+            writer.start();
+        }
+        patients.add(patientId);
+        dispatcher.subscribe(patientId, this);
+    }
+
+    @Override
+    public void unsubscribe(String patientId) {
+        patients.remove(patientId);
+        dispatcher.unsubscribe(patientId, this);
+    }
+
+    void forget(String patientId) {
+        patients.remove(patientId);
+    }
+
+    /**
+     * Queues a line without blocking the caller.
+     */
+    void offer(String line) {
+        if (!queue.offer(line)) {
+            overflowed = true;
+            metrics.pushDropped();
+        }
+    }
+
+    /**
+     * Ends every subscription and stops the writer.
+     */
+    synchronized void close() {
+        for (String patientId : patients) {
+            dispatcher.unsubscribe(patientId, this);
+        }
+        patients.clear();
+        if (writer != null) {
+            writer.interrupt();
+        }
+    }
+
+    private void writeLoop() {
+        try {
+            while (true) {
+                String line = queue.take();
+                // Waits for a response in progress, pushes never land inside one
+                outputLock.lockInterruptibly();
+                try {
+                    int sent = 0;
+                    do {
+                        sink.push(line);
+                        sent++;
+                    } while ((line = queue.poll()) != null);
+                    if (overflowed) {
+                        overflowed = false;
+                        sink.push(OVERFLOW_NOTICE);
+                    }
+                    sink.flushPushes();
+                    metrics.pushesSent(sent);
+                } finally {
+                    outputLock.unlock();
+                }
+            }
+        } catch (InterruptedException e) {
+            // Connection closed
+        } catch (IOException e) {
+            LOGGER.log(Level.FINE, "Could not push to {0}: {1}", new Object[]{person, e.getMessage()});
+        }
+    }
+}
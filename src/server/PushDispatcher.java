@@ -0,0 +1,71 @@
+package server;
+
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import util.AccessPolicy;
+import util.PatientRecordEntry;
+import util.PatientRecords;
+import util.RecordListener;
+
+/**
+ * Routes new record entries to the connections subscribed to the patient.
+ *
+ * <p>Runs on the writer's thread, so it only renders the push line once and offers it to each subscriber's
+ * bounded queue; the subscriber's own thread does the socket write. A subscriber gets the entry only if it
+ * may read the record the entry was added to.
+ */
+public class PushDispatcher implements RecordListener {
+    public static final String PUSH_PREFIX = "#PUSH ";
+
+    private final AccessPolicy policy;
+    private final ConcurrentHashMap<String, Set<PushChannel>> subscribers = new ConcurrentHashMap<>();
+
+    public PushDispatcher(AccessPolicy policy) {
+        this.policy = policy;
+    }
+
+    void subscribe(String patientId, PushChannel channel) {
+        subscribers.computeIfAbsent(patientId, id -> ConcurrentHashMap.newKeySet()).add(channel);
+    }
+
+    void unsubscribe(String patientId, PushChannel channel) {
+        subscribers.computeIfPresent(patientId, (id, channels) -> {
+            channels.remove(channel);
+            return channels.isEmpty() ? null : channels;
+        });
+    }
+
+    @Override
+    public void recordCreated(PatientRecords record) {
+        // A new record has no entries yet; its first entry is pushed like any other
+    }
+
+    @Override
+    public void entryAdded(PatientRecords record, int entryIndex) {
+        Set<PushChannel> channels = subscribers.get(record.getPatientId());
+        if (channels == null) {
+            return;
+        }
+        PatientRecordEntry entry = record.getEntry(entryIndex);
+        String line = PUSH_PREFIX + record.getPatientId() + " " + entry;
+        for (PushChannel channel : channels) {
+            if (policy.associatedRecord(channel.getPerson(), record.getPatientId()) == record) {
+                channel.offer(line);
+            }
+        }
+    }
+
+    @Override
+    public void recordsDeleted(String patientId, List<PatientRecords> removed) {
+        Set<PushChannel> channels = subscribers.remove(patientId);
+        if (channels == null) {
+            return;
+        }
+        for (PushChannel channel : channels) {
+            channel.offer(PUSH_PREFIX + patientId + " records deleted, subscription ended");
+            channel.forget(patientId);
+        }
+    }
+}
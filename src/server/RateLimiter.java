@@ -0,0 +1,34 @@
+package server;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import entities.Person;
+
+/**
+ * Per-principal token buckets, one per command cost class.
+ * Buckets outlive sessions so reconnecting does not reset a budget.
+ */
+public class RateLimiter {
+    private final Map<CommandCost, double[]> budgets = new EnumMap<>(CommandCost.class);
+    private final Map<String, TokenBucket> buckets = new ConcurrentHashMap<>();
+
+    public RateLimiter(ServerConfig config) {
+        for (CommandCost cost : CommandCost.values()) {
+            budgets.put(cost, new double[]{config.getRatePerSecond(cost), config.getRateBurst(cost)});
+        }
+    }
+
+    /**
+     * @return 0 if the command may run now, otherwise the milliseconds the caller should wait.
+     */
+    public long tryAcquire(Person person, CommandCost cost) {
+        if (person == null) {
+            return 0;
+        }
+        String key = person.getClass().getSimpleName() + ":" + person.getId() + ":" + cost;
+        double[] budget = budgets.get(cost);
+        return buckets.computeIfAbsent(key, k -> new TokenBucket(budget[0], budget[1])).tryAcquire();
+    }
+}
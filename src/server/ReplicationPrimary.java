@@ -0,0 +1,216 @@
+package server;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.net.SocketTimeoutException;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLServerSocket;
+import javax.net.ssl.SSLSocket;
+
+import util.PatientRecordEntry;
+import util.PatientRecords;
+import util.PatientRecordsManager;
+import util.RecordListener;
+
+/**
+ * Ships record mutations to replica servers.
+ *
+ * <p>A replica connects over TLS with the server certificate and sends "REPLICATE". It is registered for
+ * mutations first and then sent a snapshot, so anything changed while the snapshot is written arrives again
+ * afterwards; replicas apply those mutations idempotently, up to the sequence the snapshot was finished at,
+ * and every later one exactly. Mutations are published while the change still holds its patient's locks, so
+ * one patient's mutations are numbered in the order they were made. The stream, one line each:
+ * <pre>
+ * SNAPSHOT &lt;seq&gt;, records in the records file format, SNAPSHOT END
+ * CAUGHT UP &lt;seq&gt;   (mutations after this sequence were made after the snapshot was written)
+ * M &lt;seq&gt; &lt;primary millis&gt; CREATE &lt;patient&gt; &lt;doctor&gt; &lt;nurse&gt;
+ * M &lt;seq&gt; &lt;primary millis&gt; ENTRY &lt;patient&gt; &lt;doctor&gt; &lt;index&gt; &lt;epoch day&gt; &lt;text&gt;
+ * M &lt;seq&gt; &lt;primary millis&gt; DELETE &lt;patient&gt;
+ * H &lt;seq&gt; &lt;primary millis&gt;   (heartbeat, so replicas can measure lag while idle)
+ * </pre>
+ */
+public class ReplicationPrimary implements RecordListener {
+    private static final Logger LOGGER = Logger.getLogger(ReplicationPrimary.class.getName());
+    static final String SNAPSHOT_END = "SNAPSHOT END";
+    static final String CAUGHT_UP = "CAUGHT UP ";
+    private static final int QUEUE_CAPACITY = 100_000;
+    private static final long HEARTBEAT_MILLIS = 1000;
+
+    private final PatientRecordsManager recordsManager;
+    private final ServerMetrics metrics;
+    private final SSLServerSocket serverSocket;
+    private final List<ReplicaLink> replicas = new CopyOnWriteArrayList<>();
+    private final ScheduledExecutorService heartbeat;
+    private long sequence; // guarded by this
+
+    public ReplicationPrimary(SSLContext sslContext, int port, PatientRecordsManager recordsManager,
+                              ServerMetrics metrics) throws IOException {
+        this.recordsManager = recordsManager;
+        this.metrics = metrics;
+        this.serverSocket = (SSLServerSocket) sslContext.getServerSocketFactory().createServerSocket(port);
+        this.serverSocket.setNeedClientAuth(true);
+        this.heartbeat = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "replication-heartbeat");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    public void start() {
+        recordsManager.addOrderedListener(this);
+        heartbeat.scheduleAtFixedRate(this::sendHeartbeat, HEARTBEAT_MILLIS, HEARTBEAT_MILLIS, TimeUnit.MILLISECONDS);
+
+        Thread acceptor = new Thread(this::acceptReplicas, "replication-accept");
+        acceptor.setDaemon(true);
+        acceptor.start();
+        LOGGER.log(Level.INFO, "Accepting replicas on port {0}", serverSocket.getLocalPort());
+    }
+
+    @Override
+    public void recordCreated(PatientRecords record) {
+        publish("M", "CREATE " + record.getPatientId() + " " + record.getDoctorId() + " " + record.getNurseId());
+    }
+
+    @Override
+    public void entryAdded(PatientRecords record, int entryIndex) {
+        PatientRecordEntry entry = record.getEntry(entryIndex);
+        publish("M", "ENTRY " + record.getPatientId() + " " + record.getDoctorId() + " " + entryIndex + " "
+                + entry.getEpochDay() + " " + entry.getEntry());
+    }
+
+    @Override
+    public void recordsDeleted(String patientId, List<PatientRecords> removed) {
+        publish("M", "DELETE " + patientId);
+    }
+
+    private void sendHeartbeat() {
+        publish("H", null);
+    }
+
+    private synchronized void publish(String type, String mutation) {
+        if (mutation != null) {
+            sequence++;
+            metrics.mutationShipped();
+        }
+        String line = type + " " + sequence + " " + System.currentTimeMillis() + (mutation != null ? " " + mutation : "");
+        for (ReplicaLink replica : replicas) {
+            replica.offer(line);
+        }
+    }
+
+    private synchronized long register(ReplicaLink replica) {
+        replicas.add(replica);
+        metrics.replicaConnected();
+        return sequence;
+    }
+
+    private synchronized long currentSequence() {
+        return sequence;
+    }
+
+    private void unregister(ReplicaLink replica) {
+        if (replicas.remove(replica)) {
+            metrics.replicaDisconnected();
+        }
+    }
+
+    private void acceptReplicas() {
+        while (!serverSocket.isClosed()) {
+            try {
+                SSLSocket socket = (SSLSocket) serverSocket.accept();
+                Thread sender = new Thread(() -> serve(socket), "replication-sender");
+                sender.setDaemon(true);
+                sender.start();
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Error accepting replica: {0}", e.getMessage());
+            }
+        }
+    }
+
+    private void serve(SSLSocket socket) {
+        ReplicaLink replica = new ReplicaLink(socket);
+        try (SSLSocket replicaSocket = socket;
+             BufferedReader in = new BufferedReader(new InputStreamReader(replicaSocket.getInputStream()));
+             PrintWriter out = new PrintWriter(new BufferedWriter(new OutputStreamWriter(replicaSocket.getOutputStream())))) {
+
+            replicaSocket.setSoTimeout((int) (10 * HEARTBEAT_MILLIS));
+            replicaSocket.startHandshake();
+            if (!isPeerServer(replicaSocket)) {
+                LOGGER.log(Level.WARNING, "Refusing replication to non-server peer: {0}",
+                        replicaSocket.getSession().getPeerPrincipal());
+                return;
+            }
+            if (!"REPLICATE".equals(in.readLine())) {
+                return;
+            }
+
+            long snapshotSequence = register(replica);
+            LOGGER.log(Level.INFO, "Replica connected from {0}, snapshot at sequence {1}",
+                    new Object[]{replicaSocket.getRemoteSocketAddress(), snapshotSequence});
+            out.println("SNAPSHOT " + snapshotSequence);
+            recordsManager.writeRecords(out);
+            out.println(SNAPSHOT_END);
+            out.println(CAUGHT_UP + currentSequence());
+            out.flush();
+
+            while (!out.checkError()) {
+                String line = replica.queue.take();
+                out.println(line);
+                // Batch whatever else is already queued into the same flush
+                while ((line = replica.queue.poll()) != null) {
+                    out.println(line);
+                }
+                out.flush();
+            }
+        } catch (SocketTimeoutException e) {
+            LOGGER.log(Level.WARNING, "Replica did not complete the handshake in time");
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Replica connection error: {0}", e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            unregister(replica);
+            LOGGER.log(Level.INFO, "Replica disconnected: {0}", socket.getRemoteSocketAddress());
+        }
+    }
+
+    // Replicas present the server certificate itself; clinicians' certificates are refused
+    static boolean isPeerServer(SSLSocket socket) throws IOException {
+        return socket.getSession().getPeerPrincipal().equals(socket.getSession().getLocalPrincipal());
+    }
+
+    private static class ReplicaLink {
+        private final SSLSocket socket;
+        private final BlockingQueue<String> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+
+        ReplicaLink(SSLSocket socket) {
+            this.socket = socket;
+        }
+
+        // A replica too far behind is dropped; it reconnects and starts over from a fresh snapshot
+        void offer(String line) {
+            if (!queue.offer(line)) {
+                LOGGER.log(Level.WARNING, "Replica {0} fell behind, disconnecting it", socket.getRemoteSocketAddress());
+                try {
+                    socket.close();
+                } catch (IOException e) {
+                    LOGGER.log(Level.FINE, "Could not close lagging replica: {0}", e.getMessage());
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,153 @@
+package server;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocket;
+
+import util.PatientRecordsManager;
+
+/**
+ * Follows a primary server: loads its snapshot, then applies its mutations in order.
+ * Reconnects (and resynchronizes from a new snapshot) whenever the link drops or a mutation is missed.
+ */
+public class ReplicationReplica implements Runnable {
+    private static final Logger LOGGER = Logger.getLogger(ReplicationReplica.class.getName());
+    private static final long RECONNECT_MILLIS = 2000;
+    private static final int READ_TIMEOUT_MILLIS = 10_000;
+
+    private final SSLContext sslContext;
+    private final String primaryHost;
+    private final int primaryPort;
+    private final PatientRecordsManager recordsManager;
+    private final ServerMetrics metrics;
+
+    public ReplicationReplica(SSLContext sslContext, String primaryHost, int primaryPort,
+                              PatientRecordsManager recordsManager, ServerMetrics metrics) {
+        this.sslContext = sslContext;
+        this.primaryHost = primaryHost;
+        this.primaryPort = primaryPort;
+        this.recordsManager = recordsManager;
+        this.metrics = metrics;
+    }
+
+    public void start() {
+        Thread follower = new Thread(this, "replication-follower");
+        follower.setDaemon(true);
+        follower.start();
+    }
+
+    @Override
+    public void run() {
+        while (!Thread.currentThread().isInterrupted()) {
+            try (SSLSocket socket = (SSLSocket) sslContext.getSocketFactory().createSocket(primaryHost, primaryPort)) {
+                socket.setSoTimeout(READ_TIMEOUT_MILLIS);
+                socket.startHandshake();
+                if (!ReplicationPrimary.isPeerServer(socket)) {
+                    LOGGER.log(Level.SEVERE, "Primary presented an unexpected certificate: {0}",
+                            socket.getSession().getPeerPrincipal());
+                } else {
+                    follow(socket);
+                }
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Replication link to {0}:{1} failed: {2}",
+                        new Object[]{primaryHost, primaryPort, e.getMessage()});
+            }
+            try {
+                Thread.sleep(RECONNECT_MILLIS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private void follow(SSLSocket socket) throws IOException {
+        PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
+        BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+        out.println("REPLICATE");
+
+        String header = in.readLine();
+        if (header == null || !header.startsWith("SNAPSHOT ")) {
+            throw new IOException("Expected a snapshot from the primary, got: " + header);
+        }
+        recordsManager.replaceAll(in, ReplicationPrimary.SNAPSHOT_END);
+        long snapshotSequence = Long.parseLong(header.substring("SNAPSHOT ".length()).trim());
+        String caughtUpLine = in.readLine();
+        if (caughtUpLine == null || !caughtUpLine.startsWith(ReplicationPrimary.CAUGHT_UP)) {
+            throw new IOException("Expected the snapshot's end sequence from the primary, got: " + caughtUpLine);
+        }
+        long caughtUp = Long.parseLong(caughtUpLine.substring(ReplicationPrimary.CAUGHT_UP.length()).trim());
+        LOGGER.log(Level.INFO, "Loaded snapshot at sequence {0} from primary", snapshotSequence);
+
+        long applied = snapshotSequence;
+        String line;
+        while ((line = in.readLine()) != null) {
+            applied = apply(line, applied, caughtUp);
+        }
+        throw new IOException("Primary closed the replication link");
+    }
+
+    /**
+     * Applies one line, given the sequence applied before it, and returns the sequence applied with it. A
+     * mutation the snapshot may already hold is skipped when it does not apply; after that, a mutation that
+     * does not apply or a missing sequence means this replica has diverged, and it resynchronizes.
+     */
+    private long apply(String line, long applied, long caughtUp) throws IOException {
+        // <type> <seq> <millis> [<mutation> <args...>]
+        String[] parts = line.split(" ", 5);
+        if (parts.length < 3) {
+            throw new IOException("Malformed replication line: " + line);
+        }
+        long sequence = Long.parseLong(parts[1]);
+        long primaryMillis = Long.parseLong(parts[2]);
+
+        if ("M".equals(parts[0])) {
+            if (parts.length < 5) {
+                throw new IOException("Malformed replication line: " + line);
+            }
+            if (sequence != applied + 1) {
+                throw diverged("expected sequence " + (applied + 1), line);
+            }
+            String mutation = parts[3];
+            String arguments = parts[4];
+            boolean done;
+            switch (mutation) {
+                case "CREATE": {
+                    String[] args = arguments.split(" ");
+                    done = recordsManager.applyCreate(args[0], args[1], args[2]);
+                    break;
+                }
+                case "ENTRY": {
+                    String[] args = arguments.split(" ", 5);
+                    done = recordsManager.applyEntry(args[0], args[1], Integer.parseInt(args[2]),
+                            Integer.parseInt(args[3]), args.length > 4 ? args[4] : "");
+                    break;
+                }
+                case "DELETE":
+                    done = recordsManager.applyDelete(arguments.trim());
+                    break;
+                default:
+                    throw new IOException("Unknown mutation: " + mutation);
+            }
+            if (!done && sequence > caughtUp) {
+                throw diverged("mutation does not apply to the records here", line);
+            }
+        } else if (sequence != applied) {
+            throw diverged("heartbeat at sequence " + sequence + " after " + applied, line);
+        }
+        metrics.replicationApplied(sequence, System.currentTimeMillis() - primaryMillis);
+        return sequence;
+    }
+
+    // Dropping the link makes the next connection start over from a fresh snapshot
+    private static IOException diverged(String reason, String line) {
+        LOGGER.log(Level.SEVERE, "Replica out of step with the primary ({0}) at: {1}; resynchronizing",
+                new Object[]{reason, line});
+        return new IOException("Out of step with the primary: " + reason);
+    }
+}
@@ -3,35 +3,153 @@ package server;
 import util.*;
 
 import java.net.Socket;
+import java.net.SocketTimeoutException;
 import javax.net.ServerSocketFactory;
 import javax.net.ssl.*;
 
 import entities.*;
 
 import java.io.*;
+import java.math.BigInteger;
 import java.net.ServerSocket;
 import java.security.KeyStore;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
 import java.security.cert.X509Certificate;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 public class Server {
     private static final Logger LOGGER = Logger.getLogger(Server.class.getName());
+    // Its own logger so slow requests can be sent to a separate handler
+    private static final Logger SLOW_REQUESTS = Logger.getLogger(Server.class.getName() + ".slow");
     private static final int DEFAULT_PORT = 12345;
     private static final String CONNECTION_TYPE = "TLS";
     private static final String TRUST_STORE_PATH = "../Certificates/Server/servertruststore";
     private static final String KEY_STORE_PATH = "../Certificates/Server/serverkeystore";
     private static final char[] STORE_PASSWORD = "serverpw".toCharArray();
+    private static final String BUSY_MESSAGE = "Server is busy, please try again later.";
+    private static final String TIMEOUT_MESSAGE = "Session timed out due to inactivity.";
+    private static final String COMPRESS_COMMAND = "COMPRESS";
+    private static final String READ_ONLY_MESSAGE = "This server is a read-only replica, connect to the primary to make changes.";
+    private static final String COMMAND_BUSY_MESSAGE = "Server is busy with similar requests, please retry shortly.";
+    private static final String OVER_SHARE_MESSAGE = "Too many open sessions for this user, retry after closing one.";
 
     private final ServerSocket serverSocket;
+    private final ServerConfig config;
+    private final ServerMetrics metrics;
+    private final RateLimiter rateLimiter;
+    private final FairScheduler fairScheduler;
     private final ExecutorService executorService;
-    private static int activeConnections = 0;
+    private final CommandScheduler commandScheduler;
+    private final ExecutorService rejectionService;
+    private final ScheduledExecutorService metricsReporter;
+    private final PersonRepository personRepo;
+    private final PatientRecordsManager recordsManager;
+    private final util.Logger auditLogger;
+    private final EntrySearchIndex searchIndex;
+    private final AccessPolicy accessPolicy;
+    private final PushDispatcher pushDispatcher;
+    private final RecordStore recordStore;
+    private final RecordCheckpointer checkpointer;
+    private final BulkImporter importer;
+    private final DivisionStats divisionStats;
+    private final RenderedRecords renderedRecords;
+    private final WorkingSetWarmer warmer;
+    // Commands run under the read lock; shutdown takes the write lock to wait for them to finish
+    private final ReadWriteLock commandGate = new ReentrantReadWriteLock();
+    private final Set<Socket> openSockets = ConcurrentHashMap.newKeySet();
+    private final AtomicLong connectionIds = new AtomicLong();
+    private final AtomicLong requestIds = new AtomicLong();
+    private volatile boolean shuttingDown;
 
-    public Server(ServerSocket serverSocket) {
+    public Server(ServerSocket serverSocket, ServerConfig config) {
         this.serverSocket = serverSocket;
-        this.executorService = Executors.newCachedThreadPool();
+        this.config = config;
+        // One copy of the database shared by all connections
+        this.personRepo = new PersonRepository();
+        this.recordStore = openRecordStore(config, personRepo);
+        this.recordsManager = new PatientRecordsManager(personRepo, recordStore, config.getRecordsFile(),
+                                                        config.getShardDivisions());
+        this.auditLogger = new util.Logger();
+        this.searchIndex = new EntrySearchIndex(recordsManager);
+        this.accessPolicy = new AccessPolicy(recordsManager);
+        this.pushDispatcher = new PushDispatcher(accessPolicy);
+        recordsManager.addListener(pushDispatcher);
+        // A replica's copy comes from the primary and must not overwrite the records file
+        this.checkpointer = config.isReadOnly() || recordStore instanceof LogRecordStore
+                ? null : new RecordCheckpointer(recordsManager);
+        this.importer = new BulkImporter(personRepo, recordsManager);
+        this.divisionStats = new DivisionStats(personRepo, recordsManager, auditLogger);
+        this.metrics = new ServerMetrics();
+        if (recordStore instanceof LogRecordStore) {
+            metrics.watchRecordLog((LogRecordStore) recordStore);
+        }
+        this.renderedRecords = config.getRenderCacheBytes() <= 0
+                ? null : new RenderedRecords(recordsManager, config.getRenderCacheBytes());
+        this.warmer = renderedRecords == null || config.getWarmUpPatients() <= 0
+                ? null : new WorkingSetWarmer(recordsManager, accessPolicy, renderedRecords, metrics,
+                                              config.getWarmUpPatients());
+        if (renderedRecords != null) {
+            metrics.watchRenderedRecords(renderedRecords);
+        }
+        this.rateLimiter = new RateLimiter(config);
+        this.fairScheduler = new FairScheduler(config);
+        this.executorService = createWorkerPool(config);
+        this.commandScheduler = new CommandScheduler(config, metrics);
+        // A single thread answers rejected clients so the accept loop never waits on a TLS handshake
+        this.rejectionService = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(Math.max(1, config.getAcceptQueueSize())));
+        this.metricsReporter = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "metrics-reporter");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * The store engine chosen by configuration. A replica always keeps its copy in memory, as it is rebuilt
+     * from the primary on every start.
+     */
+    static RecordStore openRecordStore(ServerConfig config, PersonRepository personRepo) {
+        if (config.getRecordStore() != RecordStore.Engine.LOG || config.isReadOnly()) {
+            return new MemoryRecordStore(config.isOffHeapText() ? new TextArena() : null);
+        }
+        try {
+            return new LogRecordStore(Paths.get(config.getRecordsLog()), config.getLogSegmentBytes(),
+                                      config.getLogMergeThreshold(), config.getLogMergeBytesPerSecond(), personRepo);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot open the record log in " + config.getRecordsLog(), e);
+        }
+    }
+
+    private static ExecutorService createWorkerPool(ServerConfig config) {
+        BlockingQueue<Runnable> backlog;
+        if (config.getBacklogPolicy() == ServerConfig.BacklogPolicy.REJECT || config.getAcceptQueueSize() <= 0) {
+            backlog = new SynchronousQueue<>();
+        } else {
+            backlog = new ArrayBlockingQueue<>(config.getAcceptQueueSize());
+        }
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(config.getMaxConnections(), config.getMaxConnections(),
+                60L, TimeUnit.SECONDS, backlog);
+        pool.allowCoreThreadTimeOut(true);
+        return pool;
     }
 
     public static void main(String[] args) {
@@ -58,7 +176,9 @@ public class Server {
                 sslServerSocket.setNeedClientAuth(true);
             }
 
-            Server server = new Server(serverSocket);
+            Server server = new Server(serverSocket, new ServerConfig());
+            server.startReplication();
+            Runtime.getRuntime().addShutdownHook(new Thread(server::shutdown, "server-shutdown"));
             LOGGER.info("Server has started.");
 
             server.start();
@@ -71,29 +191,7 @@ public class Server {
     private static ServerSocketFactory getServerSocketFactory(String connectionType) {
         if ("TLS".equalsIgnoreCase(connectionType)) {
             try {
-                // Load KeyStore and TrustStore
-                KeyStore keyStore = KeyStore.getInstance("JKS");
-                KeyStore trustStore = KeyStore.getInstance("JKS");
-
-                try (FileInputStream keyStoreStream = new FileInputStream(KEY_STORE_PATH);
-                     FileInputStream trustStoreStream = new FileInputStream(TRUST_STORE_PATH)) {
-
-                    keyStore.load(keyStoreStream, STORE_PASSWORD);
-                    trustStore.load(trustStoreStream, STORE_PASSWORD);
-                }
-
-                // Initialize KeyManager and TrustManager
-                KeyManagerFactory keyManagerFactory = KeyManagerFactory.getInstance("SunX509");
-                keyManagerFactory.init(keyStore, STORE_PASSWORD);
-
-                TrustManagerFactory trustManagerFactory = TrustManagerFactory.getInstance("SunX509");
-                trustManagerFactory.init(trustStore);
-
-                // Initialize SSLContext
-                SSLContext sslContext = SSLContext.getInstance("TLS");
-                sslContext.init(keyManagerFactory.getKeyManagers(), trustManagerFactory.getTrustManagers(), null);
-
-                return sslContext.getServerSocketFactory();
+                return createSSLContext().getServerSocketFactory();
             } catch (Exception e) {
                 LOGGER.log(Level.SEVERE, "Failed to initialize SSL context: {0}", e.getMessage());
                 e.printStackTrace();
@@ -104,86 +202,455 @@ public class Server {
         }
     }
 
+    /**
+     * TLS context holding the server certificate, trusting certificates issued by the hospital CA.
+     */
+    static SSLContext createSSLContext() throws Exception {
+        // Load KeyStore and TrustStore
+        KeyStore keyStore = KeyStore.getInstance("JKS");
+        KeyStore trustStore = KeyStore.getInstance("JKS");
+
+        try (FileInputStream keyStoreStream = new FileInputStream(KEY_STORE_PATH);
+             FileInputStream trustStoreStream = new FileInputStream(TRUST_STORE_PATH)) {
+
+            keyStore.load(keyStoreStream, STORE_PASSWORD);
+            trustStore.load(trustStoreStream, STORE_PASSWORD);
+        }
+
+        // Initialize KeyManager and TrustManager
+        KeyManagerFactory keyManagerFactory = KeyManagerFactory.getInstance("SunX509");
+        keyManagerFactory.init(keyStore, STORE_PASSWORD);
+
+        TrustManagerFactory trustManagerFactory = TrustManagerFactory.getInstance("SunX509");
+        trustManagerFactory.init(trustStore);
+
+        // Initialize SSLContext
+        SSLContext sslContext = SSLContext.getInstance("TLS");
+        sslContext.init(keyManagerFactory.getKeyManagers(), trustManagerFactory.getTrustManagers(), null);
+        return sslContext;
+    }
+
+    private void startReplication() throws IOException {
+        try {
+            switch (config.getReplicationRole()) {
+                case PRIMARY:
+                    new ReplicationPrimary(createSSLContext(), config.getReplicationPort(), recordsManager, metrics).start();
+                    break;
+                case REPLICA:
+                    String address = config.getPrimaryAddress();
+                    int separator = address.lastIndexOf(':');
+                    new ReplicationReplica(createSSLContext(), address.substring(0, separator),
+                            Integer.parseInt(address.substring(separator + 1)), recordsManager, metrics).start();
+                    LOGGER.log(Level.INFO, "Running as a read-only replica of {0}", address);
+                    break;
+                default:
+                    break;
+            }
+        } catch (IOException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new IOException("Cannot set up replication: " + e.getMessage(), e);
+        }
+    }
+
     public void start() {
-        while (true) {
+        int interval = config.getMetricsIntervalSeconds();
+        if (interval > 0) {
+            metricsReporter.scheduleAtFixedRate(() -> LOGGER.log(Level.INFO, "Server metrics: {0}", metrics),
+                    interval, interval, TimeUnit.SECONDS);
+        }
+        if (checkpointer != null && config.getCheckpointIntervalSeconds() > 0) {
+            checkpointer.start(config.getCheckpointIntervalSeconds());
+        }
+        if (recordStore instanceof LogRecordStore && config.getCheckpointIntervalSeconds() > 0) {
+            ((LogRecordStore) recordStore).start(config.getCheckpointIntervalSeconds());
+        }
+
+        while (!shuttingDown) {
             try {
                 Socket clientSocket = serverSocket.accept();
-                synchronized (Server.class) {
-                    activeConnections++;
-                }
-                LOGGER.log(Level.INFO, "Client connected. Active connections: {0}", activeConnections);
-                executorService.execute(new ClientHandler(clientSocket));
+                admit(clientSocket);
             } catch (IOException e) {
+                if (shuttingDown) {
+                    break;
+                }
                 LOGGER.log(Level.SEVERE, "Error accepting client connection: {0}", e.getMessage());
                 e.printStackTrace();
             }
         }
     }
 
+    /**
+     * Stops accepting connections, waits for commands in progress, closes the remaining sessions and writes
+     * a final checkpoint. Runs from the JVM shutdown hook.
+     */
+    void shutdown() {
+        LOGGER.info("Shutting down...");
+        shuttingDown = true;
+        try {
+            serverSocket.close();
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Error closing server socket: {0}", e.getMessage());
+        }
+        executorService.shutdown();
+
+        Lock gate = commandGate.writeLock();
+        try {
+            if (!gate.tryLock(config.getShutdownDrainSeconds(), TimeUnit.SECONDS)) {
+                LOGGER.warning("Commands still running after the drain timeout, checkpointing anyway");
+            }
+            // Sessions idle in a read are released by closing their sockets; new commands wait on the gate
+            for (Socket socket : openSockets) {
+                try {
+                    socket.close();
+                } catch (IOException e) {
+                    LOGGER.log(Level.FINE, "Error closing client socket: {0}", e.getMessage());
+                }
+            }
+
+            commandScheduler.shutdown();
+            if (warmer != null) {
+                warmer.shutdown();
+            }
+            if (checkpointer != null) {
+                checkpointer.stop();
+                int written = checkpointer.checkpoint();
+                LOGGER.log(Level.INFO, "Final checkpoint wrote {0} changed patients", written);
+            }
+            recordStore.close();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            LOGGER.warning("Interrupted during shutdown, skipping the final checkpoint");
+        } catch (IOException e) {
+            LOGGER.log(Level.SEVERE, "Final checkpoint failed: {0}", e.getMessage());
+            e.printStackTrace();
+        }
+        LOGGER.info("Server has stopped.");
+    }
+
+    private void admit(Socket clientSocket) {
+        try {
+            executorService.execute(new ClientHandler(clientSocket, this));
+            return;
+        } catch (RejectedExecutionException e) {
+            // All workers are busy and the backlog is full
+        }
+
+        if (config.getBacklogPolicy() == ServerConfig.BacklogPolicy.SHED) {
+            shed(clientSocket);
+            return;
+        }
+        try {
+            rejectionService.execute(() -> sendBusy(clientSocket));
+            metrics.connectionRejected();
+        } catch (RejectedExecutionException e) {
+            shed(clientSocket);
+        }
+    }
+
+    private void sendBusy(Socket clientSocket) {
+        try (Socket socket = clientSocket) {
+            socket.setSoTimeout(config.getHandshakeTimeoutMillis());
+            PrintWriter out = new PrintWriter(socket.getOutputStream());
+            out.println(BUSY_MESSAGE);
+            out.println("ENDOFMSG");
+            out.flush();
+        } catch (IOException e) {
+            LOGGER.log(Level.FINE, "Could not send busy reply: {0}", e.getMessage());
+        }
+    }
+
+    private void shed(Socket clientSocket) {
+        metrics.connectionShed();
+        try {
+            clientSocket.close();
+        } catch (IOException e) {
+            LOGGER.log(Level.FINE, "Could not close shed connection: {0}", e.getMessage());
+        }
+    }
+
     private static class ClientHandler implements Runnable {
         private final Socket socket;
+        private final ServerConfig config;
+        private final ServerMetrics metrics;
+        private final RateLimiter rateLimiter;
+        private final FairScheduler fairScheduler;
+        private final Server server;
+        private final long connectionId;
         private ClientCommandHandler inputManager;
         private Person person;
+        private boolean handshakeDone;
+        private boolean sessionOpen;
+        private BufferedResponseSink sink;
+        // Held while a response is written, so pushed lines go out between responses
+        private final Lock outputLock = new ReentrantLock();
+        private PushChannel pushChannel;
 
-        public ClientHandler(Socket socket) {
+        public ClientHandler(Socket socket, Server server) {
             this.socket = socket;
+            this.config = server.config;
+            this.metrics = server.metrics;
+            this.rateLimiter = server.rateLimiter;
+            this.fairScheduler = server.fairScheduler;
+            this.server = server;
+            this.connectionId = server.connectionIds.incrementAndGet();
         }
 
         @Override
         public void run() {
+            int opened = metrics.connectionOpened();
+            LOGGER.log(Level.INFO, "Client connected (conn={0}). Active connections: {1}",
+                       new Object[]{connectionId, opened});
+            server.openSockets.add(socket);
+
             try (Socket clientSocket = this.socket;
-                 PrintWriter out = new PrintWriter(clientSocket.getOutputStream(), true);
-                 BufferedReader in = new BufferedReader(new InputStreamReader(clientSocket.getInputStream()))) {
+                 BufferedReader in = new BufferedReader(new InputStreamReader(clientSocket.getInputStream(), StandardCharsets.UTF_8))) {
 
+                sink = new BufferedResponseSink(clientSocket.getOutputStream(), metrics, config.getWriteTimeoutMillis());
+                clientSocket.setSoTimeout(config.getHandshakeTimeoutMillis());
                 if (clientSocket instanceof SSLSocket sslSocket) {
+                    sslSocket.startHandshake();
                     SSLSession session = sslSocket.getSession();
                     X509Certificate cert = (X509Certificate) session.getPeerCertificates()[0];
                     String subject = cert.getSubjectX500Principal().getName();
-                    LOGGER.info("Client connected: " + subject);
+                    LOGGER.log(Level.INFO, "Client connected (conn={0}): {1}", new Object[]{connectionId, subject});
 
-                    inputManager = new ClientCommandHandler();
+                    inputManager = new ClientCommandHandler(server.personRepo, server.recordsManager,
+                            server.auditLogger, server.searchIndex, server.accessPolicy);
+                    inputManager.setImporter(server.importer, Paths.get(config.getImportDirectory()));
+                    inputManager.setDivisionStats(server.divisionStats);
+                    inputManager.setRenderedRecords(server.renderedRecords);
                     person = inputManager.getPerson(cert);
+                    if (ReplicationPrimary.isPeerServer(sslSocket)) {
+                        person = readRoutedPerson(in);
+                    }
+                }
+                handshakeDone = true;
+                clientSocket.setSoTimeout(config.getIdleTimeoutMillis());
+
+                if (person != null) {
+                    sessionOpen = fairScheduler.tryOpen(person);
+                    if (!sessionOpen) {
+                        metrics.sessionOverShare();
+                        LOGGER.log(Level.WARNING, "Rejecting session over fair share for: {0}", person);
+                        sink.append(OVER_SHARE_MESSAGE);
+                        sink.endResponse();
+                        return;
+                    }
+                    pushChannel = new PushChannel(person, sink, outputLock, server.pushDispatcher, metrics,
+                                                  config.getPushQueueSize());
+                    inputManager.setSubscriptions(pushChannel);
+                    if (server.warmer != null) {
+                        server.warmer.loggedIn(person);
+                    }
                 }
 
-                String clientMsg;
-                while ((clientMsg = in.readLine()) != null) {
+                String line;
+                while ((line = in.readLine()) != null) {
+                    String clientMsg = line;
                     if (clientMsg.isEmpty() || "quit".equalsIgnoreCase(clientMsg)) {
                         break;
                     }
+                    if (clientMsg.startsWith(COMPRESS_COMMAND)) {
+                        negotiateCompression(clientMsg);
+                        continue;
+                    }
+
+                    CommandCost cost = CommandCost.of(clientMsg);
+                    if (cost == CommandCost.WRITE && config.isReadOnly()) {
+                        reply(READ_ONLY_MESSAGE + "\n\n" + inputManager.listOptions(person));
+                        continue;
+                    }
+
+                    long retryAfter = rateLimiter.tryAcquire(person, cost);
+                    if (retryAfter > 0) {
+                        metrics.commandThrottled();
+                        reply("Too many requests, retry after " + retryAfter + " ms.\n\n" + inputManager.listOptions(person));
+                        continue;
+                    }
 
-                    String response = inputManager.handleClientInput(clientMsg, person);
-                    out.println(response);
-                    out.println("ENDOFMSG");
+                    CommandPriority priority = CommandPriority.of(person, clientMsg);
+                    RequestContext request = new RequestContext(connectionId, server.requestIds.incrementAndGet(),
+                                                                commandName(clientMsg));
+                    inputManager.setRequest(request);
+                    boolean awaitingInformation = runCommand(priority, request,
+                            () -> inputManager.handleClientInput(clientMsg, person, sink));
 
-                    if ("Write information".equals(response)) {
+                    if (awaitingInformation) {
                         String information = in.readLine();
-                        String[] msgParts = clientMsg.split(" ");
-                        if (msgParts.length > 1) {
-                            response = inputManager.writeInformation(msgParts[1], information, person);
-                            out.println(response);
-                            out.println("ENDOFMSG");
-                        } else {
-                            out.println("Invalid command format.");
-                            out.println("ENDOFMSG");
+                        if (information == null) {
+                            // The client left before sending the entry, so nothing is written or audited
+                            logRequest(request);
+                            break;
                         }
+                        String[] msgParts = clientMsg.split(" ");
+                        runCommand(priority, request, () -> {
+                            if (msgParts.length > 1) {
+                                inputManager.writeInformation(msgParts[1], information, person, sink);
+                            } else {
+                                sink.append("Invalid command format.");
+                            }
+                            return false;
+                        });
                     }
+                    logRequest(request);
+                }
+            } catch (SocketTimeoutException e) {
+                if (handshakeDone) {
+                    metrics.idleTimedOut();
+                    notifyTimeout();
+                    LOGGER.log(Level.INFO, "Closing idle client connection: {0}", person);
+                } else {
+                    metrics.handshakeTimedOut();
+                    LOGGER.log(Level.WARNING, "Client handshake timed out: {0}", socket.getRemoteSocketAddress());
                 }
             } catch (IOException e) {
                 LOGGER.log(Level.WARNING, "Client connection error: {0}", e.getMessage());
                 e.printStackTrace();
             } finally {
-                synchronized (Server.class) {
-                    activeConnections--;
+                if (pushChannel != null) {
+                    pushChannel.close();
+                }
+                if (sessionOpen) {
+                    fairScheduler.close(person);
+                }
+                server.openSockets.remove(socket);
+                int active = metrics.connectionClosed();
+                LOGGER.log(Level.INFO, "Client disconnected (conn={0}). Active connections: {1}",
+                       new Object[]{connectionId, active});
+            }
+        }
+
+        private interface Command {
+            boolean run() throws IOException;
+        }
+
+        // Runs one command on a worker of its priority class, holding the gate shutdown drains. The worker
+        // renders the response and this thread writes it to the socket, so a client that stops reading
+        // blocks this thread rather than a shared worker. One command at a time per connection, as before.
+        private boolean runCommand(CommandPriority priority, RequestContext request, Command command)
+                throws IOException {
+            Lock gate = server.commandGate.readLock();
+            gate.lock();
+            outputLock.lock();
+            try {
+                if (server.shuttingDown) {
+                    throw new IOException("Server is shutting down");
                 }
-                LOGGER.log(Level.INFO, "Client disconnected. Active connections: {0}", activeConnections);
-                if (inputManager != null) {
+                long submitted = System.nanoTime();
+                long[] writeNanos = new long[1];
+                boolean awaitingInformation = server.commandScheduler.run(priority, () -> {
+                    long started = System.nanoTime();
+                    request.addQueueNanos(started - submitted);
+                    sink.handOff();
+                    try {
+                        long allocatedBefore = ServerMetrics.currentThreadAllocatedBytes();
+                        boolean result = command.run();
+                        sink.endResponse();
+                        request.addHandlerNanos(System.nanoTime() - started);
+                        recordAllocation(allocatedBefore);
+                        return result;
+                    } finally {
+                        sink.handOffDone();
+                    }
+                }, () -> writeNanos[0] = sink.writeHandedOff());
+                request.addWriteNanos(writeNanos[0]);
+                return awaitingInformation;
+            } catch (RejectedExecutionException e) {
+                sink.append(COMMAND_BUSY_MESSAGE).append("\n\n").append(inputManager.listOptions(person));
+                sink.endResponse();
+                return false;
+            } finally {
+                outputLock.unlock();
+                gate.unlock();
+            }
+        }
+
+        // Only the command number: arguments name patients and search terms, which belong in the audit log,
+        // and a line that is not a command may be anything the user typed
+        private static String commandName(String clientMsg) {
+            String trimmed = clientMsg.trim();
+            int space = trimmed.indexOf(' ');
+            String option = space < 0 ? trimmed : trimmed.substring(0, space);
+            return option.matches("\\d{1,2}") ? option : "(invalid)";
+        }
+
+        private void logRequest(RequestContext request) {
+            if (request.getTotalMillis() >= config.getSlowRequestMillis()) {
+                metrics.requestSlow();
+                SLOW_REQUESTS.log(Level.WARNING, "Slow request [{0}] by {1}: command {2} took {3} ms ({4})",
+                        new Object[]{request, person, request.getCommand(), request.getTotalMillis(), request.timings()});
+            } else if (LOGGER.isLoggable(Level.FINE)) {
+                LOGGER.log(Level.FINE, "Request [{0}] by {1}: command {2} ({3})",
+                        new Object[]{request, person, request.getCommand(), request.timings()});
+            }
+        }
+
+        private void reply(String text) throws IOException {
+            outputLock.lock();
+            try {
+                sink.append(text);
+                sink.endResponse();
+            } finally {
+                outputLock.unlock();
+            }
+        }
+
+        // A shard router connects with the server certificate and names the user it forwards for
+        private Person readRoutedPerson(BufferedReader in) throws IOException {
+            String line = in.readLine();
+            if (line == null || !line.startsWith(ShardRouter.ACT_AS_COMMAND + " ")) {
+                throw new IOException("Expected the routed user from the shard router, got: " + line);
+            }
+            try {
+                Person routed = server.personRepo.getPersonFromSerialNumber(
+                        new BigInteger(line.substring(ShardRouter.ACT_AS_COMMAND.length()).trim()));
+                LOGGER.log(Level.INFO, "Routed session for: {0}", routed);
+                return routed;
+            } catch (NumberFormatException e) {
+                throw new IOException("Invalid routed serial number: " + line, e);
+            }
+        }
+
+        // The reply goes out uncompressed, compression applies from the next response on
+        private void negotiateCompression(String clientMsg) throws IOException {
+            String[] parts = clientMsg.trim().split("\\s+");
+            boolean deflateOffered = parts.length > 1 && "deflate".equalsIgnoreCase(parts[1]);
+            if (!config.isCompressionEnabled() || !deflateOffered) {
+                reply("Compression not supported");
+                return;
+            }
+            outputLock.lock();
+            try {
+                sink.append("Compression enabled");
+                sink.endResponse();
+                sink.enableCompression(config.getCompressionThreshold());
+            } finally {
+                outputLock.unlock();
+            }
+        }
+
+        private void recordAllocation(long allocatedBefore) {
+            if (allocatedBefore >= 0) {
+                metrics.responseAllocated(ServerMetrics.currentThreadAllocatedBytes() - allocatedBefore);
+            }
+        }
+
+        private void notifyTimeout() {
+            try {
+                // A push stuck on a client that stopped reading must not hold up closing the connection
+                if (outputLock.tryLock(1, TimeUnit.SECONDS)) {
                     try {
-                        inputManager.save();
-                    } catch (Exception e) {
-                        LOGGER.log(Level.SEVERE, "Error saving InputManager state: {0}", e.getMessage());
-                        e.printStackTrace();
+                        sink.append(TIMEOUT_MESSAGE);
+                        sink.endResponse();
+                    } finally {
+                        outputLock.unlock();
                     }
                 }
+            } catch (IOException e) {
+                LOGGER.log(Level.FINE, "Could not notify idle client: {0}", e.getMessage());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
             }
         }
     }
@@ -0,0 +1,329 @@
+package server;
+
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import util.RecordStore;
+
+/**
+ * Server tuning knobs, read once from system properties (e.g. -Dhospital.maxConnections=128).
+ */
+public class ServerConfig {
+    private static final Logger LOGGER = Logger.getLogger(ServerConfig.class.getName());
+    private static final String PREFIX = "hospital.";
+
+    /**
+     * What the accept loop does with a connection once every worker is busy.
+     */
+    public enum BacklogPolicy {
+        QUEUE,   // wait in a bounded queue, reply "busy" once the queue is full
+        REJECT,  // never queue, reply "busy" straight away
+        SHED     // wait in a bounded queue, close without a reply once the queue is full
+    }
+
+    /**
+     * Whether this server ships its changes to replicas, follows a primary, or neither.
+     */
+    public enum ReplicationRole {
+        NONE,
+        PRIMARY,
+        REPLICA
+    }
+
+    private final int maxConnections;
+    private final int acceptQueueSize;
+    private final BacklogPolicy backlogPolicy;
+    private final int handshakeTimeoutMillis;
+    private final int idleTimeoutMillis;
+    private final int writeTimeoutMillis;
+    private final int metricsIntervalSeconds;
+    private final int slowRequestMillis;
+    private final int maxSharePercent;
+    private final boolean compressionEnabled;
+    private final int compressionThreshold;
+    private final ReplicationRole replicationRole;
+    private final int replicationPort;
+    private final String primaryAddress;
+    private final String recordsFile;
+    private final RecordStore.Engine recordStore;
+    private final boolean offHeapText;
+    private final String recordsLog;
+    private final String importDirectory;
+    private final int logSegmentMegabytes;
+    private final double logMergeThreshold;
+    private final int logMergeMegabytesPerSecond;
+    private final int checkpointIntervalSeconds;
+    private final int shutdownDrainSeconds;
+    private final int pushQueueSize;
+    private final int renderCacheMegabytes;
+    private final int warmUpPatients;
+    private final Set<String> shardDivisions;
+    private final Map<CommandCost, Double> ratePerSecond = new EnumMap<>(CommandCost.class);
+    private final Map<CommandCost, Double> rateBurst = new EnumMap<>(CommandCost.class);
+    private final Map<CommandPriority, Integer> priorityWorkers = new EnumMap<>(CommandPriority.class);
+    private final Map<CommandPriority, Integer> priorityQueueSize = new EnumMap<>(CommandPriority.class);
+
+    public ServerConfig() {
+        this.maxConnections = intProperty("maxConnections", 64);
+        this.acceptQueueSize = intProperty("acceptQueueSize", 32);
+        this.backlogPolicy = enumProperty("backlogPolicy", BacklogPolicy.QUEUE);
+        this.handshakeTimeoutMillis = intProperty("handshakeTimeoutMillis", 10_000);
+        this.idleTimeoutMillis = intProperty("idleTimeoutMillis", 15 * 60_000);
+        this.writeTimeoutMillis = intProperty("writeTimeoutMillis", 30_000);
+        this.metricsIntervalSeconds = intProperty("metricsIntervalSeconds", 60);
+        this.slowRequestMillis = intProperty("slowRequestMillis", 500);
+        this.maxSharePercent = intProperty("maxSharePercent", 25);
+        this.compressionEnabled = Boolean.parseBoolean(System.getProperty(PREFIX + "compression", "true"));
+        this.compressionThreshold = intProperty("compressionThreshold", 1024);
+        this.replicationRole = enumProperty("replication.role", ReplicationRole.NONE);
+        this.replicationPort = intProperty("replication.port", 12346);
+        this.primaryAddress = System.getProperty(PREFIX + "replication.primary", "localhost:12346");
+        this.recordsFile = System.getProperty(PREFIX + "recordsFile", "../Database/records");
+        this.recordStore = enumProperty("recordStore", RecordStore.Engine.FILE);
+        this.offHeapText = Boolean.parseBoolean(System.getProperty(PREFIX + "offHeapText", "false"));
+        this.recordsLog = System.getProperty(PREFIX + "recordsLog", "../Database/records.log");
+        this.importDirectory = System.getProperty(PREFIX + "importDirectory", "../Database/import");
+        this.logSegmentMegabytes = intProperty("log.segmentMegabytes", 64);
+        this.logMergeThreshold = doubleProperty("log.mergeThreshold", 0.5);
+        this.logMergeMegabytesPerSecond = intProperty("log.mergeMegabytesPerSecond", 16);
+        this.checkpointIntervalSeconds = intProperty("checkpointIntervalSeconds", 30);
+        this.shutdownDrainSeconds = intProperty("shutdownDrainSeconds", 10);
+        this.pushQueueSize = intProperty("pushQueueSize", 256);
+        this.renderCacheMegabytes = intProperty("renderCacheMegabytes", 64);
+        this.warmUpPatients = intProperty("warmUpPatients", 200);
+        String divisions = System.getProperty(PREFIX + "shard.divisions");
+        this.shardDivisions = divisions == null || divisions.isBlank()
+                ? null : new LinkedHashSet<>(Arrays.asList(divisions.trim().split("\\s*,\\s*")));
+        initRate(CommandCost.READ, 20, 40);
+        initRate(CommandCost.LISTING, 1, 5);
+        initRate(CommandCost.WRITE, 5, 10);
+        initPriority(CommandPriority.CLINICAL, 8, 256);
+        initPriority(CommandPriority.LISTING, 4, 64);
+        initPriority(CommandPriority.ADMIN, 2, 16);
+    }
+
+    private void initPriority(CommandPriority priority, int defaultWorkers, int defaultQueueSize) {
+        String name = "priority." + priority.name().toLowerCase();
+        priorityWorkers.put(priority, intProperty(name + ".workers", defaultWorkers));
+        priorityQueueSize.put(priority, intProperty(name + ".queueSize", defaultQueueSize));
+    }
+
+    private void initRate(CommandCost cost, double defaultPerSecond, double defaultBurst) {
+        String name = "rate." + cost.name().toLowerCase();
+        ratePerSecond.put(cost, doubleProperty(name + ".perSecond", defaultPerSecond));
+        rateBurst.put(cost, doubleProperty(name + ".burst", defaultBurst));
+    }
+
+    public int getMaxConnections() {
+        return maxConnections;
+    }
+
+    public int getAcceptQueueSize() {
+        return acceptQueueSize;
+    }
+
+    public BacklogPolicy getBacklogPolicy() {
+        return backlogPolicy;
+    }
+
+    public int getHandshakeTimeoutMillis() {
+        return handshakeTimeoutMillis;
+    }
+
+    public int getIdleTimeoutMillis() {
+        return idleTimeoutMillis;
+    }
+
+    public int getWriteTimeoutMillis() {
+        return writeTimeoutMillis;
+    }
+
+    public int getMetricsIntervalSeconds() {
+        return metricsIntervalSeconds;
+    }
+
+    /**
+     * Commands taking at least this long, from queueing to the end of their response, are logged as slow;
+     * 0 logs every command.
+     */
+    public int getSlowRequestMillis() {
+        return slowRequestMillis;
+    }
+
+    public int getMaxSharePercent() {
+        return maxSharePercent;
+    }
+
+    public boolean isCompressionEnabled() {
+        return compressionEnabled;
+    }
+
+    public int getCompressionThreshold() {
+        return compressionThreshold;
+    }
+
+    public ReplicationRole getReplicationRole() {
+        return replicationRole;
+    }
+
+    public boolean isReadOnly() {
+        return replicationRole == ReplicationRole.REPLICA;
+    }
+
+    public int getReplicationPort() {
+        return replicationPort;
+    }
+
+    /**
+     * host:port of the primary's replication listener, used by replicas.
+     */
+    public String getPrimaryAddress() {
+        return primaryAddress;
+    }
+
+    public String getRecordsFile() {
+        return recordsFile;
+    }
+
+    public RecordStore.Engine getRecordStore() {
+        return recordStore;
+    }
+
+    /**
+     * Whether records kept in memory hold their entries' text in direct buffers instead of the heap.
+     */
+    public boolean isOffHeapText() {
+        return offHeapText;
+    }
+
+    /**
+     * Directory of the segment files when the records are kept in a log.
+     */
+    public String getRecordsLog() {
+        return recordsLog;
+    }
+
+    /**
+     * Directory of the files the import command may load, named by the command without a path.
+     */
+    public String getImportDirectory() {
+        return importDirectory;
+    }
+
+    public long getLogSegmentBytes() {
+        return logSegmentMegabytes * 1024L * 1024L;
+    }
+
+    /**
+     * Share of a full segment's bytes still in use below which the segment is merged away.
+     */
+    public double getLogMergeThreshold() {
+        return logMergeThreshold;
+    }
+
+    /**
+     * How fast a merge may read segments, 0 for unthrottled.
+     */
+    public long getLogMergeBytesPerSecond() {
+        return logMergeMegabytesPerSecond * 1024L * 1024L;
+    }
+
+    public int getCheckpointIntervalSeconds() {
+        return checkpointIntervalSeconds;
+    }
+
+    /**
+     * How long shutdown waits for commands in progress before the final checkpoint.
+     */
+    public int getShutdownDrainSeconds() {
+        return shutdownDrainSeconds;
+    }
+
+    /**
+     * Pushed lines that may wait for one slow subscriber before further ones are dropped.
+     */
+    public int getPushQueueSize() {
+        return pushQueueSize;
+    }
+
+    /**
+     * Memory for records kept rendered for reads; 0 renders every read from the store.
+     */
+    public long getRenderCacheBytes() {
+        return renderCacheMegabytes * 1024L * 1024L;
+    }
+
+    /**
+     * Patients whose records are rendered when a doctor or nurse logs in; 0 turns the warm-up off.
+     */
+    public int getWarmUpPatients() {
+        return warmUpPatients;
+    }
+
+    /**
+     * Division ids this server is the shard for, or null if it holds every division.
+     */
+    public Set<String> getShardDivisions() {
+        return shardDivisions;
+    }
+
+    public double getRatePerSecond(CommandCost cost) {
+        return ratePerSecond.get(cost);
+    }
+
+    public double getRateBurst(CommandCost cost) {
+        return rateBurst.get(cost);
+    }
+
+    public int getPriorityWorkers(CommandPriority priority) {
+        return priorityWorkers.get(priority);
+    }
+
+    public int getPriorityQueueSize(CommandPriority priority) {
+        return priorityQueueSize.get(priority);
+    }
+
+    static int intProperty(String name, int defaultValue) {
+        String value = System.getProperty(PREFIX + name);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            LOGGER.log(Level.WARNING, "Invalid value for {0}{1}, using default: {2}", new Object[]{PREFIX, name, defaultValue});
+            return defaultValue;
+        }
+    }
+
+    static double doubleProperty(String name, double defaultValue) {
+        String value = System.getProperty(PREFIX + name);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Double.parseDouble(value.trim());
+        } catch (NumberFormatException e) {
+            LOGGER.log(Level.WARNING, "Invalid value for {0}{1}, using default: {2}", new Object[]{PREFIX, name, defaultValue});
+            return defaultValue;
+        }
+    }
+
+    static <E extends Enum<E>> E enumProperty(String name, E defaultValue) {
+        String value = System.getProperty(PREFIX + name);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Enum.valueOf(defaultValue.getDeclaringClass(), value.trim().toUpperCase());
+        } catch (IllegalArgumentException e) {
+            LOGGER.log(Level.WARNING, "Invalid value for {0}{1}, using default: {2}", new Object[]{PREFIX, name, defaultValue});
+            return defaultValue;
+        }
+    }
+}
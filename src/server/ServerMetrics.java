@@ -0,0 +1,376 @@
+package server;
+
+import java.lang.management.BufferPoolMXBean;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.lang.management.ThreadMXBean;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.management.NotificationEmitter;
+import javax.management.openmbean.CompositeData;
+
+import com.sun.management.GarbageCollectionNotificationInfo;
+
+import util.LogRecordStore;
+import util.RenderedRecords;
+
+/**
+ * Counters for the connection lifecycle, logged periodically by the server.
+ */
+public class ServerMetrics {
+    private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+
+    private final AtomicInteger activeConnections = new AtomicInteger();
+    private final AtomicLong acceptedConnections = new AtomicLong();
+    private final AtomicLong rejectedConnections = new AtomicLong();
+    private final AtomicLong shedConnections = new AtomicLong();
+    private final AtomicLong handshakeTimeouts = new AtomicLong();
+    private final AtomicLong idleTimeouts = new AtomicLong();
+    private final AtomicLong writeTimeouts = new AtomicLong();
+    private final AtomicLong throttledCommands = new AtomicLong();
+    private final AtomicLong overShareSessions = new AtomicLong();
+    private final AtomicLong slowRequests = new AtomicLong();
+    private final AtomicLong responses = new AtomicLong();
+    private final AtomicLong socketWrites = new AtomicLong();
+    private final AtomicLong bytesWritten = new AtomicLong();
+    private final AtomicLong measuredResponses = new AtomicLong();
+    private final AtomicLong allocatedBytes = new AtomicLong();
+    private final AtomicLong compressedFrames = new AtomicLong();
+    private final AtomicLong uncompressedBytes = new AtomicLong();
+    private final AtomicLong compressedBytes = new AtomicLong();
+    private final AtomicLong compressionNanos = new AtomicLong();
+    private final AtomicInteger connectedReplicas = new AtomicInteger();
+    private final AtomicLong shippedMutations = new AtomicLong();
+    private final AtomicLong pushesSent = new AtomicLong();
+    private final AtomicLong pushesDropped = new AtomicLong();
+    private final AtomicLong warmUps = new AtomicLong();
+    private final AtomicLong warmedRecords = new AtomicLong();
+    private final AtomicLong warmUpsDropped = new AtomicLong();
+    private final Map<CommandPriority, WaitHistogram> queueWaits = new EnumMap<>(CommandPriority.class);
+    private final Map<CommandPriority, AtomicLong> rejectedCommands = new EnumMap<>(CommandPriority.class);
+    private final WaitHistogram gcPauses = new WaitHistogram();
+    private volatile LogRecordStore recordLog;
+    private volatile RenderedRecords renderedRecords;
+
+    public ServerMetrics() {
+        for (CommandPriority priority : CommandPriority.values()) {
+            queueWaits.put(priority, new WaitHistogram());
+            rejectedCommands.put(priority, new AtomicLong());
+        }
+        watchCollections();
+    }
+
+    /**
+     * Records the duration of every stop-the-world collection. Collectors that also report their concurrent
+     * cycles have separate beans for those, which are skipped.
+     */
+    private void watchCollections() {
+        for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+            String name = collector.getName();
+            if (!(collector instanceof NotificationEmitter) || name.contains("Cycles") || name.contains("Concurrent")) {
+                continue;
+            }
+            ((NotificationEmitter) collector).addNotificationListener((notification, handback) -> {
+                if (GarbageCollectionNotificationInfo.GARBAGE_COLLECTION_NOTIFICATION.equals(notification.getType())) {
+                    GarbageCollectionNotificationInfo info =
+                            GarbageCollectionNotificationInfo.from((CompositeData) notification.getUserData());
+                    gcPauses.record(info.getGcInfo().getDuration() * 1_000_000);
+                }
+            }, null, null);
+        }
+    }
+    private final AtomicLong appliedSequence = new AtomicLong(-1);
+    private final AtomicLong replicationLagMillis = new AtomicLong(-1);
+
+    public int connectionOpened() {
+        acceptedConnections.incrementAndGet();
+        return activeConnections.incrementAndGet();
+    }
+
+    public int connectionClosed() {
+        return activeConnections.decrementAndGet();
+    }
+
+    public void connectionRejected() {
+        rejectedConnections.incrementAndGet();
+    }
+
+    public void connectionShed() {
+        shedConnections.incrementAndGet();
+    }
+
+    public void handshakeTimedOut() {
+        handshakeTimeouts.incrementAndGet();
+    }
+
+    public void idleTimedOut() {
+        idleTimeouts.incrementAndGet();
+    }
+
+    public void writeTimedOut() {
+        writeTimeouts.incrementAndGet();
+    }
+
+    public void commandThrottled() {
+        throttledCommands.incrementAndGet();
+    }
+
+    public void sessionOverShare() {
+        overShareSessions.incrementAndGet();
+    }
+
+    public void requestSlow() {
+        slowRequests.incrementAndGet();
+    }
+
+    public void responseWritten(long writes, long bytes) {
+        responses.incrementAndGet();
+        socketWrites.addAndGet(writes);
+        bytesWritten.addAndGet(bytes);
+    }
+
+    public void responseAllocated(long bytes) {
+        if (bytes >= 0) {
+            measuredResponses.incrementAndGet();
+            allocatedBytes.addAndGet(bytes);
+        }
+    }
+
+    public void responseCompressed(long rawBytes, long wireBytes, long nanos) {
+        compressedFrames.incrementAndGet();
+        uncompressedBytes.addAndGet(rawBytes);
+        compressedBytes.addAndGet(wireBytes);
+        compressionNanos.addAndGet(nanos);
+    }
+
+    public void replicaConnected() {
+        connectedReplicas.incrementAndGet();
+    }
+
+    public void replicaDisconnected() {
+        connectedReplicas.decrementAndGet();
+    }
+
+    public void mutationShipped() {
+        shippedMutations.incrementAndGet();
+    }
+
+    public void pushesSent(int count) {
+        pushesSent.addAndGet(count);
+    }
+
+    public void pushDropped() {
+        pushesDropped.incrementAndGet();
+    }
+
+    public void warmedUp(int records) {
+        warmUps.incrementAndGet();
+        warmedRecords.addAndGet(records);
+    }
+
+    public void warmUpDropped() {
+        warmUpsDropped.incrementAndGet();
+    }
+
+    public void commandStarted(CommandPriority priority, long queueWaitNanos) {
+        queueWaits.get(priority).record(queueWaitNanos);
+    }
+
+    public void commandRejected(CommandPriority priority) {
+        rejectedCommands.get(priority).incrementAndGet();
+    }
+
+    /**
+     * On a replica: the primary's sequence just applied and how long ago the primary produced it.
+     */
+    public void replicationApplied(long sequence, long lagMillis) {
+        appliedSequence.set(sequence);
+        replicationLagMillis.set(Math.max(0, lagMillis));
+    }
+
+    public long getReplicationLagMillis() {
+        return replicationLagMillis.get();
+    }
+
+    /**
+     * Bytes allocated so far by the calling thread, or -1 if the JVM cannot tell.
+     */
+    public static long currentThreadAllocatedBytes() {
+        if (THREADS instanceof com.sun.management.ThreadMXBean hotspotThreads
+                && hotspotThreads.isThreadAllocatedMemoryEnabled()) {
+            return hotspotThreads.getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return -1;
+    }
+
+    public int getActiveConnections() {
+        return activeConnections.get();
+    }
+
+    @Override
+    public String toString() {
+        return "active=" + activeConnections.get()
+                + " accepted=" + acceptedConnections.get()
+                + " rejected=" + rejectedConnections.get()
+                + " shed=" + shedConnections.get()
+                + " handshakeTimeouts=" + handshakeTimeouts.get()
+                + " idleTimeouts=" + idleTimeouts.get()
+                + " writeTimeouts=" + writeTimeouts.get()
+                + " throttledCommands=" + throttledCommands.get()
+                + " overShareSessions=" + overShareSessions.get()
+                + " slowRequests=" + slowRequests.get()
+                + " responses=" + responses.get()
+                + " writesPerResponse=" + perResponse(socketWrites.get(), responses.get())
+                + " bytesPerResponse=" + perResponse(bytesWritten.get(), responses.get())
+                + " allocatedPerResponse=" + perResponse(allocatedBytes.get(), measuredResponses.get())
+                + " compressedFrames=" + compressedFrames.get()
+                + " compressionRatio=" + perResponse(uncompressedBytes.get(), compressedBytes.get())
+                + " compressionMillis=" + compressionNanos.get() / 1_000_000
+                + " replicas=" + connectedReplicas.get()
+                + " shippedMutations=" + shippedMutations.get()
+                + " appliedSequence=" + appliedSequence.get()
+                + " replicationLagMillis=" + replicationLagMillis.get()
+                + " pushesSent=" + pushesSent.get()
+                + " pushesDropped=" + pushesDropped.get()
+                + " warmUps=" + warmUps.get()
+                + " warmedRecords=" + warmedRecords.get()
+                + " warmUpsDropped=" + warmUpsDropped.get()
+                + renderCache()
+                + queueWaits()
+                + merges()
+                + memory();
+    }
+
+    /**
+     * Adds the rendered records' hits to the report.
+     */
+    public void watchRenderedRecords(RenderedRecords rendered) {
+        this.renderedRecords = rendered;
+    }
+
+    private String renderCache() {
+        RenderedRecords rendered = renderedRecords;
+        if (rendered == null) {
+            return "";
+        }
+        return " renderHits=" + rendered.getHits()
+                + " renderMisses=" + rendered.getMisses()
+                + " renderedMB=" + rendered.getRenderedBytes() / (1024 * 1024);
+    }
+
+    /**
+     * Adds the log store's merges to the report.
+     */
+    public void watchRecordLog(LogRecordStore log) {
+        this.recordLog = log;
+    }
+
+    private String merges() {
+        LogRecordStore log = recordLog;
+        if (log == null) {
+            return "";
+        }
+        long planned = log.getMergeBytesPlanned();
+        return " mergeProgress=" + (planned == 0 ? "idle" : Math.min(100, log.getMergeBytesRead() * 100 / planned) + "%")
+                + " mergedRuns=" + log.getMergedRuns()
+                + " reclaimedMB=" + log.getReclaimedBytes() / (1024 * 1024);
+    }
+
+    // Collections and their pauses, heap in use now and in the old generation after the last collection of it,
+    // and direct buffers (off-heap entry text among them)
+    private String memory() {
+        long heapUsed = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+        long oldAfterGc = -1;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            String name = pool.getName();
+            MemoryUsage afterGc = pool.getCollectionUsage();
+            if (pool.getType() == MemoryType.HEAP && afterGc != null && (name.contains("Old") || name.contains("Tenured"))) {
+                oldAfterGc = afterGc.getUsed();
+            }
+        }
+        long direct = 0;
+        for (BufferPoolMXBean pool : ManagementFactory.getPlatformMXBeans(BufferPoolMXBean.class)) {
+            if ("direct".equals(pool.getName())) {
+                direct = pool.getMemoryUsed();
+            }
+        }
+        return " gcPauses=" + gcPauses.count()
+                + " gcPauseMillis=" + gcPauses.percentileMillis(0.50) + '/' + gcPauses.percentileMillis(0.99)
+                + '/' + gcPauses.maxMillis()
+                + " heapUsedMB=" + heapUsed / (1024 * 1024)
+                + " oldGenAfterGcMB=" + (oldAfterGc < 0 ? -1 : oldAfterGc / (1024 * 1024))
+                + " directMB=" + direct / (1024 * 1024);
+    }
+
+    // Per class: commands started, queue wait p50/p99/max in ms, commands rejected for a full queue
+    private String queueWaits() {
+        StringBuilder text = new StringBuilder();
+        for (CommandPriority priority : CommandPriority.values()) {
+            WaitHistogram waits = queueWaits.get(priority);
+            String name = priority.name().toLowerCase();
+            text.append(' ').append(name).append("Commands=").append(waits.count())
+                .append(' ').append(name).append("QueueWaitMillis=")
+                .append(waits.percentileMillis(0.50)).append('/')
+                .append(waits.percentileMillis(0.99)).append('/')
+                .append(waits.maxMillis())
+                .append(' ').append(name).append("Rejected=").append(rejectedCommands.get(priority).get());
+        }
+        return text.toString();
+    }
+
+    private static String perResponse(long total, long count) {
+        return count == 0 ? "0" : String.format("%.1f", (double) total / count);
+    }
+
+    /**
+     * Wait times in power-of-two microsecond buckets; percentiles are reported as the bucket's upper bound.
+     */
+    private static class WaitHistogram {
+        private static final int BUCKETS = 40;
+
+        private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+        private final AtomicLong maxNanos = new AtomicLong();
+
+        void record(long nanos) {
+            long micros = Math.max(1, nanos / 1000);
+            int bucket = Math.min(BUCKETS - 1, 63 - Long.numberOfLeadingZeros(micros));
+            buckets.incrementAndGet(bucket);
+            maxNanos.accumulateAndGet(nanos, Math::max);
+        }
+
+        long count() {
+            long count = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                count += buckets.get(i);
+            }
+            return count;
+        }
+
+        String percentileMillis(double percentile) {
+            long total = count();
+            if (total == 0) {
+                return "0";
+            }
+            long rank = (long) Math.ceil(total * percentile);
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += buckets.get(i);
+                if (seen >= rank) {
+                    return String.format("%.1f", (1L << (i + 1)) / 1000.0);
+                }
+            }
+            return maxMillis();
+        }
+
+        String maxMillis() {
+            return String.format("%.1f", maxNanos.get() / 1_000_000.0);
+        }
+    }
+}
@@ -0,0 +1,401 @@
+package server;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLServerSocket;
+import javax.net.ssl.SSLSocket;
+
+import entities.Person;
+import util.ClientCommandHandler;
+import util.PersonRepository;
+
+/**
+ * Front end for a sharded deployment, where each server owns the records of some divisions.
+ *
+ * <p>Clients connect to the router exactly as to a server. Doctors, nurses and patients are piped to the
+ * shard owning their division. The agency has no division, so its commands are routed per patient, and
+ * searches (or lookups of unknown patients) fan out to every shard in parallel and are merged.
+ * Exports are streamed from one shard after another instead, as they are too large to merge in memory.
+ * The router reaches shards with the server certificate and tells them who it acts for.
+ *
+ * <p>Shards are given as -Dhospital.router.shards=1@host:port,2+3@host:port (division ids per shard).
+ */
+public class ShardRouter {
+    private static final Logger LOGGER = Logger.getLogger(ShardRouter.class.getName());
+    static final String ACT_AS_COMMAND = "ACTAS";
+    private static final int DEFAULT_PORT = 12345;
+    private static final String END_OF_MESSAGE = "ENDOFMSG";
+    // Not a command, so a shard answers it with the menu alone
+    private static final String MENU_REQUEST = "?";
+    private static final Pattern EXPORT_SUMMARY = Pattern.compile("Exported (\\d+) patients, (\\d+) records");
+    // Bodies that only say "nothing here" are dropped when another shard had an answer
+    private static final Set<String> EMPTY_RESULTS = Set.of(
+            "No matching records", "Patient doesn't have any records");
+
+    private final SSLServerSocket serverSocket;
+    private final SSLContext sslContext;
+    private final PersonRepository personRepo;
+    private final Map<String, String> shardByDivision;
+    private final List<String> shards;
+    private final ExecutorService sessions;
+    private final ExecutorService fanOut;
+
+    public ShardRouter(SSLServerSocket serverSocket, SSLContext sslContext, Map<String, String> shardByDivision,
+                       int maxConnections) {
+        this.serverSocket = serverSocket;
+        this.sslContext = sslContext;
+        this.personRepo = new PersonRepository();
+        this.shardByDivision = shardByDivision;
+        this.shards = new ArrayList<>(new LinkedHashSet<>(shardByDivision.values()));
+        this.sessions = Executors.newFixedThreadPool(maxConnections);
+        this.fanOut = Executors.newCachedThreadPool();
+    }
+
+    public static void main(String[] args) {
+        int port = DEFAULT_PORT;
+        if (args.length >= 1) {
+            try {
+                port = Integer.parseInt(args[0]);
+            } catch (NumberFormatException e) {
+                LOGGER.log(Level.WARNING, "Invalid port number provided. Using default port: {0}", DEFAULT_PORT);
+            }
+        }
+
+        Map<String, String> shardByDivision = parseShards(System.getProperty("hospital.router.shards", ""));
+        if (shardByDivision.isEmpty()) {
+            LOGGER.severe("No shards configured, set -Dhospital.router.shards=1@host:port,2@host:port");
+            return;
+        }
+
+        try {
+            SSLContext sslContext = Server.createSSLContext();
+            SSLServerSocket serverSocket = (SSLServerSocket) sslContext.getServerSocketFactory().createServerSocket(port);
+            serverSocket.setNeedClientAuth(true);
+            ShardRouter router = new ShardRouter(serverSocket, sslContext, shardByDivision,
+                    new ServerConfig().getMaxConnections());
+            LOGGER.log(Level.INFO, "Router started on port {0} for shards {1}", new Object[]{port, shardByDivision});
+            router.start();
+        } catch (Exception e) {
+            LOGGER.log(Level.SEVERE, "Cannot start router due to error: {0}", e.getMessage());
+            e.printStackTrace();
+        }
+    }
+
+    static Map<String, String> parseShards(String spec) {
+        Map<String, String> shardByDivision = new LinkedHashMap<>();
+        for (String shard : spec.split(",")) {
+            int at = shard.indexOf('@');
+            if (at < 0) {
+                continue;
+            }
+            String address = shard.substring(at + 1).trim();
+            for (String division : shard.substring(0, at).split("\\+")) {
+                shardByDivision.put(division.trim(), address);
+            }
+        }
+        return shardByDivision;
+    }
+
+    public void start() {
+        while (true) {
+            try {
+                SSLSocket clientSocket = (SSLSocket) serverSocket.accept();
+                sessions.execute(() -> route(clientSocket));
+            } catch (IOException e) {
+                LOGGER.log(Level.SEVERE, "Error accepting client connection: {0}", e.getMessage());
+            }
+        }
+    }
+
+    private void route(SSLSocket clientSocket) {
+        try (SSLSocket socket = clientSocket) {
+            socket.startHandshake();
+            X509Certificate cert = (X509Certificate) socket.getSession().getPeerCertificates()[0];
+            Person person = personRepo.getPersonFromSerialNumber(cert.getSerialNumber());
+            if (person == null) {
+                LOGGER.log(Level.WARNING, "Unknown certificate: {0}", cert.getSubjectX500Principal().getName());
+                return;
+            }
+
+            String serial = cert.getSerialNumber().toString();
+            if (person.getDivision() != null) {
+                pipe(socket, serial, shardFor(person.getDivision().getId()));
+            } else {
+                routeAgency(socket, serial);
+            }
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Routed session error: {0}", e.getMessage());
+        }
+    }
+
+    private String shardFor(String divisionId) throws IOException {
+        String shard = shardByDivision.get(divisionId);
+        if (shard == null) {
+            throw new IOException("No shard owns division " + divisionId);
+        }
+        return shard;
+    }
+
+    // Everything the user does stays within their division, so the session is a plain byte pipe
+    private void pipe(SSLSocket client, String serial, String shard) throws IOException {
+        try (ShardConnection connection = new ShardConnection(shard, serial)) {
+            Thread downstream = new Thread(() -> copy(connection.socket, client), "router-downstream");
+            downstream.setDaemon(true);
+            downstream.start();
+            copy(client, connection.socket);
+        }
+    }
+
+    private static void copy(Socket from, Socket to) {
+        byte[] buffer = new byte[16 * 1024];
+        try {
+            InputStream in = from.getInputStream();
+            OutputStream out = to.getOutputStream();
+            int read;
+            while ((read = in.read(buffer)) >= 0) {
+                out.write(buffer, 0, read);
+                out.flush();
+            }
+        } catch (IOException e) {
+            // One side went away, the session is over
+        } finally {
+            try {
+                to.close();
+            } catch (IOException e) {
+                LOGGER.log(Level.FINE, "Could not close routed socket: {0}", e.getMessage());
+            }
+        }
+    }
+
+    private void routeAgency(SSLSocket client, String serial) throws IOException {
+        Map<String, ShardConnection> connections = new HashMap<>();
+        try {
+            // Known before the first fan-out, which takes it off each shard's reply and adds it once
+            List<String> menu = connection(connections, shards.get(0), serial).exchange(MENU_REQUEST);
+            BufferedReader in = new BufferedReader(new InputStreamReader(client.getInputStream(), StandardCharsets.UTF_8));
+            PrintWriter out = new PrintWriter(new OutputStreamWriter(client.getOutputStream(), StandardCharsets.UTF_8));
+            String line;
+            while ((line = in.readLine()) != null) {
+                if (line.isEmpty() || "quit".equalsIgnoreCase(line)) {
+                    break;
+                }
+
+                List<String> response;
+                if (line.startsWith("COMPRESS")) {
+                    // Merged responses are rebuilt here, so shard compression cannot be passed through
+                    response = List.of("Compression not supported", "");
+                } else {
+                    String[] inputs = line.trim().split("\\s+");
+                    String patientShard = inputs.length > 1 && ("3".equals(inputs[0]) || "6".equals(inputs[0]))
+                            ? shardForPatient(inputs[1]) : null;
+                    if (ClientCommandHandler.IMPORT_FILE.equals(inputs[0])) {
+                        // Each shard keeps its own divisions' records and its own copy of the persons
+                        response = List.of("Imports run on each shard's own server", "");
+                    } else if (patientShard != null) {
+                        response = connection(connections, patientShard, serial).exchange(line);
+                    } else if ("9".equals(inputs[0])) {
+                        response = export(connections, serial, line, inputs, out);
+                    } else if ("3".equals(inputs[0]) || "6".equals(inputs[0]) || "7".equals(inputs[0])
+                            || ClientCommandHandler.DIVISION_STATS.equals(inputs[0])) {
+                        // Statistics too, since each shard counts only the divisions it keeps
+                        response = fanOut(connections, serial, line, menu);
+                    } else {
+                        response = connection(connections, shards.get(0), serial).exchange(line);
+                    }
+                }
+                for (String responseLine : response) {
+                    out.println(responseLine);
+                }
+                out.println(END_OF_MESSAGE);
+                out.flush();
+            }
+        } finally {
+            for (ShardConnection connection : connections.values()) {
+                connection.close();
+            }
+        }
+    }
+
+    private String shardForPatient(String patientId) {
+        Person patient = personRepo.getPersonFromId(patientId);
+        return patient != null && patient.getDivision() != null ? shardByDivision.get(patient.getDivision().getId()) : null;
+    }
+
+    private ShardConnection connection(Map<String, ShardConnection> connections, String shard, String serial)
+            throws IOException {
+        ShardConnection connection = connections.get(shard);
+        if (connection == null) {
+            connection = new ShardConnection(shard, serial);
+            connections.put(shard, connection);
+        }
+        return connection;
+    }
+
+    private List<String> fanOut(Map<String, ShardConnection> connections, String serial, String line,
+                                List<String> menu) throws IOException {
+        List<Future<List<String>>> replies = new ArrayList<>();
+        for (String shard : shards) {
+            ShardConnection connection = connection(connections, shard, serial);
+            replies.add(fanOut.submit(() -> connection.exchange(line)));
+        }
+
+        Set<List<String>> bodies = new LinkedHashSet<>();
+        for (Future<List<String>> reply : replies) {
+            try {
+                bodies.add(stripMenu(reply.get(), menu));
+            } catch (ExecutionException e) {
+                throw new IOException("Shard request failed: " + e.getCause().getMessage(), e.getCause());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while waiting for shards", e);
+            }
+        }
+        return merge(bodies, menu);
+    }
+
+    /**
+     * Relays the export body of the division's shard, or of every shard in turn, straight to the client and
+     * returns the summary added up over the shards, followed by the menu.
+     */
+    private List<String> export(Map<String, ShardConnection> connections, String serial, String line,
+                                String[] inputs, PrintWriter out) throws IOException {
+        List<String> targets = shards;
+        for (String filter : inputs) {
+            if (filter.startsWith("division=") && shardByDivision.containsKey(filter.substring(9))) {
+                targets = List.of(shardByDivision.get(filter.substring(9)));
+            }
+        }
+
+        long patients = 0;
+        long records = 0;
+        List<String> menu = List.of();
+        for (String shard : targets) {
+            List<String> tail = new ArrayList<>();
+            connection(connections, shard, serial).exchange(line, responseLine -> {
+                if (!tail.isEmpty() || EXPORT_SUMMARY.matcher(responseLine).matches()) {
+                    tail.add(responseLine);
+                } else {
+                    out.println(responseLine);
+                }
+            });
+            if (tail.isEmpty()) {
+                // Refused, e.g. an unknown filter; every shard would say the same
+                return List.of();
+            }
+            Matcher summary = EXPORT_SUMMARY.matcher(tail.get(0));
+            summary.matches();
+            patients += Long.parseLong(summary.group(1));
+            records += Long.parseLong(summary.group(2));
+            menu = tail.subList(1, tail.size());
+        }
+        List<String> response = new ArrayList<>();
+        response.add("Exported " + patients + " patients, " + records + " records");
+        response.addAll(menu);
+        return response;
+    }
+
+    private static List<String> stripMenu(List<String> response, List<String> menu) {
+        List<String> body = new ArrayList<>(response);
+        if (body.size() >= menu.size() && body.subList(body.size() - menu.size(), body.size()).equals(menu)) {
+            body.subList(body.size() - menu.size(), body.size()).clear();
+        }
+        while (!body.isEmpty() && body.get(body.size() - 1).isEmpty()) {
+            body.remove(body.size() - 1);
+        }
+        return body;
+    }
+
+    private static List<String> merge(Set<List<String>> bodies, List<String> menu) {
+        List<List<String>> answers = new ArrayList<>();
+        for (List<String> body : bodies) {
+            if (!(body.size() == 1 && EMPTY_RESULTS.contains(body.get(0)))) {
+                answers.add(body);
+            }
+        }
+        if (answers.isEmpty()) {
+            answers.add(bodies.iterator().next());
+        }
+
+        List<String> merged = new ArrayList<>();
+        for (List<String> answer : answers) {
+            merged.addAll(answer);
+        }
+        merged.add("");
+        merged.addAll(menu);
+        return merged;
+    }
+
+    /**
+     * A connection to one shard on behalf of one user.
+     */
+    private class ShardConnection implements AutoCloseable {
+        private final SSLSocket socket;
+        private final BufferedReader in;
+        private final PrintWriter out;
+
+        ShardConnection(String address, String serial) throws IOException {
+            int separator = address.lastIndexOf(':');
+            this.socket = (SSLSocket) sslContext.getSocketFactory()
+                    .createSocket(address.substring(0, separator), Integer.parseInt(address.substring(separator + 1)));
+            this.in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+            this.out = new PrintWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8));
+            out.println(ACT_AS_COMMAND + " " + serial);
+            out.flush();
+        }
+
+        /**
+         * Sends one command and returns the response lines, without the terminator.
+         */
+        synchronized List<String> exchange(String line) throws IOException {
+            List<String> response = new ArrayList<>();
+            exchange(line, response::add);
+            return response;
+        }
+
+        /**
+         * Sends one command and hands each response line, without the terminator, to the consumer as it arrives.
+         */
+        synchronized void exchange(String line, Consumer<String> lines) throws IOException {
+            out.println(line);
+            out.flush();
+            String responseLine;
+            while ((responseLine = in.readLine()) != null && !responseLine.equals(END_OF_MESSAGE)) {
+                lines.accept(responseLine);
+            }
+            if (responseLine == null) {
+                throw new IOException("Shard closed the connection");
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            socket.close();
+        }
+    }
+}
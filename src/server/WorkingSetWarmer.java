@@ -0,0 +1,82 @@
+package server;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import entities.Patient;
+import entities.Person;
+import util.AccessPolicy;
+import util.PatientRecords;
+import util.PatientRecordsManager;
+import util.RenderedRecords;
+
+/**
+ * Prepares a doctor's or nurse's first reads right after they log in, since sessions nearly always list their
+ * patients and then read some of them. In the background it renders the records of the person's patients and
+ * looks up the person's grants, so the reads take both from memory.
+ *
+ * <p>One thread does the work at a time. Log-ins are dropped when too many are waiting, as warming is only a
+ * head start.
+ */
+public class WorkingSetWarmer {
+    private static final int QUEUE_SIZE = 64;
+
+    private final PatientRecordsManager recordsManager;
+    private final AccessPolicy policy;
+    private final RenderedRecords rendered;
+    private final ServerMetrics metrics;
+    private final int maxPatients;
+    private final ThreadPoolExecutor executor;
+
+    public WorkingSetWarmer(PatientRecordsManager recordsManager, AccessPolicy policy, RenderedRecords rendered,
+                            ServerMetrics metrics, int maxPatients) {
+        this.recordsManager = recordsManager;
+        this.policy = policy;
+        this.rendered = rendered;
+        this.metrics = metrics;
+        this.maxPatients = maxPatients;
+        this.executor = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(QUEUE_SIZE), runnable -> {
+                    Thread thread = new Thread(runnable, "working-set-warmer");
+                    thread.setDaemon(true);
+                    thread.setPriority(Thread.MIN_PRIORITY);
+                    return thread;
+                });
+    }
+
+    /**
+     * Starts warming for the person if they are staff.
+     */
+    public void loggedIn(Person person) {
+        AccessPolicy.Role role = AccessPolicy.Role.of(person);
+        if (role != AccessPolicy.Role.DOCTOR && role != AccessPolicy.Role.NURSE) {
+            return;
+        }
+        try {
+            executor.execute(() -> warm(person));
+        } catch (RejectedExecutionException e) {
+            metrics.warmUpDropped();
+        }
+    }
+
+    private void warm(Person person) {
+        int warmed = 0;
+        for (Patient patient : recordsManager.getPatientsForPerson(person)) {
+            if (warmed == maxPatients) {
+                break;
+            }
+            PatientRecords record = policy.associatedRecord(person, patient.getId());
+            if (record != null) {
+                rendered.warm(record);
+                warmed++;
+            }
+        }
+        metrics.warmedUp(warmed);
+    }
+
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+}
@@ -0,0 +1,166 @@
+package util;
+
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import entities.Doctor;
+import entities.Govt;
+import entities.Nurse;
+import entities.Patient;
+import entities.Person;
+
+/**
+ * Who may do what to which patient's records.
+ *
+ * <p>The rules are a table of role and action to scope, compiled once into an EnumMap, so changing the policy
+ * means changing {@link #RULES} rather than handler code. Checks for an {@link Scope#ASSOCIATED} scope need
+ * the caller's record of the patient. For each patient looked at, a map from staff id to record is built on
+ * first use and dropped when one of the patient's records is created or deleted, so a check is one lookup
+ * instead of a scan of the patient's records.
+ */
+public class AccessPolicy implements RecordListener {
+
+    public enum Role {
+        DOCTOR, NURSE, AGENCY, PATIENT, NONE;
+
+        public static Role of(Person person) {
+            if (person instanceof Doctor) {
+                return DOCTOR;
+            } else if (person instanceof Nurse) {
+                return NURSE;
+            } else if (person instanceof Govt) {
+                return AGENCY;
+            } else if (person instanceof Patient) {
+                return PATIENT;
+            }
+            return NONE;
+        }
+    }
+
+    public enum Action {
+        LIST_PATIENTS, LIST_DIVISION, READ, WRITE, CREATE, DELETE, SEARCH, SUBSCRIBE, EXPORT, IMPORT, STATS
+    }
+
+    public enum Scope {
+        ALL,         // any patient
+        ASSOCIATED,  // patients whose record names the caller as doctor or nurse
+        DIVISION,    // the caller's own division
+        SELF         // the caller's own records
+    }
+
+    private static final Rule[] RULES = {
+        new Rule(Role.DOCTOR, Action.LIST_PATIENTS, Scope.ASSOCIATED),
+        new Rule(Role.DOCTOR, Action.LIST_DIVISION, Scope.DIVISION),
+        new Rule(Role.DOCTOR, Action.READ, Scope.ASSOCIATED),
+        new Rule(Role.DOCTOR, Action.WRITE, Scope.ASSOCIATED),
+        new Rule(Role.DOCTOR, Action.CREATE, Scope.DIVISION),
+        new Rule(Role.DOCTOR, Action.SEARCH, Scope.ASSOCIATED),
+        new Rule(Role.DOCTOR, Action.SUBSCRIBE, Scope.ASSOCIATED),
+        new Rule(Role.NURSE, Action.LIST_PATIENTS, Scope.ASSOCIATED),
+        new Rule(Role.NURSE, Action.LIST_DIVISION, Scope.DIVISION),
+        new Rule(Role.NURSE, Action.READ, Scope.ASSOCIATED),
+        new Rule(Role.NURSE, Action.WRITE, Scope.ASSOCIATED),
+        new Rule(Role.NURSE, Action.SEARCH, Scope.ASSOCIATED),
+        new Rule(Role.NURSE, Action.SUBSCRIBE, Scope.ASSOCIATED),
+        new Rule(Role.AGENCY, Action.READ, Scope.ALL),
+        new Rule(Role.AGENCY, Action.DELETE, Scope.ALL),
+        new Rule(Role.AGENCY, Action.SEARCH, Scope.ALL),
+        new Rule(Role.AGENCY, Action.EXPORT, Scope.ALL),
+        new Rule(Role.AGENCY, Action.IMPORT, Scope.ALL),
+        new Rule(Role.AGENCY, Action.STATS, Scope.ALL),
+        new Rule(Role.PATIENT, Action.READ, Scope.SELF),
+    };
+    // Patients whose grants are cached; past this the cache starts over rather than tracking recency
+    private static final int MAX_CACHED_PATIENTS = 100_000;
+
+    private final Map<Role, Map<Action, Scope>> table = new EnumMap<>(Role.class);
+    private final PatientRecordsManager recordsManager;
+    // patient id -> staff id -> the record naming that staff member
+    private final ConcurrentHashMap<String, Map<String, PatientRecords>> grants = new ConcurrentHashMap<>();
+
+    public AccessPolicy(PatientRecordsManager recordsManager) {
+        this.recordsManager = recordsManager;
+        for (Role role : Role.values()) {
+            table.put(role, new EnumMap<>(Action.class));
+        }
+        for (Rule rule : RULES) {
+            table.get(rule.role).put(rule.action, rule.scope);
+        }
+        recordsManager.addListener(this);
+    }
+
+    /**
+     * The scope in which the person may perform the action, or null if not at all.
+     */
+    public Scope scope(Person person, Action action) {
+        return table.get(Role.of(person)).get(action);
+    }
+
+    public boolean permits(Person person, Action action) {
+        return scope(person, action) != null;
+    }
+
+    /**
+     * The record of the patient naming the person as doctor or nurse, or null if there is none.
+     */
+    public PatientRecords associatedRecord(Person person, String patientId) {
+        if (patientId == null) {
+            return null;
+        }
+        Map<String, PatientRecords> patientGrants = grants.get(patientId);
+        if (patientGrants == null) {
+            if (grants.size() >= MAX_CACHED_PATIENTS) {
+                grants.clear();
+            }
+            // Built under the map's lock for this key, so an invalidation for the patient waits and then
+            // removes it, and a build after the invalidation sees the changed records
+            patientGrants = grants.computeIfAbsent(patientId, this::buildGrants);
+        }
+        return patientGrants.get(person.getId());
+    }
+
+    private Map<String, PatientRecords> buildGrants(String patientId) {
+        List<PatientRecords> records = recordsManager.getRecords(patientId);
+        if (records == null || records.isEmpty()) {
+            return Collections.emptyMap();
+        }
+        Map<String, PatientRecords> patientGrants = new HashMap<>();
+        for (PatientRecords record : records) {
+            // The first record naming someone wins, as in PatientRecordsManager.getRecord
+            patientGrants.putIfAbsent(record.getDoctorId(), record);
+            patientGrants.putIfAbsent(record.getNurseId(), record);
+        }
+        return patientGrants;
+    }
+
+    @Override
+    public void recordCreated(PatientRecords record) {
+        grants.remove(record.getPatientId());
+    }
+
+    @Override
+    public void entryAdded(PatientRecords record, int entryIndex) {
+        // Entries do not change who may access the record
+    }
+
+    @Override
+    public void recordsDeleted(String patientId, List<PatientRecords> removed) {
+        grants.remove(patientId);
+    }
+
+    private static class Rule {
+        final Role role;
+        final Action action;
+        final Scope scope;
+
+        Rule(Role role, Action action, Scope scope) {
+            this.role = role;
+            this.action = action;
+            this.scope = scope;
+        }
+    }
+}
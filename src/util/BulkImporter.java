@@ -0,0 +1,555 @@
+package util;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+import entities.Division;
+import entities.Doctor;
+import entities.Nurse;
+import entities.Patient;
+import entities.Person;
+
+/**
+ * Loads persons or records in bulk from a file, instead of one create and one write command per entry.
+ *
+ * <p>The file is read as a stream and cut into batches of whole rows. Each batch is checked on the fork-join
+ * pool while the batches before it are written, and batches are written one at a time in file order: the
+ * records of a batch are created under one hold of the manager's lock, and each record's entries are appended
+ * under one hold of its locks. Everything goes through the manager, so indexes, subscribers, checkpoints and
+ * replicas see the imported records like any others. Rows that do not pass are listed with their line number
+ * and reason in a file next to the input, ending in ".rejects".
+ */
+public class BulkImporter {
+
+    public enum Format {
+        PERSONS,  // the person file format: optional "id:name" division lines up to "---", then person lines
+        RECORDS,  // the records file format: patient id, "Doctor=..,Nurse=.." headers with their entries, "---"
+        CSV       // patient_id,doctor_id,nurse_id,date,entry; an empty date and entry only creates the record
+    }
+
+    /**
+     * Told of the counts after each batch is written; returning false stops the import there.
+     */
+    public interface Progress {
+        boolean report(Result soFar);
+    }
+
+    public static final String REJECTS_SUFFIX = ".rejects";
+    // Data lines per batch, so a batch is worth a task without holding the writer up for long
+    private static final int BATCH_LINES = 2000;
+    // Batches checked ahead of the one being written
+    private static final int WINDOW = Math.max(2, 2 * ForkJoinPool.getCommonPoolParallelism());
+    private static final String DIVISION_SEPARATOR = "---";
+    private static final String CSV_HEADER = "patient_id";
+    private static final String DOCTOR_PREFIX = "Doctor=";
+    private static final String NURSE_PREFIX = "Nurse=";
+
+    private final PersonRepository personRepo;
+    private final PatientRecordsManager recordsManager;
+    // One import at a time: batches are written in file order, which two imports would interleave
+    private final ReentrantLock running = new ReentrantLock();
+
+    public BulkImporter(PersonRepository personRepo, PatientRecordsManager recordsManager) {
+        this.personRepo = personRepo;
+        this.recordsManager = recordsManager;
+    }
+
+    /**
+     * Imports the file, replacing the rejects file of an earlier import of it.
+     *
+     * @throws IllegalStateException if another import is running.
+     */
+    public Result importFile(Path file, Format format, Progress progress) throws IOException {
+        if (!running.tryLock()) {
+            throw new IllegalStateException("Another import is running");
+        }
+        try {
+            Path rejects = file.resolveSibling(file.getFileName() + REJECTS_SUFFIX);
+            Files.deleteIfExists(rejects);
+            try (Run run = new Run(format, rejects, progress);
+                 BufferedReader reader = Files.newBufferedReader(file, Charset.defaultCharset())) {
+                run.read(reader);
+                return run.result;
+            }
+        } finally {
+            running.unlock();
+        }
+    }
+
+    /**
+     * Counts of an import, so far or in total. A row is a data line: a division, a person, a record header,
+     * an entry or a CSV line.
+     */
+    public static class Result {
+        private final long startedNanos = System.nanoTime();
+        private long rows;
+        private long rejected;
+        private long divisions;
+        private long persons;
+        private long records;
+        private long entries;
+        private long elapsedNanos;
+        private boolean completed;
+
+        public long getRows() {
+            return rows;
+        }
+
+        public long getRejected() {
+            return rejected;
+        }
+
+        public long getEntries() {
+            return entries;
+        }
+
+        /**
+         * Whether the whole file was read, rather than stopped by the progress callback.
+         */
+        public boolean isCompleted() {
+            return completed;
+        }
+
+        public long getRowsPerSecond() {
+            return elapsedNanos == 0 ? 0 : rows * TimeUnit.SECONDS.toNanos(1) / elapsedNanos;
+        }
+
+        @Override
+        public String toString() {
+            return rows + " rows (" + rejected + " rejected) in " + String.format("%.1f", elapsedNanos / 1e9)
+                    + " s, " + getRowsPerSecond() + " rows/s: " + divisions + " divisions, " + persons
+                    + " persons, " + records + " records, " + entries + " entries";
+        }
+    }
+
+    /**
+     * A line with a line number, rejected once a reason is set.
+     */
+    abstract static class Row {
+        final long line;
+        final String text;
+        String reason;
+
+        Row(long line, String text) {
+            this.line = line;
+            this.text = text;
+        }
+
+        void reject(String reason) {
+            if (this.reason == null) {
+                this.reason = reason;
+            }
+        }
+    }
+
+    static class PersonRow extends Row {
+        BigInteger serial;
+        Person person;
+
+        PersonRow(long line, String text) {
+            super(line, text);
+        }
+    }
+
+    static class EntryRow extends Row {
+        int epochDay;
+        String entry;
+
+        EntryRow(long line, String text) {
+            super(line, text);
+        }
+    }
+
+    /**
+     * A record header and the entries that follow it, set with the record once it is found or created.
+     */
+    static class RecordRow extends Row {
+        final List<EntryRow> entries = new ArrayList<>();
+        String patientId;
+        String doctorId;
+        String nurseId;
+        Person doctor;
+        PatientRecords record;
+        boolean created;
+
+        RecordRow(long line, String text) {
+            super(line, text);
+        }
+    }
+
+    private static class Batch {
+        final List<Row> rows = new ArrayList<>();
+        int lines;
+    }
+
+    /**
+     * Checks one row against the persons as they were when its batch was checked. Only the writer, which runs
+     * the batches in order, checks what depends on earlier rows of the file.
+     */
+    private void check(Row row) {
+        if (row instanceof PersonRow) {
+            checkPerson((PersonRow) row);
+        } else {
+            checkRecord((RecordRow) row);
+        }
+    }
+
+    private void checkPerson(PersonRow row) {
+        String[] fields = row.text.split(":");
+        if (fields.length < 5) {
+            row.reject("expected serial:type:division:id:name[:info]");
+            return;
+        }
+        try {
+            row.serial = new BigInteger(fields[0].trim());
+        } catch (NumberFormatException e) {
+            row.reject("invalid serial number " + fields[0].trim());
+            return;
+        }
+        String type = fields[1].trim();
+        String divisionId = fields[2].trim();
+        String id = fields[3].trim();
+        String info = fields.length > 5 ? fields[5].trim() : "";
+        Division division = personRepo.getDivisionFromId(divisionId);
+        if (!type.matches("Nurse|Doctor|Patient|GovernmentAgency")) {
+            row.reject("unknown person type " + type);
+        } else if (division == null && !type.equals("GovernmentAgency")) {
+            row.reject("unknown division " + divisionId);
+        } else if (id.isEmpty()) {
+            row.reject("missing id");
+        } else if (type.equals("Patient") && info.isEmpty()) {
+            row.reject("missing doctor id of patient");
+        } else {
+            row.person = personRepo.createPerson(type, fields[4].trim(), division, id, info);
+        }
+    }
+
+    private void checkRecord(RecordRow row) {
+        Person patient = personRepo.getPersonFromId(row.patientId);
+        Person doctor = personRepo.getPersonFromId(row.doctorId);
+        Person nurse = personRepo.getPersonFromId(row.nurseId);
+        if (!(patient instanceof Patient)) {
+            row.reject("unknown patient " + row.patientId);
+        } else if (!(doctor instanceof Doctor)) {
+            row.reject("unknown doctor " + row.doctorId);
+        } else if (!(nurse instanceof Nurse)) {
+            row.reject("unknown nurse " + row.nurseId);
+        } else if (!patient.getDivision().equals(doctor.getDivision())
+                || !nurse.getDivision().equals(doctor.getDivision())) {
+            row.reject("patient, doctor and nurse are not all in division " + doctor.getDivision().getId());
+        } else if (!recordsManager.keepsDivision(doctor.getDivision().getId())) {
+            row.reject("division " + doctor.getDivision().getId() + " is not kept by this server");
+        }
+        row.doctor = doctor;
+        for (EntryRow entry : row.entries) {
+            int colon = entry.text.indexOf(':');
+            entry.epochDay = colon < 0 ? PatientRecordEntry.NO_DATE
+                    : PatientRecordEntry.toEpochDay(entry.text.substring(0, colon));
+            if (entry.epochDay == PatientRecordEntry.NO_DATE) {
+                entry.reject("expected yyyy-MM-dd:entry");
+            } else {
+                entry.entry = entry.text.substring(colon + 1);
+            }
+            if (entry.reason != null && entry.line == row.line) {
+                // A CSV line is created whole or not at all
+                row.reject(entry.reason);
+            }
+        }
+    }
+
+    /**
+     * One import: the reader's place in the file, the batches being checked and the counts.
+     */
+    private class Run implements AutoCloseable {
+        private final Format format;
+        private final Path rejectsFile;
+        private final Progress progress;
+        private final Result result = new Result();
+        private final Deque<ForkJoinTask<Batch>> window = new ArrayDeque<>();
+        private final List<Division> newDivisions = new ArrayList<>();
+        private BufferedWriter rejects;
+        private Batch batch = new Batch();
+        private long lineNumber;
+        // PERSONS: still in the division section; RECORDS: the patient and record being read
+        private boolean inDivisions = true;
+        private String patientId;
+        private RecordRow record;
+        private boolean stopped;
+
+        Run(Format format, Path rejectsFile, Progress progress) {
+            this.format = format;
+            this.rejectsFile = rejectsFile;
+            this.progress = progress;
+        }
+
+        void read(BufferedReader reader) throws IOException {
+            String line;
+            while (!stopped && (line = reader.readLine()) != null) {
+                lineNumber++;
+                if (line.isBlank()) {
+                    continue;
+                }
+                switch (format) {
+                    case PERSONS:
+                        readPerson(line.trim());
+                        break;
+                    case RECORDS:
+                        readRecordLine(line);
+                        break;
+                    default:
+                        readCsv(line);
+                        break;
+                }
+            }
+            if (!stopped) {
+                addDivisions();
+                submit();
+            }
+            while (!window.isEmpty()) {
+                if (stopped) {
+                    window.poll().cancel(false);
+                } else {
+                    write(window.poll().join());
+                }
+            }
+            result.completed = !stopped;
+            result.elapsedNanos = System.nanoTime() - result.startedNanos;
+        }
+
+        private void readPerson(String line) throws IOException {
+            if (inDivisions) {
+                String[] fields = line.split(":");
+                if (line.equals(DIVISION_SEPARATOR)) {
+                    addDivisions();
+                    return;
+                } else if (fields.length == 2) {
+                    readDivision(fields);
+                    return;
+                }
+                // No division section, persons start straight away
+                addDivisions();
+            }
+            add(new PersonRow(lineNumber, line), 1);
+        }
+
+        private void readDivision(String[] fields) throws IOException {
+            result.rows++;
+            String id = fields[0].trim();
+            String name = fields[1].trim();
+            Division existing = personRepo.getDivisionFromId(id);
+            boolean repeated = newDivisions.stream().anyMatch(division -> division.getId().equals(id));
+            if (id.isEmpty() || repeated || existing != null && !existing.getName().equals(name)) {
+                reject(lineNumber, "division " + id + " is already defined", fields[0] + ":" + fields[1]);
+            } else if (existing == null) {
+                newDivisions.add(new Division(id, name));
+            }
+        }
+
+        // Persons are checked against the divisions, so new ones are added before the first person batch
+        private void addDivisions() throws IOException {
+            if (inDivisions) {
+                inDivisions = false;
+                personRepo.addDivisions(newDivisions);
+                result.divisions += newDivisions.size();
+            }
+        }
+
+        private void readRecordLine(String line) throws IOException {
+            if (patientId == null) {
+                patientId = IdDictionary.canonical(line.trim());
+            } else if (line.equals(DIVISION_SEPARATOR)) {
+                patientId = null;
+                record = null;
+            } else if (line.startsWith(DOCTOR_PREFIX)) {
+                record = new RecordRow(lineNumber, line);
+                record.patientId = patientId;
+                String[] parts = line.split(",");
+                if (parts.length != 2 || !parts[1].startsWith(NURSE_PREFIX)) {
+                    record.reject("expected Doctor={id},Nurse={id}");
+                    record.doctorId = "";
+                    record.nurseId = "";
+                } else {
+                    record.doctorId = parts[0].substring(DOCTOR_PREFIX.length());
+                    record.nurseId = parts[1].substring(NURSE_PREFIX.length());
+                }
+                add(record, 1);
+            } else if (record == null) {
+                result.rows++;
+                reject(lineNumber, "entry before any Doctor= header", line);
+            } else {
+                record.entries.add(new EntryRow(lineNumber, line));
+                batch.lines++;
+            }
+        }
+
+        private void readCsv(String line) throws IOException {
+            String[] fields = line.split(",", 5);
+            if (lineNumber == 1 && fields[0].trim().equals(CSV_HEADER)) {
+                return;
+            }
+            RecordRow row = new RecordRow(lineNumber, line);
+            if (fields.length < 3 || fields.length == 4) {
+                row.reject("expected patient_id,doctor_id,nurse_id[,date,entry]");
+                row.patientId = "";
+                row.doctorId = "";
+                row.nurseId = "";
+            } else {
+                row.patientId = IdDictionary.canonical(fields[0].trim());
+                row.doctorId = fields[1].trim();
+                row.nurseId = fields[2].trim();
+                if (fields.length == 5 && !(fields[3].isBlank() && fields[4].isEmpty())) {
+                    // Kept in the records file form, and rejected as that line if the date is not a date
+                    row.entries.add(new EntryRow(lineNumber, fields[3].trim() + ":" + fields[4]));
+                }
+            }
+            // A CSV line is one row, whatever it holds
+            add(row, 0);
+        }
+
+        private void add(Row row, int lines) throws IOException {
+            // Records are never split, so a batch ends only before the next one
+            if (batch.lines >= BATCH_LINES) {
+                submit();
+            }
+            batch.rows.add(row);
+            batch.lines += Math.max(1, lines);
+        }
+
+        private void submit() throws IOException {
+            Batch submitted = batch;
+            batch = new Batch();
+            if (submitted.rows.isEmpty()) {
+                return;
+            }
+            window.add(ForkJoinPool.commonPool().submit(() -> {
+                for (Row row : submitted.rows) {
+                    check(row);
+                }
+                return submitted;
+            }));
+            if (window.size() >= WINDOW) {
+                write(window.poll().join());
+            }
+        }
+
+        private void write(Batch checked) throws IOException {
+            if (format == Format.PERSONS) {
+                writePersons(checked);
+            } else {
+                writeRecords(checked);
+            }
+            if (progress != null && !progress.report(result)) {
+                stopped = true;
+            }
+        }
+
+        private void writePersons(Batch checked) throws IOException {
+            Map<BigInteger, Person> added = new LinkedHashMap<>();
+            Set<String> addedIds = new HashSet<>();
+            List<String> lines = new ArrayList<>();
+            for (Row row : checked.rows) {
+                PersonRow personRow = (PersonRow) row;
+                result.rows++;
+                if (personRow.reason == null) {
+                    Person person = personRow.person;
+                    if (personRepo.getPersonFromSerialNumber(personRow.serial) != null
+                            || added.containsKey(personRow.serial)) {
+                        personRow.reject("serial number " + personRow.serial + " is taken");
+                    } else if (personRepo.getPersonFromId(person.getId()) != null || !addedIds.add(person.getId())) {
+                        personRow.reject("id " + person.getId() + " is taken");
+                    }
+                }
+                if (personRow.reason != null) {
+                    reject(personRow);
+                    continue;
+                }
+                added.put(personRow.serial, personRow.person);
+                lines.add(personRow.text);
+            }
+            personRepo.addPersons(added, lines);
+            result.persons += added.size();
+        }
+
+        private void writeRecords(Batch checked) throws IOException {
+            List<RecordRow> valid = new ArrayList<>();
+            for (Row row : checked.rows) {
+                RecordRow recordRow = (RecordRow) row;
+                if (recordRow.reason == null) {
+                    valid.add(recordRow);
+                }
+            }
+            recordsManager.createRecords(valid);
+
+            for (Row row : checked.rows) {
+                RecordRow recordRow = (RecordRow) row;
+                // In the records format the header is a row of its own; a CSV line is one row with its entry
+                result.rows += format == Format.CSV ? 1 : 1 + recordRow.entries.size();
+                if (recordRow.reason != null) {
+                    reject(recordRow);
+                    if (format == Format.RECORDS) {
+                        result.rejected += recordRow.entries.size();
+                    }
+                    continue;
+                }
+                if (recordRow.created) {
+                    result.records++;
+                }
+                List<String> entries = new ArrayList<>();
+                int[] epochDays = new int[recordRow.entries.size()];
+                for (EntryRow entry : recordRow.entries) {
+                    if (entry.reason != null) {
+                        reject(entry);
+                        continue;
+                    }
+                    epochDays[entries.size()] = entry.epochDay;
+                    entries.add(entry.entry);
+                }
+                if (!entries.isEmpty()) {
+                    recordsManager.addEntries(recordRow.record, entries, epochDays);
+                    result.entries += entries.size();
+                }
+            }
+        }
+
+        private void reject(Row row) throws IOException {
+            String reason = row.reason;
+            if (row instanceof RecordRow && format == Format.RECORDS && !((RecordRow) row).entries.isEmpty()) {
+                reason += ", with its " + ((RecordRow) row).entries.size() + " entries";
+            }
+            reject(row.line, reason, row.text);
+        }
+
+        private void reject(long line, String reason, String text) throws IOException {
+            result.rejected++;
+            if (rejects == null) {
+                rejects = Files.newBufferedWriter(rejectsFile, Charset.defaultCharset());
+            }
+            rejects.write("line " + line + ": " + reason + ": " + text);
+            rejects.newLine();
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (rejects != null) {
+                rejects.close();
+            }
+        }
+    }
+}
@@ -1,13 +1,19 @@
 package util;
 
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.security.cert.X509Certificate;
-import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
 
+import entities.Division;
 import entities.Doctor;
-import entities.Govt;
-import entities.Nurse;
 import entities.Patient;
 import entities.Person;
+import util.AccessPolicy.Action;
+import util.AccessPolicy.Scope;
 
 public class ClientCommandHandler {
 
@@ -17,208 +23,631 @@ public class ClientCommandHandler {
     public static final String WRITE_PATIENT_RECORD = "4";
     public static final String CREATE_PATIENT_RECORD = "5";
     public static final String DELETE_PATIENT_RECORD = "6";
+    public static final String SEARCH_PATIENT_RECORDS = "7";
+    public static final String SUBSCRIBE_PATIENT_RECORD = "8";
+    public static final String EXPORT_PATIENT_RECORDS = "9";
+    public static final String IMPORT_FILE = "10";
+    public static final String DIVISION_STATS = "11";
+    public static final String VERSION_PREFIX = "#VERSION ";
+
+    private static final int DIVISION_PAGE_SIZE = 1000;
+    private static final int DIVISION_CHUNK_SIZE = 100;
+    private static final int SEARCH_RESULT_LIMIT = 100;
+    private static final int EXPORT_CHUNK_PATIENTS = 100;
+    private static final long IMPORT_PROGRESS_ROWS = 100_000;
+    private static final int DEFAULT_STATS_DAYS = 7;
+    private static final int MAX_STATS_DAYS = 90;
+    private static final String SINCE_PREFIX = "since=";
+
+    // Menus are fixed per role, so they are built once rather than on every response
+    private static final String QUIT_OPTION = "Enter 'quit' to log off\n";
+    private static final String STAFF_OPTIONS = "Enter 1 : list patient records\n"
+            + "Enter 2 : and optionally {last patient id} to list division records (e.g 2 or 2 5)\n"
+            + "Enter 3 : and {patient's id} to read a patient record (e.g 3 5)\n"
+            + "Enter 4 : and {patient id} to write a patient record (e.g 4 5)\n"
+            + "Enter 7 : and {words} to search your patients' records (e.g 7 heart)\n"
+            + "Enter 8 : and {patient id} to be sent new entries as they are written, add 'off' to stop (e.g 8 5)\n";
+    private static final String NURSE_OPTIONS = STAFF_OPTIONS + QUIT_OPTION;
+    private static final String DOCTOR_OPTIONS = STAFF_OPTIONS
+            + "Enter 5 : and {patient id} and {nurse id} to create a patient record (e.g 5 6 2)\n"
+            + QUIT_OPTION;
+    private static final String GOVT_OPTIONS = "Enter 3 : and {patient id} to read a patient record (e.g: 3 5)\n"
+            + "Enter 6 : and {patient id} to delete a patient record (e.g 6 5)\n"
+            + "Enter 7 : and {words} to search all patient records (e.g 7 heart)\n"
+            + "Enter 9 : and optionally division={id} from={yyyy-MM-dd} to={yyyy-MM-dd} doctor={id}"
+            + " to export patient records (e.g 9 division=1 from=2024-01-01)\n"
+            + "Enter 10 : and {persons|records|csv} and {file name} to import a file from the import directory"
+            + " (e.g 10 csv onboarding.csv)\n"
+            + "Enter 11 : and optionally {days} to show division statistics, with entries of each of the last days"
+            + " (e.g 11 14)\n"
+            + QUIT_OPTION;
+    private static final String PATIENT_OPTIONS = "Enter 3: to read your patient record\n" + QUIT_OPTION;
 
     private final PersonRepository personRepo;
     private final PatientRecordsManager recordsManager;
     private final Logger logger;
+    private final EntrySearchIndex searchIndex;
+    private final AccessPolicy policy;
+    private Subscriptions subscriptions;
+    private BulkImporter importer;
+    private Path importDirectory;
+    private DivisionStats divisionStats;
+    private RenderedRecords rendered;
+    private RequestContext request;
 
     public ClientCommandHandler() {
         this.personRepo = new PersonRepository();
         this.recordsManager = new PatientRecordsManager(personRepo);
         this.logger = new Logger();
+        this.searchIndex = new EntrySearchIndex(recordsManager);
+        this.policy = new AccessPolicy(recordsManager);
+    }
+
+    /**
+     * Handler over stores shared with other connections.
+     */
+    public ClientCommandHandler(PersonRepository personRepo, PatientRecordsManager recordsManager,
+                                Logger logger, EntrySearchIndex searchIndex, AccessPolicy policy) {
+        this.personRepo = personRepo;
+        this.recordsManager = recordsManager;
+        this.logger = logger;
+        this.searchIndex = searchIndex;
+        this.policy = policy;
+    }
+
+    /**
+     * Enables the subscribe command for this connection.
+     */
+    public void setSubscriptions(Subscriptions subscriptions) {
+        this.subscriptions = subscriptions;
+    }
+
+    /**
+     * Enables the import command, for files in the directory.
+     */
+    public void setImporter(BulkImporter importer, Path importDirectory) {
+        this.importer = importer;
+        this.importDirectory = importDirectory;
+    }
+
+    /**
+     * Reads whole records from the rendered ones rather than from the store.
+     */
+    public void setRenderedRecords(RenderedRecords rendered) {
+        this.rendered = rendered;
+    }
+
+    /**
+     * Enables the statistics command.
+     */
+    public void setDivisionStats(DivisionStats divisionStats) {
+        this.divisionStats = divisionStats;
+    }
+
+    /**
+     * The request that the following commands belong to, named in their audit entries.
+     */
+    public void setRequest(RequestContext request) {
+        this.request = request;
     }
 
     public void save() {
         recordsManager.saveRecords();
     }
 
-    public String handleClientInput(String clientInput, Person person) {
+    /**
+     * Handles a command, writing the response into the sink as it is produced.
+     * The caller ends the response once this returns.
+     *
+     * @return true if the client is expected to send the text of a record entry next.
+     */
+    public boolean handleClientInput(String clientInput, Person person, ResponseSink sink) {
         String[] inputs = clientInput.trim().split("\\s+");
         String option = inputs.length > 0 ? inputs[0] : "";
         
         switch (option) {
             case LIST_PATIENT_RECORDS:
-                return handleListPatientRecords(person);
+                handleListPatientRecords(person, sink);
+                return false;
             case LIST_DIVISION_RECORDS:
-                return handleListDivisionRecords(person);
+                handleListDivisionRecords(inputs, person, sink);
+                return false;
             case READ_PATIENT_RECORD:
-                return handleReadPatientRecord(inputs, person);
+                handleReadPatientRecord(inputs, person, sink);
+                return false;
             case WRITE_PATIENT_RECORD:
-                return handleWritePatientRecord(inputs, person);
+                return handleWritePatientRecord(inputs, person, sink);
             case CREATE_PATIENT_RECORD:
-                return handleCreatePatientRecord(inputs, person);
+                handleCreatePatientRecord(inputs, person, sink);
+                return false;
             case DELETE_PATIENT_RECORD:
-                return handleDeletePatientRecord(inputs, person);
+                handleDeletePatientRecord(inputs, person, sink);
+                return false;
+            case SEARCH_PATIENT_RECORDS:
+                handleSearchPatientRecords(clientInput, person, sink);
+                return false;
+            case SUBSCRIBE_PATIENT_RECORD:
+                handleSubscribePatientRecord(inputs, person, sink);
+                return false;
+            case EXPORT_PATIENT_RECORDS:
+                handleExportPatientRecords(inputs, person, sink);
+                return false;
+            case IMPORT_FILE:
+                handleImportFile(inputs, person, sink);
+                return false;
+            case DIVISION_STATS:
+                handleDivisionStats(inputs, person, sink);
+                return false;
             case "quit":
-                return "Logged off\n";
+                sink.append("Logged off\n");
+                return false;
             default:
-                return listOptions(person);
+                sink.append(listOptions(person));
+                return false;
         }
     }
 
-    private String handleListPatientRecords(Person person) {
-        if (!(person instanceof Nurse || person instanceof Doctor)) {
-            return listOptions(person);
+    private void handleListPatientRecords(Person person, ResponseSink sink) {
+        if (!policy.permits(person, Action.LIST_PATIENTS)) {
+            sink.append(listOptions(person));
+            return;
         }
 
-        StringBuilder response = new StringBuilder("Name : ID\n");
+        sink.append("Name : ID\n");
         for (Patient patient : recordsManager.getPatientsForPerson(person)) {
-            response.append(patient).append("\n");
+            sink.append(patient.getName()).append(":").append(patient.getId()).append("\n");
         }
-        logger.log(person.getId(), person.getId(), "viewed associated patient records");
-        response.append("\n").append(listOptions(person));
-        return response.toString();
+        logger.log(request, person.getId(), person.getId(), "viewed associated patient records");
+        sink.append("\n").append(listOptions(person));
     }
 
-    private String handleListDivisionRecords(Person person) {
-        if (!(person instanceof Nurse || person instanceof Doctor)) {
-            return listOptions(person);
+    private void handleListDivisionRecords(String[] inputs, Person person, ResponseSink sink) {
+        if (!policy.permits(person, Action.LIST_DIVISION)) {
+            sink.append(listOptions(person));
+            return;
         }
 
-        StringBuilder response = new StringBuilder("Name:ID\n");
-        for (Patient patient : person.getDivision().getMembers()) {
-            response.append(patient).append("\n");
+        // Pages resume after the last patient id sent, so a page is never built whole in memory
+        String cursor = inputs.length > 1 ? inputs[1] : null;
+        Iterator<Patient> members = person.getDivision().getMembersAfter(cursor).iterator();
+        String lastId = null;
+        int listed = 0;
+
+        sink.append("Name:ID\n");
+        while (listed < DIVISION_PAGE_SIZE && members.hasNext()) {
+            Patient patient = members.next();
+            sink.append(patient.getName()).append(":").append(patient.getId()).append("\n");
+            lastId = patient.getId();
+            listed++;
+            if (listed % DIVISION_CHUNK_SIZE == 0 && !sink.flushChunk()) {
+                return;
+            }
         }
-        logger.log(person.getId(), person.getDivision().toString(), "viewed division patient records");
-        response.append("\n").append(listOptions(person));
-        return response.toString();
+        logger.log(request, person.getId(), person.getDivision().toString(), "viewed division patient records");
+
+        if (members.hasNext()) {
+            sink.append("More patients in division, enter 2 ").append(lastId).append(" for the next page\n");
+        }
+        sink.append("\n").append(listOptions(person));
     }
 
-    private String handleReadPatientRecord(String[] inputs, Person person) {
-        if (person instanceof Patient) {
-            return readOwnPatientRecord(person);
-        } else if (inputs.length > 1) {
-            String patientId = inputs[1];
-            if (person instanceof Nurse || person instanceof Doctor) {
-                return readPatientRecordForStaff(patientId, person);
-            } else if (person instanceof Govt) {
-                return readPatientRecordForAgency(patientId, person);
-            }
+    private void handleReadPatientRecord(String[] inputs, Person person, ResponseSink sink) {
+        Scope scope = policy.scope(person, Action.READ);
+        // A conditional read ends with since={version}; clients that send it get the version back
+        String since = null;
+        int arguments = inputs.length;
+        if (arguments > 1 && inputs[arguments - 1].startsWith(SINCE_PREFIX)) {
+            since = inputs[arguments - 1].substring(SINCE_PREFIX.length());
+            arguments--;
+        }
+
+        if (scope == Scope.SELF) {
+            readOwnPatientRecord(person, since, sink);
+        } else if (scope == Scope.ASSOCIATED && arguments > 1) {
+            readPatientRecordForStaff(inputs[1], person, since, sink);
+        } else if (scope == Scope.ALL && arguments > 1) {
+            readPatientRecordForAgency(inputs[1], person, since, sink);
+        } else {
+            sink.append(listOptions(person));
         }
-        return listOptions(person);
     }
 
-    private String readOwnPatientRecord(Person person) {
-        ArrayList<PatientRecords> records = recordsManager.getRecords(person.getId());
-        StringBuilder response = new StringBuilder();
+    private void readOwnPatientRecord(Person person, String since, ResponseSink sink) {
+        VersionedRecords read = readVersioned(person.getId(), since, sink);
 
-        if (records == null || records.isEmpty()) {
-            response.append("You don't have any record\n");
+        if (read.getRecords().isEmpty()) {
+            appendIfFull(read, "You don't have any record\n", sink);
         } else {
-            for (PatientRecords record : records) {
-                response.append(record).append("\n");
+            for (PatientRecords record : read.getRecords()) {
+                if (read.writeRecord(record, rendered, sink)) {
+                    sink.append("\n");
+                }
             }
         }
-        logger.log(person.getId(), person.getId(), "read patient record");
-        response.append("\n").append(listOptions(person));
-        return response.toString();
+        logger.log(request, person.getId(), person.getId(), "read patient record");
+        sink.append("\n").append(listOptions(person));
     }
 
-    private String readPatientRecordForStaff(String patientId, Person person) {
-        ArrayList<PatientRecords> records = recordsManager.getRecords(patientId);
-        StringBuilder response = new StringBuilder();
+    private void readPatientRecordForStaff(String patientId, Person person, String since, ResponseSink sink) {
+        VersionedRecords read = readVersioned(patientId, since, sink);
 
-        if (records == null || records.isEmpty()) {
-            response.append("Patient doesn't have any records\n");
+        if (read.getRecords().isEmpty()) {
+            appendIfFull(read, "Patient doesn't have any records\n", sink);
         } else {
-            response.append(recordsManager.getRecord(patientId, person.getId())).append("\n");
+            PatientRecords record = policy.associatedRecord(person, patientId);
+            if (record == null || !read.getRecords().contains(record)) {
+                appendIfFull(read, "null\n", sink);
+            } else if (read.writeRecord(record, rendered, sink)) {
+                sink.append("\n");
+            }
         }
-        logger.log(person.getId(), patientId, "accessed patient records");
-        response.append("\n").append(listOptions(person));
-        return response.toString();
+        logger.log(request, person.getId(), patientId, "accessed patient records");
+        sink.append("\n").append(listOptions(person));
     }
 
-    private String readPatientRecordForAgency(String patientId, Person person) {
-        ArrayList<PatientRecords> records = recordsManager.getRecords(patientId);
-        StringBuilder response = new StringBuilder();
+    private void readPatientRecordForAgency(String patientId, Person person, String since, ResponseSink sink) {
+        VersionedRecords read = readVersioned(patientId, since, sink);
 
-        if (records == null || records.isEmpty()) {
-            response.append("Patient doesn't have any records\n");
+        if (read.getRecords().isEmpty()) {
+            appendIfFull(read, "Patient doesn't have any records\n", sink);
         } else {
-            for (PatientRecords record : records) {
-                response.append(record).append("\n");
+            for (PatientRecords record : read.getRecords()) {
+                if (read.writeRecord(record, rendered, sink)) {
+                    sink.append("\n");
+                }
             }
         }
-        logger.log(person.getId(), patientId, "accessed patient records");
-        response.append("\n").append(listOptions(person));
-        return response.toString();
+        logger.log(request, person.getId(), patientId, "accessed patient records");
+        sink.append("\n").append(listOptions(person));
+    }
+
+    // Reads the records as of one version and, for a conditional read, starts the response with it
+    private VersionedRecords readVersioned(String patientId, String since, ResponseSink sink) {
+        VersionedRecords read = recordsManager.getRecordsSince(patientId, since);
+        if (since != null) {
+            sink.append(VERSION_PREFIX).append(read.getVersion()).append(" ")
+                .append(read.getChange().name()).append("\n");
+        }
+        return read;
     }
 
-    private String handleWritePatientRecord(String[] inputs, Person person) {
-        if (inputs.length <= 1 || !(person instanceof Nurse || person instanceof Doctor)) {
-            return listOptions(person);
+    private static void appendIfFull(VersionedRecords read, String text, ResponseSink sink) {
+        if (read.getChange() == VersionedRecords.Change.FULL) {
+            sink.append(text);
+        }
+    }
+
+    private boolean handleWritePatientRecord(String[] inputs, Person person, ResponseSink sink) {
+        if (inputs.length <= 1 || !policy.permits(person, Action.WRITE)) {
+            sink.append(listOptions(person));
+            return false;
         }
 
         String patientId = inputs[1];
-        if (recordsManager.getRecord(patientId, person.getId()) == null) {
-            return "Patient has no record associated with you\n\n" + listOptions(person);
+        if (policy.associatedRecord(person, patientId) == null) {
+            sink.append("Patient has no record associated with you\n\n").append(listOptions(person));
+            return false;
         }
-        return "Write information";
+        sink.append("Write information");
+        return true;
     }
 
-    private String handleCreatePatientRecord(String[] inputs, Person person) {
-        if (!(person instanceof Doctor) || inputs.length <= 2) {
-            return listOptions(person);
+    private void handleCreatePatientRecord(String[] inputs, Person person, ResponseSink sink) {
+        if (!policy.permits(person, Action.CREATE) || inputs.length <= 2) {
+            sink.append(listOptions(person));
+            return;
         }
 
         String patientId = inputs[1];
         String nurseId = inputs[2];
-        StringBuilder response = new StringBuilder();
 
         boolean isCreated = recordsManager.addRecord(patientId, (Doctor) person, nurseId);
         if (isCreated) {
-            response.append("Record for patient was successfully created\n");
-            logger.log(person.getId(), patientId, "created patient record");
+            sink.append("Record for patient was successfully created\n");
+            logger.log(request, person.getId(), patientId, "created patient record");
         } else {
-            response.append("Unable to create record for patient\n");
-            logger.log(person.getId(), patientId, "tried to create patient record");
+            sink.append("Unable to create record for patient\n");
+            logger.log(request, person.getId(), patientId, "tried to create patient record");
         }
-        response.append("\n").append(listOptions(person));
-        return response.toString();
+        sink.append("\n").append(listOptions(person));
     }
 
-    private String handleDeletePatientRecord(String[] inputs, Person person) {
-        if (inputs.length <= 1 || !(person instanceof Govt)) {
-            return listOptions(person);
+    private void handleDeletePatientRecord(String[] inputs, Person person, ResponseSink sink) {
+        if (inputs.length <= 1 || !policy.permits(person, Action.DELETE)) {
+            sink.append(listOptions(person));
+            return;
         }
 
         String patientId = inputs[1];
         recordsManager.deleteRecord(patientId);
-        logger.log(person.getId(), patientId, "deleted patient record");
-        return "Patient record was deleted\n\n" + listOptions(person);
+        logger.log(request, person.getId(), patientId, "deleted patient record");
+        sink.append("Patient record was deleted\n\n").append(listOptions(person));
     }
 
-    public String writeInformation(String patientId, String information, Person person) {
-        logger.log(person.getId(), patientId, "wrote to patient record");
-        PatientRecords record = recordsManager.getRecord(patientId, person.getId());
+    private void handleSearchPatientRecords(String clientInput, Person person, ResponseSink sink) {
+        Scope scope = policy.scope(person, Action.SEARCH);
+        String query = clientInput.trim().substring(SEARCH_PATIENT_RECORDS.length()).trim();
+        if (scope == null || query.isEmpty()) {
+            sink.append(listOptions(person));
+            return;
+        }
+
+        // Staff see the records they are on, the agency sees all
+        String staffId = scope == Scope.ASSOCIATED ? person.getId() : null;
+        List<PatientRecords> hits = searchIndex.search(query, staffId, SEARCH_RESULT_LIMIT);
+        List<String> terms = EntrySearchIndex.tokenize(query);
+
+        if (!searchIndex.isReady()) {
+            sink.append("Search index is still being built, results may be incomplete\n");
+        }
+        if (hits.isEmpty()) {
+            sink.append("No matching records\n");
+        }
+        for (PatientRecords record : hits) {
+            Person patient = personRepo.getPersonFromId(record.getPatientId());
+            sink.append(patient != null ? patient.getName() : "Unknown").append(":").append(record.getPatientId())
+                .append(" Doctor=").append(record.getDoctorId()).append(",Nurse=").append(record.getNurseId()).append("\n");
+            for (PatientRecordEntry entry : record.getEntries()) {
+                if (mentionsAny(entry.getEntry(), terms)) {
+                    sink.append("  ").append(entry.toString()).append("\n");
+                }
+            }
+        }
+        if (hits.size() == SEARCH_RESULT_LIMIT) {
+            sink.append("Showing the first ").append(Integer.toString(SEARCH_RESULT_LIMIT)).append(" records, refine the search for more\n");
+        }
+        logger.log(request, person.getId(), "\"" + query + "\"", "searched patient records");
+        sink.append("\n").append(listOptions(person));
+    }
+
+    private void handleSubscribePatientRecord(String[] inputs, Person person, ResponseSink sink) {
+        if (inputs.length <= 1 || !policy.permits(person, Action.SUBSCRIBE)) {
+            sink.append(listOptions(person));
+            return;
+        }
+        if (subscriptions == null) {
+            sink.append("Subscriptions are not available on this connection\n\n").append(listOptions(person));
+            return;
+        }
+
+        String patientId = inputs[1];
+        if (inputs.length > 2 && "off".equalsIgnoreCase(inputs[2])) {
+            subscriptions.unsubscribe(patientId);
+            sink.append("No longer sending new entries for patient ").append(patientId).append("\n\n");
+        } else if (policy.associatedRecord(person, patientId) == null) {
+            sink.append("Patient has no record associated with you\n\n");
+        } else {
+            subscriptions.subscribe(patientId);
+            logger.log(request, person.getId(), patientId, "subscribed to patient record");
+            sink.append("New entries for patient ").append(patientId).append(" will be sent as they are written\n\n");
+        }
+        sink.append(listOptions(person));
+    }
+
+    private void handleExportPatientRecords(String[] inputs, Person person, ResponseSink sink) {
+        if (!policy.permits(person, Action.EXPORT)) {
+            sink.append(listOptions(person));
+            return;
+        }
+
+        ExportFilter filter;
+        try {
+            filter = ExportFilter.parse(inputs, personRepo);
+        } catch (IllegalArgumentException e) {
+            sink.append(e.getMessage()).append("\n\n").append(listOptions(person));
+            return;
+        }
+
+        // Blocks in the records file format, sent a few patients at a time from a snapshot taken now
+        int[] exported = new int[2];
+        boolean completed;
+        try (RecordSnapshot snapshot = recordsManager.openSnapshot(filter.divisions)) {
+            completed = snapshot.scan((patientId, records) -> {
+                boolean headerWritten = false;
+                for (PatientRecords record : records) {
+                    if (filter.doctorId != null && !filter.doctorId.equals(record.getDoctorId())) {
+                        continue;
+                    }
+                    int count = snapshot.entryCount(record);
+                    if (filter.dated && record.countEntries(count, filter.fromDay, filter.toDay) == 0) {
+                        continue;
+                    }
+                    if (!headerWritten) {
+                        sink.append(patientId).append("\n");
+                        headerWritten = true;
+                    }
+                    sink.append("Doctor=").append(record.getDoctorId())
+                        .append(",Nurse=").append(record.getNurseId()).append("\n");
+                    record.writeEntries(sink, count, filter.fromDay, filter.toDay);
+                    exported[1]++;
+                }
+                if (!headerWritten) {
+                    return true;
+                }
+                sink.append("---\n");
+                exported[0]++;
+                return exported[0] % EXPORT_CHUNK_PATIENTS != 0 || sink.flushChunk();
+            });
+        }
+        logger.log(request, person.getId(), filter.toString(), completed ? "exported patient records" : "stopped exporting patient records");
+        if (completed) {
+            sink.append("Exported ").append(Integer.toString(exported[0])).append(" patients, ")
+                .append(Integer.toString(exported[1])).append(" records\n\n").append(listOptions(person));
+        }
+    }
+
+    private void handleImportFile(String[] inputs, Person person, ResponseSink sink) {
+        if (importer == null || inputs.length != 3 || !policy.permits(person, Action.IMPORT)) {
+            sink.append(listOptions(person));
+            return;
+        }
+
+        BulkImporter.Format format;
+        try {
+            format = BulkImporter.Format.valueOf(inputs[1].toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            sink.append("Imports are of persons, records or csv, not ").append(inputs[1]).append("\n\n")
+                .append(listOptions(person));
+            return;
+        }
+        // Only files put in the import directory, never a path the client makes up
+        String fileName = inputs[2];
+        Path file = importDirectory.resolve(fileName);
+        if (fileName.contains("/") || fileName.contains("\\") || fileName.startsWith(".") || !Files.isRegularFile(file)) {
+            sink.append("No file ").append(fileName).append(" in the import directory\n\n").append(listOptions(person));
+            return;
+        }
+
+        BulkImporter.Result result;
+        long[] reported = new long[1];
+        try {
+            result = importer.importFile(file, format, soFar -> {
+                if (soFar.getRows() - reported[0] < IMPORT_PROGRESS_ROWS) {
+                    return true;
+                }
+                reported[0] = soFar.getRows();
+                sink.append("Imported ").append(Long.toString(soFar.getRows())).append(" rows, ")
+                    .append(Long.toString(soFar.getRejected())).append(" rejected\n");
+                return sink.flushChunk();
+            });
+        } catch (IllegalStateException | IOException e) {
+            logger.log(request, person.getId(), fileName, "failed to import " + format.name().toLowerCase(Locale.ROOT));
+            sink.append("Import failed: ").append(e.getMessage()).append("\n\n").append(listOptions(person));
+            return;
+        }
+        logger.log(request, person.getId(), fileName, (result.isCompleted() ? "imported " : "stopped importing ")
+                   + format.name().toLowerCase(Locale.ROOT) + ": " + result);
+        if (result.isCompleted()) {
+            sink.append("Imported ").append(result.toString()).append("\n");
+            if (result.getRejected() > 0) {
+                sink.append("Rejected rows are listed in ").append(fileName).append(BulkImporter.REJECTS_SUFFIX).append("\n");
+            }
+            sink.append("\n").append(listOptions(person));
+        }
+    }
+
+    private void handleDivisionStats(String[] inputs, Person person, ResponseSink sink) {
+        if (divisionStats == null || inputs.length > 2 || !policy.permits(person, Action.STATS)) {
+            sink.append(listOptions(person));
+            return;
+        }
+        int days = DEFAULT_STATS_DAYS;
+        if (inputs.length == 2) {
+            try {
+                days = Integer.parseInt(inputs[1]);
+            } catch (NumberFormatException e) {
+                days = 0;
+            }
+            if (days < 1 || days > MAX_STATS_DAYS) {
+                sink.append("Statistics cover 1 to ").append(Integer.toString(MAX_STATS_DAYS)).append(" days\n\n")
+                    .append(listOptions(person));
+                return;
+            }
+        }
+        // Counts only, so unlike the other commands this is not an audit event
+        divisionStats.writeTo(sink, days);
+        sink.append("\n").append(listOptions(person));
+    }
+
+    private static boolean mentionsAny(String text, List<String> terms) {
+        String lowerText = text.toLowerCase(Locale.ROOT);
+        for (String term : terms) {
+            if (lowerText.contains(term)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public void writeInformation(String patientId, String information, Person person, ResponseSink sink) {
+        logger.log(request, person.getId(), patientId, "wrote to patient record");
+        PatientRecords record = policy.associatedRecord(person, patientId);
         if (record != null) {
-            record.addRecord(new PatientRecordEntry(information, Logger.getDate()));
+            recordsManager.addEntry(record, information, Logger.getEpochDay());
         }
-        return "Record was successfully written\n\n" + listOptions(person);
+        sink.append("Record was successfully written\n\n").append(listOptions(person));
     }
 
     public String listOptions(Person person) {
-        StringBuilder options = new StringBuilder();
-
-        if (person instanceof Nurse || person instanceof Doctor) {
-            options.append("Enter 1 : list patient records\n")
-                   .append("Enter 2 : list division records\n")
-                   .append("Enter 3 : and {patient's id} to read a patient record (e.g 3 5)\n")
-                   .append("Enter 4 : and {patient id} to write a patient record (e.g 4 5)\n");
+        switch (AccessPolicy.Role.of(person)) {
+            case DOCTOR:
+                return DOCTOR_OPTIONS;
+            case NURSE:
+                return NURSE_OPTIONS;
+            case AGENCY:
+                return GOVT_OPTIONS;
+            case PATIENT:
+                return PATIENT_OPTIONS;
+            default:
+                return QUIT_OPTION;
         }
-        if (person instanceof Doctor) {
-            options.append("Enter 5 : and {patient id} and {nurse id} to create a patient record (e.g 5 6 2)\n");
+    }
+
+    /**
+     * Filters of the export command, given as name=value words.
+     */
+    private static class ExportFilter {
+        final List<Division> divisions;
+        final String doctorId;
+        final int fromDay;
+        final int toDay;
+        final boolean dated;
+        private final String description;
+
+        private ExportFilter(List<Division> divisions, String doctorId, int fromDay, int toDay, String description) {
+            this.divisions = divisions;
+            this.doctorId = doctorId;
+            this.fromDay = fromDay;
+            this.toDay = toDay;
+            this.dated = fromDay != Integer.MIN_VALUE || toDay != Integer.MAX_VALUE;
+            this.description = description;
         }
-        if (person instanceof Govt) {
-            options.append("Enter 3 : and {patient id} to read a patient record (e.g: 3 5)\n")
-                   .append("Enter 6 : and {patient id} to delete a patient record (e.g 6 5)\n");
+
+        static ExportFilter parse(String[] inputs, PersonRepository personRepo) {
+            List<Division> divisions = personRepo.getDivisions();
+            String doctorId = null;
+            int fromDay = Integer.MIN_VALUE;
+            int toDay = Integer.MAX_VALUE;
+            for (int i = 1; i < inputs.length; i++) {
+                String[] filter = inputs[i].split("=", 2);
+                String value = filter.length > 1 ? filter[1] : "";
+                switch (filter[0]) {
+                    case "division":
+                        Division division = personRepo.getDivisionFromId(value);
+                        if (division == null) {
+                            throw new IllegalArgumentException("Unknown division " + value);
+                        }
+                        divisions = List.of(division);
+                        break;
+                    case "doctor":
+                        doctorId = value;
+                        break;
+                    case "from":
+                        fromDay = parseDay(value);
+                        break;
+                    case "to":
+                        toDay = parseDay(value);
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Unknown export filter " + inputs[i]);
+                }
+            }
+            String description = inputs.length > 1 ? String.join(" ", List.of(inputs).subList(1, inputs.length)) : "all";
+            return new ExportFilter(divisions, doctorId, fromDay, toDay, description);
         }
-        if (person instanceof Patient) {
-            options.append("Enter 3: to read your patient record\n");
+
+        private static int parseDay(String date) {
+            int epochDay = PatientRecordEntry.toEpochDay(date);
+            if (epochDay == PatientRecordEntry.NO_DATE) {
+                throw new IllegalArgumentException("Dates are written yyyy-MM-dd, not " + date);
+            }
+            return epochDay;
         }
 
-        options.append("Enter 'quit' to log off\n");
-        return options.toString();
+        @Override
+        public String toString() {
+            return description;
+        }
     }
 
     // Get person from certificate
@@ -0,0 +1,307 @@
+package util;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.SplittableRandom;
+
+/**
+ * Writes a synthetic ClientInfo, records and Logs file set for benchmarks and load tests.
+ *
+ * <p>Usage: {@code java util.DatasetGenerator <outputDir> [patients] [seed]}, with
+ * {@code -Dhospital.generator.divisions} and {@code -Dhospital.generator.logLines} to override the defaults.
+ *
+ * <p>The output is fully determined by the arguments. Every patient's division, doctor, nurse and history
+ * are derived from the seed and the patient's index alone, so files are streamed without holding the
+ * dataset in memory. Each record pairs a patient with a doctor and a nurse of the patient's own division,
+ * as {@code PatientRecordsManager} requires. History lengths follow a Pareto distribution: most records
+ * have a handful of entries, a few have thousands. The people the bundled certificates were issued to
+ * come first with their original serial numbers, so the existing keystores log in against generated data.
+ */
+public final class DatasetGenerator {
+    private static final String PREFIX = "hospital.generator.";
+    private static final String[] FIXTURE_DIVISIONS = {
+        "1:Department of Neurosurgery",
+        "2:Department of Infectious Diseases"
+    };
+    private static final String[] FIXTURE_PERSONS = {
+        "245215927046612996361436802170585149292361292407:Nurse:2:1:Nurse 1:",
+        "245215927046612996361436802170585149292361292408:Nurse:1:2:Nurse 2:",
+        "245215927046612996361436802170585149292361292404:Doctor:2:3:Doctor 1:",
+        "245215927046612996361436802170585149292361292406:Doctor:1:4:Doctor 2:",
+        "245215927046612996361436802170585149292361292409:Patient:2:5:Patient 1:3",
+        "245215927046612996361436802170585149292361292410:Patient:1:6:Patient 2:4",
+        "245215927046612996361436802170585149292361292411:GovernmentAgency::7:Government:"
+    };
+    private static final int FIRST_SYNTHETIC_ID = 8;
+    // Synthetic serial numbers are this plus the person id, far below the certificate serials above
+    private static final String SERIAL_PREFIX = "1000000000";
+    private static final int PATIENTS_PER_DOCTOR = 200;
+    private static final int PATIENTS_PER_NURSE = 100;
+    private static final double SECOND_RECORD_CHANCE = 0.15;
+    // Pareto shape and cap of the entries per record; a shape near 1 gives a long tail
+    private static final double HISTORY_SHAPE = 1.1;
+    private static final int MAX_ENTRIES = 5_000;
+    private static final int MAX_WORDS = 24;
+    private static final LocalDate FIRST_DAY = LocalDate.of(2015, 1, 1);
+    private static final int DAYS = 10 * 365;
+    private static final DateTimeFormatter LOG_TIME = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+    private static final String[] WORDS = {
+        "patient", "reports", "mild", "severe", "pain", "fever", "headache", "nausea", "stable", "improving",
+        "worsening", "prescribed", "ibuprofen", "paracetamol", "antibiotics", "insulin", "dose", "increased",
+        "reduced", "blood", "pressure", "elevated", "normal", "heart", "rate", "irregular", "scan", "mri",
+        "xray", "ordered", "results", "negative", "positive", "infection", "wound", "healing", "sutures",
+        "removed", "follow", "up", "in", "two", "weeks", "referred", "to", "cardiology", "neurology",
+        "discharged", "admitted", "observation", "overnight", "allergic", "reaction", "penicillin", "cough",
+        "shortness", "of", "breath", "dizziness", "fatigue", "sleep", "appetite", "good", "poor", "and", "no"
+    };
+
+    private final long seed;
+    private final long patients;
+    private final int divisions;
+    private final int doctorsPerDivision;
+    private final int nursesPerDivision;
+    private final long firstNurseId;
+    private final long agencyId;
+    private final long firstPatientId;
+
+    public DatasetGenerator(long patients, long seed, int divisions) {
+        this.seed = seed;
+        this.patients = patients;
+        this.divisions = Math.max(FIXTURE_DIVISIONS.length, divisions);
+        long perDivision = Math.max(1, patients / this.divisions);
+        this.doctorsPerDivision = (int) Math.max(1, perDivision / PATIENTS_PER_DOCTOR);
+        this.nursesPerDivision = (int) Math.max(1, perDivision / PATIENTS_PER_NURSE);
+        this.firstNurseId = FIRST_SYNTHETIC_ID + (long) this.divisions * doctorsPerDivision;
+        this.agencyId = firstNurseId + (long) this.divisions * nursesPerDivision;
+        this.firstPatientId = agencyId + 1;
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.err.println("Usage: java util.DatasetGenerator <outputDir> [patients] [seed]");
+            System.exit(1);
+        }
+        File outputDir = new File(args[0]);
+        long patients = args.length > 1 ? Long.parseLong(args[1]) : 100_000;
+        long seed = args.length > 2 ? Long.parseLong(args[2]) : 1;
+        int divisions = Integer.getInteger(PREFIX + "divisions", (int) Math.max(2, patients / 100_000));
+        long logLines = Long.getLong(PREFIX + "logLines", patients * 2);
+
+        if (!outputDir.isDirectory() && !outputDir.mkdirs()) {
+            throw new IOException("Cannot create " + outputDir);
+        }
+        DatasetGenerator generator = new DatasetGenerator(patients, seed, divisions);
+        long start = System.nanoTime();
+        generator.writeClientInfo(new File(outputDir, "ClientInfo"));
+        long entries = generator.writeRecords(new File(outputDir, "records"));
+        generator.writeLogs(new File(outputDir, "Logs"), logLines);
+        System.out.printf("Wrote %d patients, %d entries and %d log lines to %s in %d ms%n",
+                patients, entries, logLines, outputDir, (System.nanoTime() - start) / 1_000_000);
+    }
+
+    public void writeClientInfo(File file) throws IOException {
+        try (PrintWriter out = open(file)) {
+            for (String division : FIXTURE_DIVISIONS) {
+                out.println(division);
+            }
+            for (int division = FIXTURE_DIVISIONS.length + 1; division <= divisions; division++) {
+                out.println(division + ":" + divisionName(division));
+            }
+            out.println("---");
+
+            for (String person : FIXTURE_PERSONS) {
+                out.println(person);
+            }
+            for (int division = 1; division <= divisions; division++) {
+                for (int i = 0; i < doctorsPerDivision; i++) {
+                    long id = doctorId(division, i);
+                    out.println(serial(id) + ":Doctor:" + division + ":" + id + ":Doctor " + id + ":");
+                }
+                for (int i = 0; i < nursesPerDivision; i++) {
+                    long id = nurseId(division, i);
+                    out.println(serial(id) + ":Nurse:" + division + ":" + id + ":Nurse " + id + ":");
+                }
+            }
+            out.println(serial(agencyId) + ":GovernmentAgency::" + agencyId + ":Agency " + agencyId + ":");
+            for (long index = 0; index < patients; index++) {
+                Assignment patient = assignment(index);
+                long id = firstPatientId + index;
+                out.println(serial(id) + ":Patient:" + patient.division + ":" + id + ":Patient " + id + ":"
+                            + patient.doctor);
+            }
+        }
+    }
+
+    /**
+     * @return the number of entries written.
+     */
+    public long writeRecords(File file) throws IOException {
+        long entries = 0;
+        StringBuilder text = new StringBuilder();
+        try (PrintWriter out = open(file)) {
+            // The fixture patients keep their fixture doctor and nurse
+            entries += writeFixturePatient(out, "5", "3", "1", text);
+            entries += writeFixturePatient(out, "6", "4", "2", text);
+            for (long index = 0; index < patients; index++) {
+                Assignment patient = assignment(index);
+                SplittableRandom random = random(index, 1);
+                out.println(firstPatientId + index);
+                entries += writeRecord(out, patient.doctor, patient.nurse, random, text);
+                if (patient.secondDoctor >= 0) {
+                    entries += writeRecord(out, patient.secondDoctor, patient.secondNurse, random, text);
+                }
+                out.println("---");
+            }
+        }
+        return entries;
+    }
+
+    private int writeFixturePatient(PrintWriter out, String patientId, String doctorId, String nurseId,
+                                    StringBuilder text) {
+        out.println(patientId);
+        int entries = writeRecord(out, Long.parseLong(doctorId), Long.parseLong(nurseId),
+                                  random(-Long.parseLong(patientId), 1), text);
+        out.println("---");
+        return entries;
+    }
+
+    private int writeRecord(PrintWriter out, long doctor, long nurse, SplittableRandom random, StringBuilder text) {
+        out.println("Doctor=" + doctor + ",Nurse=" + nurse);
+        int entries = historyLength(random);
+        // Entries are in date order, a few days apart, starting anywhere in the covered decade
+        long day = FIRST_DAY.toEpochDay() + random.nextInt(DAYS);
+        for (int i = 0; i < entries; i++) {
+            day += random.nextInt(0, 15);
+            text.setLength(0);
+            text.append(LocalDate.ofEpochDay(day)).append(':');
+            appendWords(text, random);
+            out.println(text);
+        }
+        return entries;
+    }
+
+    /**
+     * Audit lines as the server writes them, in time order, each by a person allowed to do what it says.
+     */
+    public void writeLogs(File file, long lines) throws IOException {
+        SplittableRandom random = new SplittableRandom(seed);
+        LocalDateTime time = FIRST_DAY.plusDays(DAYS).atTime(8, 0);
+        StringBuilder words = new StringBuilder();
+        try (PrintWriter out = open(file)) {
+            for (long line = 0; line < lines && patients > 0; line++) {
+                time = time.plusSeconds(random.nextInt(1, 30));
+                long index = random.nextLong(patients);
+                long patientId = firstPatientId + index;
+                Assignment patient = assignment(index);
+                String editor;
+                String action;
+                String target = Long.toString(patientId);
+                int roll = random.nextInt(100);
+                if (roll < 20) {
+                    editor = Long.toString(patient.doctor);
+                    action = "accessed patient records";
+                } else if (roll < 40) {
+                    editor = Long.toString(patient.doctor);
+                    action = "wrote to patient record";
+                } else if (roll < 45) {
+                    editor = Long.toString(patient.doctor);
+                    action = "viewed associated patient records";
+                    target = editor;
+                } else if (roll < 65) {
+                    editor = Long.toString(patient.nurse);
+                    action = "accessed patient records";
+                } else if (roll < 75) {
+                    editor = Long.toString(patient.nurse);
+                    action = "wrote to patient record";
+                } else if (roll < 85) {
+                    editor = Long.toString(patient.nurse);
+                    action = "viewed division patient records";
+                    target = divisionName(patient.division);
+                } else if (roll < 95) {
+                    editor = target;
+                    action = "read patient record";
+                } else {
+                    editor = Long.toString(agencyId);
+                    action = "searched patient records";
+                    words.setLength(0);
+                    words.append('"').append(WORDS[random.nextInt(WORDS.length)]).append('"');
+                    target = words.toString();
+                }
+                out.println(time.format(LOG_TIME) + ": " + editor + " " + action + " for " + target);
+            }
+        }
+    }
+
+    private Assignment assignment(long index) {
+        SplittableRandom random = random(index, 0);
+        Assignment assignment = new Assignment();
+        assignment.division = 1 + random.nextInt(divisions);
+        int doctor = random.nextInt(doctorsPerDivision);
+        assignment.doctor = doctorId(assignment.division, doctor);
+        assignment.nurse = nurseId(assignment.division, random.nextInt(nursesPerDivision));
+        assignment.secondDoctor = -1;
+        if (doctorsPerDivision > 1 && random.nextDouble() < SECOND_RECORD_CHANCE) {
+            int second = (doctor + 1 + random.nextInt(doctorsPerDivision - 1)) % doctorsPerDivision;
+            assignment.secondDoctor = doctorId(assignment.division, second);
+            assignment.secondNurse = nurseId(assignment.division, random.nextInt(nursesPerDivision));
+        }
+        return assignment;
+    }
+
+    // Independent stream per patient and purpose, so any patient can be regenerated on its own
+    private SplittableRandom random(long index, int stream) {
+        return new SplittableRandom(seed * 0x9E3779B97F4A7C15L + index * 31 + stream);
+    }
+
+    private static int historyLength(SplittableRandom random) {
+        double pareto = Math.pow(1 - random.nextDouble(), -1 / HISTORY_SHAPE);
+        return (int) Math.min(MAX_ENTRIES, pareto - 1 + random.nextInt(3));
+    }
+
+    private static void appendWords(StringBuilder text, SplittableRandom random) {
+        int count = random.nextInt(3, MAX_WORDS);
+        for (int i = 0; i < count; i++) {
+            if (i > 0) {
+                text.append(' ');
+            }
+            text.append(WORDS[random.nextInt(WORDS.length)]);
+        }
+    }
+
+    private long doctorId(int division, int index) {
+        return FIRST_SYNTHETIC_ID + (long) (division - 1) * doctorsPerDivision + index;
+    }
+
+    private long nurseId(int division, int index) {
+        return firstNurseId + (long) (division - 1) * nursesPerDivision + index;
+    }
+
+    private static String divisionName(int division) {
+        if (division <= FIXTURE_DIVISIONS.length) {
+            return FIXTURE_DIVISIONS[division - 1].substring(FIXTURE_DIVISIONS[division - 1].indexOf(':') + 1);
+        }
+        return "Division " + division;
+    }
+
+    private static String serial(long id) {
+        return SERIAL_PREFIX + String.format("%020d", id);
+    }
+
+    private static PrintWriter open(File file) throws IOException {
+        return new PrintWriter(new BufferedWriter(new FileWriter(file), 1 << 16));
+    }
+
+    private static class Assignment {
+        int division;
+        long doctor;
+        long nurse;
+        long secondDoctor;
+        long secondNurse;
+    }
+}
@@ -0,0 +1,205 @@
+package util;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import entities.Division;
+import entities.Doctor;
+import entities.Nurse;
+import entities.Person;
+
+/**
+ * Per-division counts kept up to date as records change and audit entries are written, so reading them
+ * never scans the records or the audit log. The counts are taken from the records once, at start-up; staff
+ * active today are found by reading only today's part of the audit log. Record changes are counted while the
+ * patient's locks are held, in the order they were made.
+ */
+public class DivisionStats implements RecordListener, Logger.Listener {
+    // "yyyy-MM-dd HH:mm:ss: " before the editor's id in an audit line
+    private static final int AUDIT_EDITOR_OFFSET = 21;
+
+    private final PersonRepository personRepo;
+    private final PatientRecordsManager recordsManager;
+    private final Map<String, Counts> counts = new ConcurrentHashMap<>();
+    // The day the active staff sets are for; they start over on the first event of the next day
+    private volatile int activeDay;
+
+    public DivisionStats(PersonRepository personRepo, PatientRecordsManager recordsManager, Logger logger) {
+        this.personRepo = personRepo;
+        this.recordsManager = recordsManager;
+        this.activeDay = Logger.getEpochDay();
+        for (List<PatientRecords> records : recordsManager.getAllRecords()) {
+            for (PatientRecords record : records) {
+                recordCreated(record);
+            }
+        }
+        readActiveStaff(logger.getFilePath());
+        // Told under the patient's locks, so an entry added as its records are deleted is counted then taken off
+        recordsManager.addOrderedListener(this);
+        logger.addListener(this);
+    }
+
+    private static class Counts {
+        final LongAdder records = new LongAdder();
+        final LongAdder entries = new LongAdder();
+        final Map<Integer, LongAdder> entriesByDay = new ConcurrentHashMap<>();
+        final Set<String> activeStaff = ConcurrentHashMap.newKeySet();
+
+        void entries(int epochDay, int delta) {
+            entries.add(delta);
+            entriesByDay.computeIfAbsent(epochDay, day -> new LongAdder()).add(delta);
+        }
+    }
+
+    private Counts countsOf(Division division) {
+        return counts.computeIfAbsent(division.getId(), id -> new Counts());
+    }
+
+    @Override
+    public void recordCreated(PatientRecords record) {
+        // A record put in whole, as from a snapshot, comes with its entries
+        Counts division = countsOf(record.getDivision());
+        division.records.increment();
+        for (int i = 0; i < record.getEntryCount(); i++) {
+            division.entries(record.getEpochDay(i), 1);
+        }
+    }
+
+    @Override
+    public void entryAdded(PatientRecords record, int entryIndex) {
+        countsOf(record.getDivision()).entries(record.getEpochDay(entryIndex), 1);
+    }
+
+    @Override
+    public void recordsDeleted(String patientId, List<PatientRecords> removed) {
+        for (PatientRecords record : removed) {
+            Counts division = countsOf(record.getDivision());
+            division.records.decrement();
+            for (int i = 0; i < record.getEntryCount(); i++) {
+                division.entries(record.getEpochDay(i), -1);
+            }
+        }
+    }
+
+    @Override
+    public void logged(String editor, String patient, String action) {
+        staffActive(editor);
+    }
+
+    private void staffActive(String staffId) {
+        Person staff = personRepo.getPersonFromId(staffId);
+        if (!(staff instanceof Doctor || staff instanceof Nurse) || staff.getDivision() == null) {
+            return;
+        }
+        startDay();
+        countsOf(staff.getDivision()).activeStaff.add(staff.getId());
+    }
+
+    private void startDay() {
+        int today = Logger.getEpochDay();
+        if (today == activeDay) {
+            return;
+        }
+        synchronized (this) {
+            if (today != activeDay) {
+                for (Counts division : counts.values()) {
+                    division.activeStaff.clear();
+                }
+                activeDay = today;
+            }
+        }
+    }
+
+    /**
+     * Writes a line of counts for each division this server keeps, then its entries of each of the last
+     * {@code days} days up to today.
+     */
+    public void writeTo(ResponseSink sink, int days) {
+        startDay();
+        int today = Logger.getEpochDay();
+        for (Division division : personRepo.getDivisions()) {
+            if (!recordsManager.keepsDivision(division.getId())) {
+                continue;
+            }
+            Counts stats = countsOf(division);
+            sink.append("Division ").append(division.getId()).append(" (").append(division.getName()).append("): ")
+                .append(Integer.toString(division.getMemberCount())).append(" patients, ")
+                .append(Long.toString(stats.records.sum())).append(" records, ")
+                .append(Long.toString(stats.entries.sum())).append(" entries, ")
+                .append(Integer.toString(stats.activeStaff.size())).append(" staff active today\n");
+            sink.append("  entries by day:");
+            for (int day = today - days + 1; day <= today; day++) {
+                LongAdder entries = stats.entriesByDay.get(day);
+                sink.append(" ").append(PatientRecordEntry.formatEpochDay(day)).append("=")
+                    .append(Long.toString(entries == null ? 0 : entries.sum()));
+            }
+            sink.append("\n");
+        }
+    }
+
+    /**
+     * Marks the staff in today's audit entries as active. Entries are appended in time order, so the first of
+     * today's is found by bisecting the file on the date each line starts with.
+     */
+    private void readActiveStaff(String logFile) {
+        String today = PatientRecordEntry.formatEpochDay(activeDay);
+        long start;
+        try (RandomAccessFile file = new RandomAccessFile(logFile, "r")) {
+            long low = 0;
+            long high = file.length();
+            while (low < high) {
+                long middle = (low + high) >>> 1;
+                String line = firstLineFrom(file, middle);
+                if (line == null || line.compareTo(today) >= 0) {
+                    high = middle;
+                } else {
+                    low = middle + 1;
+                }
+            }
+            start = low;
+        } catch (IOException e) {
+            System.err.println("Could not read the audit log for active staff: " + e.getMessage());
+            return;
+        }
+
+        try (FileChannel channel = FileChannel.open(Paths.get(logFile), StandardOpenOption.READ);
+             BufferedReader reader = new BufferedReader(new InputStreamReader(
+                     Channels.newInputStream(channel.position(Math.max(0, start - 1)))))) {
+            if (start > 0) {
+                // Up to the end of the line holding the byte before start, which is not one of today's
+                reader.readLine();
+            }
+            String line;
+            while ((line = reader.readLine()) != null) {
+                int end = line.indexOf(' ', AUDIT_EDITOR_OFFSET);
+                if (line.startsWith(today) && end > AUDIT_EDITOR_OFFSET) {
+                    staffActive(line.substring(AUDIT_EDITOR_OFFSET, end));
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("Could not read the audit log for active staff: " + e.getMessage());
+        }
+    }
+
+    // The first line starting at or after the position
+    private static String firstLineFrom(RandomAccessFile file, long position) throws IOException {
+        if (position == 0) {
+            file.seek(0);
+        } else {
+            file.seek(position - 1);
+            file.readLine();
+        }
+        return file.readLine();
+    }
+}
@@ -0,0 +1,173 @@
+package util;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Inverted index from words in record entries to the records containing them.
+ * Updates arrive as {@link RecordListener} events and are applied by a single background
+ * thread, so writers never wait on indexing and updates are applied in order.
+ */
+public class EntrySearchIndex implements RecordListener {
+    private static final int MIN_TOKEN_LENGTH = 2;
+
+    private final Map<String, Set<PatientRecords>> postings = new ConcurrentHashMap<>();
+    // Records per doctor/nurse id, so staff queries only look at their own records
+    private final Map<String, Set<PatientRecords>> recordsByStaff = new ConcurrentHashMap<>();
+    private final ExecutorService indexer;
+    private volatile boolean ready;
+
+    public EntrySearchIndex(PatientRecordsManager recordsManager) {
+        this.indexer = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "search-indexer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        // Registered before the initial build is queued, so nothing falls between the two; indexing is idempotent
+        recordsManager.addListener(this);
+        indexer.execute(() -> {
+            for (List<PatientRecords> patientRecords : recordsManager.getAllRecords()) {
+                for (PatientRecords record : patientRecords) {
+                    indexRecord(record);
+                }
+            }
+            ready = true;
+        });
+    }
+
+    /**
+     * False while the records loaded at startup are still being indexed.
+     */
+    public boolean isReady() {
+        return ready;
+    }
+
+    /**
+     * Records containing every word of the query.
+     *
+     * @param staffId only records where this id is the doctor or nurse, or null for all records.
+     */
+    public List<PatientRecords> search(String query, String staffId, int limit) {
+        List<String> terms = tokenize(query);
+        if (terms.isEmpty()) {
+            return Collections.emptyList();
+        }
+
+        List<Set<PatientRecords>> filters = new ArrayList<>();
+        for (String term : terms) {
+            filters.add(postings.getOrDefault(term, Collections.emptySet()));
+        }
+        if (staffId != null) {
+            filters.add(recordsByStaff.getOrDefault(staffId, Collections.emptySet()));
+        }
+
+        // Walk the smallest set and probe the others
+        Set<PatientRecords> smallest = filters.get(0);
+        for (Set<PatientRecords> filter : filters) {
+            if (filter.size() < smallest.size()) {
+                smallest = filter;
+            }
+        }
+        List<PatientRecords> hits = new ArrayList<>();
+        for (PatientRecords record : smallest) {
+            if (containsAll(filters, record)) {
+                hits.add(record);
+                if (hits.size() == limit) {
+                    break;
+                }
+            }
+        }
+        return hits;
+    }
+
+    @Override
+    public void recordCreated(PatientRecords record) {
+        indexer.execute(() -> indexRecord(record));
+    }
+
+    @Override
+    public void entryAdded(PatientRecords record, int entryIndex) {
+        indexer.execute(() -> indexText(record, record.getEntry(entryIndex).getEntry()));
+    }
+
+    @Override
+    public void recordsDeleted(String patientId, List<PatientRecords> removed) {
+        indexer.execute(() -> {
+            for (PatientRecords record : removed) {
+                unindexRecord(record);
+            }
+        });
+    }
+
+    /**
+     * Lower-cased words of at least two letters or digits, without duplicates.
+     */
+    public static List<String> tokenize(String text) {
+        Set<String> tokens = new LinkedHashSet<>();
+        int start = -1;
+        for (int i = 0; i <= text.length(); i++) {
+            boolean wordChar = i < text.length() && Character.isLetterOrDigit(text.charAt(i));
+            if (wordChar && start < 0) {
+                start = i;
+            } else if (!wordChar && start >= 0) {
+                if (i - start >= MIN_TOKEN_LENGTH) {
+                    tokens.add(text.substring(start, i).toLowerCase(Locale.ROOT));
+                }
+                start = -1;
+            }
+        }
+        return new ArrayList<>(tokens);
+    }
+
+    private static boolean containsAll(List<Set<PatientRecords>> filters, PatientRecords record) {
+        for (Set<PatientRecords> filter : filters) {
+            if (!filter.contains(record)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void indexRecord(PatientRecords record) {
+        staffSet(record.getDoctorId()).add(record);
+        staffSet(record.getNurseId()).add(record);
+        for (PatientRecordEntry entry : record.getEntries()) {
+            indexText(record, entry.getEntry());
+        }
+    }
+
+    private void indexText(PatientRecords record, String text) {
+        for (String token : tokenize(text)) {
+            postings.computeIfAbsent(token, t -> ConcurrentHashMap.newKeySet()).add(record);
+        }
+    }
+
+    private void unindexRecord(PatientRecords record) {
+        removeFrom(recordsByStaff, record.getDoctorId(), record);
+        removeFrom(recordsByStaff, record.getNurseId(), record);
+        for (PatientRecordEntry entry : record.getEntries()) {
+            for (String token : tokenize(entry.getEntry())) {
+                removeFrom(postings, token, record);
+            }
+        }
+    }
+
+    private Set<PatientRecords> staffSet(String staffId) {
+        return recordsByStaff.computeIfAbsent(staffId, id -> ConcurrentHashMap.newKeySet());
+    }
+
+    private static void removeFrom(Map<String, Set<PatientRecords>> index, String key, PatientRecords record) {
+        index.computeIfPresent(key, (k, records) -> {
+            records.remove(record);
+            return records.isEmpty() ? null : records;
+        });
+    }
+}
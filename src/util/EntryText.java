@@ -0,0 +1,103 @@
+package util;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Where a record keeps the text of its entries. Entries are only appended, so a view of the first entries
+ * stays valid after the record's lock is released and responses are rendered without holding it.
+ */
+abstract class EntryText {
+
+    interface View {
+        String text(int index);
+    }
+
+    /**
+     * Stores the text of entry {@code index}, the next one. Called under the record's lock; if it throws,
+     * the entry is not added.
+     */
+    abstract void append(int index, int epochDay, byte[] utf8);
+
+    /**
+     * The first {@code count} entries' text. Called under the record's lock.
+     */
+    abstract View view(int count);
+
+    /**
+     * Text in one growing array per record: entry i is {@code text[ends[i - 1] .. ends[i])}.
+     */
+    static class Heap extends EntryText {
+        private static final int INITIAL_ENTRIES = 4;
+        private static final int INITIAL_TEXT_BYTES = 256;
+
+        private int[] ends = new int[INITIAL_ENTRIES];
+        private byte[] text = new byte[0];
+
+        @Override
+        void append(int index, int epochDay, byte[] utf8) {
+            if (index == ends.length) {
+                ends = Arrays.copyOf(ends, index * 2);
+            }
+            int start = index == 0 ? 0 : ends[index - 1];
+            int end = start + utf8.length;
+            if (end > text.length) {
+                text = Arrays.copyOf(text, Math.max(end, Math.max(INITIAL_TEXT_BYTES, text.length + (text.length >> 1))));
+            }
+            System.arraycopy(utf8, 0, text, start, utf8.length);
+            ends[index] = end;
+        }
+
+        @Override
+        View view(int count) {
+            int[] capturedEnds = ends;
+            byte[] capturedText = text;
+            return index -> {
+                int start = index == 0 ? 0 : capturedEnds[index - 1];
+                return new String(capturedText, start, capturedEnds[index] - start, StandardCharsets.UTF_8);
+            };
+        }
+    }
+
+    /**
+     * Text in direct buffers shared with other records, so the old generation holds only a reference,
+     * an offset and a length per entry instead of the bytes.
+     */
+    static class OffHeap extends EntryText {
+        private static final int INITIAL_ENTRIES = 4;
+
+        private final TextArena arena;
+        private ByteBuffer[] chunks = new ByteBuffer[INITIAL_ENTRIES];
+        private int[] offsets = new int[INITIAL_ENTRIES];
+        private int[] lengths = new int[INITIAL_ENTRIES];
+
+        OffHeap(TextArena arena) {
+            this.arena = arena;
+        }
+
+        @Override
+        void append(int index, int epochDay, byte[] utf8) {
+            if (index == chunks.length) {
+                chunks = Arrays.copyOf(chunks, index * 2);
+                offsets = Arrays.copyOf(offsets, index * 2);
+                lengths = Arrays.copyOf(lengths, index * 2);
+            }
+            arena.store(utf8, chunks, offsets, index);
+            lengths[index] = utf8.length;
+        }
+
+        @Override
+        View view(int count) {
+            ByteBuffer[] capturedChunks = chunks;
+            int[] capturedOffsets = offsets;
+            int[] capturedLengths = lengths;
+            return index -> {
+                // Decoded only here, when a response is rendered
+                byte[] bytes = new byte[capturedLengths[index]];
+                capturedChunks[index].get(capturedOffsets[index], bytes);
+                return new String(bytes, StandardCharsets.UTF_8);
+            };
+        }
+    }
+}
@@ -0,0 +1,225 @@
+package util;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.UncheckedIOException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.function.BinaryOperator;
+
+/**
+ * Splits a text file into byte ranges ending on line boundaries and parses the ranges in parallel
+ * on the fork-join pool, merging the per-range results.
+ */
+final class FileChunks {
+    // Below this a range is not worth a worker of its own
+    private static final long MIN_CHUNK_BYTES = 1 << 20;
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    interface Parser<T> {
+        T parse(BufferedReader reader) throws IOException;
+    }
+
+    private FileChunks() {
+    }
+
+    /**
+     * Parses the file from {@code start} on. Each range ends right after a line equal to
+     * {@code boundaryLine}, or after any line when it is null, so no range starts inside a block.
+     */
+    static <T> T parse(File file, long start, String boundaryLine, Parser<T> parser, BinaryOperator<T> merge)
+            throws IOException {
+        List<long[]> ranges = split(file, start, boundaryLine);
+        try {
+            return ForkJoinPool.commonPool().invoke(new ParseTask<>(file, ranges, 0, ranges.size(), parser, merge));
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    /**
+     * Offset just past the first line at or after {@code from} that equals {@code line} once trimmed, the way
+     * a reader testing {@code readLine().trim()} finds it, or the file length.
+     */
+    static long offsetAfterLine(File file, long from, String line) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            InputStream in = new BufferedInputStream(Channels.newInputStream(channel.position(from)), BUFFER_SIZE);
+            ByteArrayOutputStream current = new ByteArrayOutputStream();
+            long position = from;
+            int b;
+            while ((b = in.read()) != -1) {
+                position++;
+                if (b != '\n') {
+                    current.write(b);
+                } else if (current.toString(StandardCharsets.UTF_8).trim().equals(line)) {
+                    return position;
+                } else {
+                    current.reset();
+                }
+            }
+            return channel.size();
+        }
+    }
+
+    private static List<long[]> split(File file, long start, String boundaryLine) throws IOException {
+        List<long[]> ranges = new ArrayList<>();
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long size = channel.size();
+            long targetChunks = Math.max(1, Math.min(Runtime.getRuntime().availableProcessors() * 4L,
+                                                     (size - start) / MIN_CHUNK_BYTES));
+            long chunkSize = Math.max(1, (size - start) / targetChunks);
+            byte[] boundary = boundaryLine == null ? null : boundaryLine.getBytes(StandardCharsets.UTF_8);
+
+            long rangeStart = start;
+            while (rangeStart < size) {
+                long rangeEnd = rangeStart + chunkSize >= size
+                        ? size : nextBoundary(channel, rangeStart + chunkSize, size, boundary);
+                ranges.add(new long[]{rangeStart, rangeEnd});
+                rangeStart = rangeEnd;
+            }
+        }
+        return ranges;
+    }
+
+    /**
+     * Offset just past the first line exactly equal to {@code boundary} that starts after {@code from}, or
+     * {@code end}. {@code from} may fall inside a line, whose rest is skipped.
+     */
+    private static long nextBoundary(FileChannel channel, long from, long end, byte[] boundary) throws IOException {
+        InputStream in = new BufferedInputStream(Channels.newInputStream(channel.position(from)), BUFFER_SIZE);
+        long position = from;
+        int b;
+        while ((b = in.read()) != -1 && b != '\n') {
+            position++;
+        }
+        if (b == -1) {
+            return end;
+        }
+        position++;
+        if (boundary == null) {
+            return position;
+        }
+
+        // Only the first boundary.length + 1 bytes of a line are kept, enough to tell whether it matches
+        byte[] head = new byte[boundary.length + 1];
+        int lineLength = 0;
+        while ((b = in.read()) != -1) {
+            position++;
+            if (b != '\n') {
+                if (lineLength < head.length) {
+                    head[lineLength] = (byte) b;
+                }
+                lineLength++;
+                continue;
+            }
+            int length = lineLength > 0 && lineLength <= head.length && head[lineLength - 1] == '\r'
+                    ? lineLength - 1 : lineLength;
+            if (boundary == null || matches(head, length, boundary)) {
+                return position;
+            }
+            lineLength = 0;
+        }
+        return end;
+    }
+
+    private static boolean matches(byte[] head, int length, byte[] boundary) {
+        if (length != boundary.length) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (head[i] != boundary[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static BufferedReader open(File file, long start, long end) throws IOException {
+        FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ).position(start);
+        InputStream range = new RangeInputStream(Channels.newInputStream(channel), end - start);
+        // Decoded like FileReader, with the platform charset
+        return new BufferedReader(new InputStreamReader(range), BUFFER_SIZE);
+    }
+
+    private static class ParseTask<T> extends RecursiveTask<T> {
+        private static final long serialVersionUID = 1L;
+
+        private final File file;
+        private final List<long[]> ranges;
+        private final int from;
+        private final int to;
+        private final Parser<T> parser;
+        private final BinaryOperator<T> merge;
+
+        ParseTask(File file, List<long[]> ranges, int from, int to, Parser<T> parser, BinaryOperator<T> merge) {
+            this.file = file;
+            this.ranges = ranges;
+            this.from = from;
+            this.to = to;
+            this.parser = parser;
+            this.merge = merge;
+        }
+
+        @Override
+        protected T compute() {
+            if (to - from <= 1) {
+                long[] range = ranges.isEmpty() ? new long[]{0, 0} : ranges.get(from);
+                try (BufferedReader reader = open(file, range[0], range[1])) {
+                    return parser.parse(reader);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+            int middle = (from + to) >>> 1;
+            ParseTask<T> left = new ParseTask<>(file, ranges, from, middle, parser, merge);
+            left.fork();
+            T right = new ParseTask<>(file, ranges, middle, to, parser, merge).compute();
+            return merge.apply(left.join(), right);
+        }
+    }
+
+    private static class RangeInputStream extends FilterInputStream {
+        private long remaining;
+
+        RangeInputStream(InputStream in, long length) {
+            super(in);
+            this.remaining = length;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (remaining <= 0) {
+                return -1;
+            }
+            int b = super.read();
+            if (b != -1) {
+                remaining--;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            if (remaining <= 0) {
+                return -1;
+            }
+            int read = super.read(buffer, offset, (int) Math.min(length, remaining));
+            if (read > 0) {
+                remaining -= read;
+            }
+            return read;
+        }
+    }
+}
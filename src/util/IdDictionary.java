@@ -0,0 +1,22 @@
+package util;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Canonical instances of person ids, so the millions of records naming the same
+ * doctor, nurse or patient share one String each instead of one per record.
+ */
+public final class IdDictionary {
+    private static final ConcurrentHashMap<String, String> IDS = new ConcurrentHashMap<>();
+
+    private IdDictionary() {
+    }
+
+    public static String canonical(String id) {
+        if (id == null) {
+            return null;
+        }
+        String existing = IDS.putIfAbsent(id, id);
+        return existing != null ? existing : id;
+    }
+}
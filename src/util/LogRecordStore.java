@@ -0,0 +1,969 @@
+package util;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.zip.CRC32;
+
+import entities.Division;
+import entities.Person;
+
+/**
+ * Log-structured store for more records than fit in memory. Every change is appended to the current segment
+ * file, and memory holds only each record's ids, entry dates and where each entry's text is; the text is read
+ * back from the segment when a response is rendered.
+ *
+ * <p>Segments are rolled at a fixed size. A background merge rewrites each run of consecutive full segments
+ * that are mostly garbage (records deleted since) into one segment that takes the run's place, so replaying the
+ * segments in order at start-up still gives the same records. A merged segment's header names the first segment
+ * it replaces, so replaced files that a crash left behind are recognized and removed.
+ *
+ * <p>A merge runs alongside readers and writers: frames are moved one at a time under the store's lock, reads
+ * keep using the old segments until they are closed by the next merge, and the merged segment replaces the run
+ * by an atomic rename. Its reads are paced to a configured rate so it does not starve requests of disk time.
+ * Records deleted before a merge are not copied, so old segments are kept open for as long as a {@link #hold}
+ * taken before they were replaced, such as an export snapshot's, may still read them.
+ *
+ * <p>A frame is its length, a CRC32 and the type and payload. A frame that is cut short or fails its checksum
+ * ends the last segment, as after a crash mid-write; anywhere else it stops the start-up.
+ */
+public class LogRecordStore extends MemoryRecordStore {
+    private static final long MAGIC = 0x484f53504c4f4731L;  // "HOSPLOG1"
+    private static final int SEGMENT_HEADER_BYTES = 16;      // magic, sequence of the first segment replaced
+    private static final int FRAME_HEADER_BYTES = 8;         // length, checksum
+    private static final byte CREATE = 1;
+    private static final byte ENTRY = 2;
+    private static final byte DELETE = 3;
+    private static final String SEGMENT_SUFFIX = ".seg";
+    private static final String MERGE_SUFFIX = ".merge";
+    // A text handle is the segment's id above the offset of the text in the segment file
+    private static final int OFFSET_BITS = 40;
+    private static final long OFFSET_MASK = (1L << OFFSET_BITS) - 1;
+
+    private final Path directory;
+    private final long segmentBytes;
+    private final double mergeThreshold;
+    private final long mergeBytesPerSecond;
+    private final PersonRepository personRepository;
+    private final Map<Integer, Segment> segmentsById = new ConcurrentHashMap<>();
+    private final AtomicInteger nextSegmentId = new AtomicInteger();
+    private final Object writeLock = new Object();
+    // In replay order, the active segment last; guarded by writeLock
+    private final List<Segment> segments = new ArrayList<>();
+    // Segments replaced by a merge, closed by the next one once no render or hold can still be reading them
+    private final List<Segment> retired = new ArrayList<>();
+    // Holds not yet released; guarded by retired, like the segments each one keeps open
+    private final Set<SegmentHold> holds = new HashSet<>();
+    private final AtomicLong reclaimedBytes = new AtomicLong();
+    private final AtomicLong mergedRuns = new AtomicLong();
+    // Bytes of the runs picked by the merge in progress, and how many of them it has read; both 0 between merges
+    private final AtomicLong mergeBytesPlanned = new AtomicLong();
+    private final AtomicLong mergeBytesRead = new AtomicLong();
+    private long mergeStartedNanos;
+    private ScheduledExecutorService background;
+
+    /**
+     * Opens the segments in the directory, creating it if needed, and replays them.
+     *
+     * @param mergeBytesPerSecond how fast merges may read segments, 0 for as fast as the disk allows.
+     */
+    public LogRecordStore(Path directory, long segmentBytes, double mergeThreshold, long mergeBytesPerSecond,
+                          PersonRepository personRepository) throws IOException {
+        this.directory = directory;
+        this.segmentBytes = segmentBytes;
+        this.mergeThreshold = mergeThreshold;
+        this.mergeBytesPerSecond = mergeBytesPerSecond;
+        this.personRepository = personRepository;
+        Files.createDirectories(directory);
+        List<Segment> found = openSegments();
+        for (int i = 0; i < found.size(); i++) {
+            replay(found.get(i), i < found.size() - 1);
+            segments.add(found.get(i));
+        }
+        if (segments.isEmpty() || lastOf(segments).size >= segmentBytes) {
+            segments.add(createSegment(segments.isEmpty() ? 1 : lastOf(segments).sequence + 1));
+        }
+    }
+
+    /**
+     * The segment files in replay order, without leftovers of merges.
+     */
+    private List<Segment> openSegments() throws IOException {
+        List<Segment> found = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                if (name.endsWith(MERGE_SUFFIX)) {
+                    // A merge that did not finish; the segments it was replacing are all still there
+                    Files.delete(file);
+                } else if (name.endsWith(SEGMENT_SUFFIX)) {
+                    found.add(openSegment(file, Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length()))));
+                }
+            }
+        }
+        found.sort(Comparator.comparingLong(segment -> segment.sequence));
+
+        // Drop segments a finished merge replaced but a crash kept it from deleting
+        List<Segment> current = new ArrayList<>();
+        for (Segment segment : found) {
+            while (!current.isEmpty() && lastOf(current).sequence >= segment.firstSequence) {
+                Segment replaced = current.remove(current.size() - 1);
+                replaced.close();
+                segmentsById.remove(replaced.id);
+                Files.delete(replaced.path);
+            }
+            current.add(segment);
+        }
+        return current;
+    }
+
+    /**
+     * Starts flushing the active segment and merging sparse segments every interval.
+     */
+    public void start(long intervalSeconds) {
+        background = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "record-log-merger");
+            thread.setDaemon(true);
+            return thread;
+        });
+        background.scheduleWithFixedDelay(() -> {
+            try {
+                flush();
+                merge();
+            } catch (IOException | UncheckedIOException e) {
+                System.err.println("Record log maintenance in " + directory + " failed: " + e.getMessage());
+            }
+        }, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+    }
+
+    // Under the store's lock, so a merge cannot see the frame before the record is in the index
+    @Override
+    public synchronized PatientRecords createRecord(String patientId, String doctorId, String nurseId, Division division) {
+        LogText text = new LogText(IdDictionary.canonical(patientId), IdDictionary.canonical(doctorId));
+        Frame frame = new Frame(CREATE).id(patientId).id(doctorId).id(nurseId);
+        text.created = write(frame);
+        return add(new PatientRecords(patientId, doctorId, nurseId, division, text));
+    }
+
+    @Override
+    public synchronized List<PatientRecords> deleteRecords(String patientId) {
+        if (getRecords(patientId) == null) {
+            return null;
+        }
+        write(new Frame(DELETE).id(patientId));
+        List<PatientRecords> removed = super.deleteRecords(patientId);
+        release(removed);
+        return removed;
+    }
+
+    @Override
+    public List<PatientRecords> putRecords(String patientId, List<PatientRecords> records) {
+        for (PatientRecords record : records) {
+            PatientRecords stored = createRecord(patientId, record.getDoctorId(), record.getNurseId(),
+                                                 divisionOf(record.getDoctorId()));
+            for (PatientRecordEntry entry : record.getEntries()) {
+                appendEntry(stored, entry.getEntry(), entry.getEpochDay());
+            }
+        }
+        return getRecords(IdDictionary.canonical(patientId));
+    }
+
+    @Override
+    public void flush() throws IOException {
+        Segment current;
+        synchronized (writeLock) {
+            current = lastOf(segments);
+        }
+        current.channel().force(false);
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (background != null) {
+            background.shutdown();
+            try {
+                background.awaitTermination(1, TimeUnit.MINUTES);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        flush();
+        for (Segment segment : segmentsById.values()) {
+            segment.close();
+        }
+    }
+
+    /**
+     * Bytes given back by merges since the store was opened.
+     */
+    public long getReclaimedBytes() {
+        return reclaimedBytes.get();
+    }
+
+    /**
+     * Runs of segments merged since the store was opened.
+     */
+    public long getMergedRuns() {
+        return mergedRuns.get();
+    }
+
+    /**
+     * Bytes of segments the merge in progress expects to read, 0 if none is running.
+     */
+    public long getMergeBytesPlanned() {
+        return mergeBytesPlanned.get();
+    }
+
+    /**
+     * Bytes of segments the merge in progress has read so far.
+     */
+    public long getMergeBytesRead() {
+        return mergeBytesRead.get();
+    }
+
+    /**
+     * Rewrites every run of consecutive full segments whose live share is under the threshold.
+     *
+     * @return the bytes reclaimed.
+     */
+    public long merge() throws IOException {
+        closeRetired();
+        List<Segment> sealed;
+        synchronized (writeLock) {
+            sealed = new ArrayList<>(segments.subList(0, segments.size() - 1));
+        }
+        List<List<Segment>> runs = new ArrayList<>();
+        long planned = 0;
+        List<Segment> run = new ArrayList<>();
+        for (int i = 0; i <= sealed.size(); i++) {
+            if (i < sealed.size() && isSparse(sealed.get(i))) {
+                run.add(sealed.get(i));
+                // Read once to copy, and what is still live read again from the merged segment
+                planned += sealed.get(i).size + sealed.get(i).liveBytes.get();
+                continue;
+            }
+            // A lone segment with nothing in it is what a merge would make of it
+            if (run.size() == 1 && run.get(0).size == SEGMENT_HEADER_BYTES) {
+                planned -= SEGMENT_HEADER_BYTES;
+            } else if (!run.isEmpty()) {
+                runs.add(run);
+            }
+            run = new ArrayList<>();
+        }
+        if (runs.isEmpty()) {
+            return 0;
+        }
+
+        long reclaimed = 0;
+        mergeBytesPlanned.set(planned);
+        mergeBytesRead.set(0);
+        mergeStartedNanos = System.nanoTime();
+        try {
+            for (List<Segment> merging : runs) {
+                long gained = mergeRun(merging, merging.get(0) == sealed.get(0));
+                reclaimed += gained;
+                reclaimedBytes.addAndGet(gained);
+                mergedRuns.incrementAndGet();
+            }
+        } finally {
+            mergeBytesPlanned.set(0);
+            mergeBytesRead.set(0);
+        }
+        return reclaimed;
+    }
+
+    private boolean isSparse(Segment segment) {
+        return segment.liveBytes.get() < (segment.size - SEGMENT_HEADER_BYTES) * mergeThreshold
+                || segment.size == SEGMENT_HEADER_BYTES;
+    }
+
+    private long mergeRun(List<Segment> run, boolean oldest) throws IOException {
+        Segment last = lastOf(run);
+        Path temp = directory.resolve(fileName(last.sequence) + MERGE_SUFFIX);
+        Segment merged = new Segment(nextSegmentId.incrementAndGet(), last.sequence, run.get(0).firstSequence,
+                directory.resolve(fileName(last.sequence)),
+                FileChannel.open(temp, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE));
+        writeHeader(merged);
+
+        try {
+            for (Segment segment : run) {
+                copyLiveFrames(segment, merged, oldest);
+            }
+            merged.channel.force(true);
+            // From here the merged segment stands for the whole run, even if the rest is cut short by a crash
+            Files.move(temp, merged.path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException | RuntimeException e) {
+            // Nothing points into the merged segment yet, so the run is still in use as it was
+            merged.close();
+            Files.deleteIfExists(temp);
+            throw e;
+        }
+        Set<Integer> runIds = new HashSet<>();
+        for (Segment segment : run) {
+            // The last one's path now names the merged file, so none of them may be reopened
+            segment.ended = true;
+            runIds.add(segment.id);
+        }
+        segmentsById.put(merged.id, merged);
+        repoint(runIds, merged);
+        for (Segment segment : run) {
+            if (segment != last) {
+                Files.deleteIfExists(segment.path);
+            }
+        }
+
+        long before = 0;
+        synchronized (writeLock) {
+            int position = segments.indexOf(run.get(0));
+            segments.subList(position, position + run.size()).clear();
+            segments.add(position, merged);
+        }
+        synchronized (retired) {
+            for (SegmentHold hold : holds) {
+                hold.keep(run);
+            }
+            retired.addAll(run);
+        }
+        for (Segment segment : run) {
+            before += segment.size;
+        }
+        return before - merged.size;
+    }
+
+    /**
+     * Copies the frames still needed to the merged segment. Each frame is decided under the store's lock, so a
+     * frame left out belongs to a record that was already deleted.
+     */
+    private void copyLiveFrames(Segment segment, Segment merged, boolean oldest) throws IOException {
+        try (FrameReader reader = new FrameReader(segment)) {
+            Frame frame;
+            while ((frame = reader.next()) != null) {
+                synchronized (this) {
+                    switch (frame.type) {
+                        case CREATE: {
+                            LogText text = textOf(frame.patientId, frame.doctorId);
+                            if (text != null && text.created == handle(segment, frame.position)) {
+                                copy(frame, merged);
+                            }
+                            break;
+                        }
+                        case ENTRY: {
+                            PatientRecords record = recordOf(frame.patientId, frame.doctorId);
+                            if (record == null) {
+                                break;
+                            }
+                            // Under the record's lock, since an append may be growing the handles
+                            synchronized (record) {
+                                LogText text = (LogText) record.getText();
+                                long textAt = handle(segment, frame.textPosition());
+                                if (frame.index < record.getEntryCount() && text.handles[frame.index] == textAt) {
+                                    copy(frame, merged);
+                                }
+                            }
+                            break;
+                        }
+                        default:
+                            // With nothing older left, a deletion has nothing to cancel
+                            if (!oldest) {
+                                copy(frame, merged);
+                            }
+                            break;
+                    }
+                }
+                pace(frame.encodedLength());
+            }
+        }
+    }
+
+    /**
+     * Points the records at the copies of their frames once the merged segment is in place. A record whose
+     * frame is no longer in the run was deleted, or deleted and created again, after the copy was made; the
+     * copy is then garbage.
+     */
+    private void repoint(Set<Integer> runIds, Segment merged) throws IOException {
+        try (FrameReader reader = new FrameReader(merged)) {
+            Frame frame;
+            while ((frame = reader.next()) != null) {
+                boolean live = true;
+                synchronized (this) {
+                    switch (frame.type) {
+                        case CREATE: {
+                            LogText text = textOf(frame.patientId, frame.doctorId);
+                            live = text != null && runIds.contains(segmentId(text.created));
+                            if (live) {
+                                text.created = handle(merged, frame.position);
+                            }
+                            break;
+                        }
+                        case ENTRY: {
+                            PatientRecords record = recordOf(frame.patientId, frame.doctorId);
+                            if (record == null) {
+                                live = false;
+                                break;
+                            }
+                            synchronized (record) {
+                                LogText text = (LogText) record.getText();
+                                live = frame.index < record.getEntryCount()
+                                        && runIds.contains(segmentId(text.handles[frame.index]));
+                                if (live) {
+                                    text.handles[frame.index] = handle(merged, frame.textPosition());
+                                }
+                            }
+                            break;
+                        }
+                        default:
+                            break;
+                    }
+                }
+                if (!live) {
+                    merged.liveBytes.addAndGet(-frame.encodedLength());
+                }
+                pace(frame.encodedLength());
+            }
+        }
+    }
+
+    // Counts the bytes read and, outside the store's lock, waits until the merge is back under its rate
+    private void pace(int bytes) {
+        long read = mergeBytesRead.addAndGet(bytes);
+        if (mergeBytesPerSecond <= 0) {
+            return;
+        }
+        long due = mergeStartedNanos + read * 1_000_000_000L / mergeBytesPerSecond;
+        long wait = due - System.nanoTime();
+        if (wait > 0) {
+            LockSupport.parkNanos(wait);
+        }
+    }
+
+    private void copy(Frame frame, Segment to) throws IOException {
+        ByteBuffer bytes = frame.encode();
+        int length = bytes.remaining();
+        writeFully(to.channel, bytes, to.size);
+        to.size += length;
+        to.liveBytes.addAndGet(length);
+    }
+
+    private void closeRetired() throws IOException {
+        List<Segment> closing = new ArrayList<>();
+        synchronized (retired) {
+            for (Iterator<Segment> iterator = retired.iterator(); iterator.hasNext(); ) {
+                Segment segment = iterator.next();
+                if (segment.holders == 0) {
+                    closing.add(segment);
+                    iterator.remove();
+                }
+            }
+        }
+        for (Segment segment : closing) {
+            segmentsById.remove(segment.id);
+            segment.close();
+        }
+    }
+
+    @Override
+    public Hold hold() {
+        SegmentHold hold = new SegmentHold();
+        synchronized (retired) {
+            holds.add(hold);
+        }
+        return hold;
+    }
+
+    /**
+     * Keeps open the segments replaced while it is held, which may have the only copy of a deleted record's text.
+     */
+    private class SegmentHold implements Hold {
+        // Guarded by retired
+        private final List<Segment> kept = new ArrayList<>();
+
+        void keep(List<Segment> run) {
+            for (Segment segment : run) {
+                segment.holders++;
+                kept.add(segment);
+            }
+        }
+
+        @Override
+        public void release() {
+            synchronized (retired) {
+                if (holds.remove(this)) {
+                    for (Segment segment : kept) {
+                        segment.holders--;
+                    }
+                    kept.clear();
+                }
+            }
+        }
+    }
+
+    /**
+     * Takes the removed records' frames out of their segments' live bytes.
+     */
+    private void release(List<PatientRecords> removed) {
+        for (PatientRecords record : removed) {
+            if (!(record.getText() instanceof LogText)) {
+                continue;
+            }
+            LogText text = (LogText) record.getText();
+            int createBytes = FRAME_HEADER_BYTES + 1 + idBytes(text.patientId) + idBytes(text.doctorId)
+                    + idBytes(record.getNurseId());
+            subtract(text.created, createBytes);
+            synchronized (record) {
+                for (int i = 0; i < record.getEntryCount(); i++) {
+                    subtract(text.handles[i], entryFrameBytes(text, text.lengths[i]));
+                }
+            }
+        }
+    }
+
+    private void subtract(long handle, int bytes) {
+        Segment segment = segmentsById.get(segmentId(handle));
+        if (segment != null) {
+            segment.liveBytes.addAndGet(-bytes);
+        }
+    }
+
+    private static int entryFrameBytes(LogText text, int textLength) {
+        return FRAME_HEADER_BYTES + 1 + idBytes(text.patientId) + idBytes(text.doctorId) + 12 + textLength;
+    }
+
+    // Length as written by DataOutput.writeUTF
+    private static int idBytes(String id) {
+        int length = 2;
+        for (int i = 0; i < id.length(); i++) {
+            char c = id.charAt(i);
+            length += c >= 1 && c <= 0x7f ? 1 : c <= 0x7ff ? 2 : 3;
+        }
+        return length;
+    }
+
+    private PatientRecords recordOf(String patientId, String doctorId) {
+        List<PatientRecords> records = getRecords(patientId);
+        if (records != null) {
+            for (PatientRecords record : records) {
+                if (record.getDoctorId().equals(doctorId) && record.getText() instanceof LogText) {
+                    return record;
+                }
+            }
+        }
+        return null;
+    }
+
+    private LogText textOf(String patientId, String doctorId) {
+        PatientRecords record = recordOf(patientId, doctorId);
+        return record == null ? null : (LogText) record.getText();
+    }
+
+    private Division divisionOf(String doctorId) {
+        Person doctor = personRepository.getPersonFromId(doctorId);
+        return doctor == null ? null : doctor.getDivision();
+    }
+
+    /**
+     * Appends the frame to the active segment, rolling to a new one when it is full.
+     *
+     * @return the handle of the frame.
+     */
+    private long write(Frame frame) {
+        ByteBuffer bytes = frame.encode();
+        int length = bytes.remaining();
+        synchronized (writeLock) {
+            try {
+                Segment active = lastOf(segments);
+                if (active.size + length > segmentBytes && active.size > SEGMENT_HEADER_BYTES) {
+                    active.channel().force(false);
+                    active = createSegment(active.sequence + 1);
+                    segments.add(active);
+                }
+                long position = active.size;
+                writeFully(active.channel(), bytes, position);
+                active.size += length;
+                active.liveBytes.addAndGet(length);
+                return handle(active, position);
+            } catch (IOException e) {
+                throw new UncheckedIOException("Cannot write to the record log in " + directory, e);
+            }
+        }
+    }
+
+    private String readText(long handle, int length) {
+        Segment segment = segmentsById.get(segmentId(handle));
+        if (segment == null) {
+            throw new IllegalStateException("Entry text is in a segment that was merged away");
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        long position = handle & OFFSET_MASK;
+        try {
+            while (buffer.hasRemaining()) {
+                if (segment.channel().read(buffer, position + buffer.position()) < 0) {
+                    throw new EOFException("Entry text past the end of " + segment.path);
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return new String(buffer.array(), StandardCharsets.UTF_8);
+    }
+
+    private void replay(Segment segment, boolean sealed) throws IOException {
+        try (FrameReader reader = new FrameReader(segment)) {
+            Frame frame;
+            while ((frame = reader.next()) != null) {
+                apply(segment, frame);
+            }
+            if (reader.position < segment.size) {
+                if (sealed) {
+                    throw new IOException("Corrupt frame at " + reader.position + " in " + segment.path);
+                }
+                // The tail of a write the process did not live to finish
+                segment.channel.truncate(reader.position);
+                segment.size = reader.position;
+            }
+        }
+    }
+
+    private void apply(Segment segment, Frame frame) {
+        int length = frame.encodedLength();
+        switch (frame.type) {
+            case CREATE: {
+                Division division = divisionOf(frame.doctorId);
+                if (division == null || recordOf(frame.patientId, frame.doctorId) != null) {
+                    return;
+                }
+                LogText text = new LogText(IdDictionary.canonical(frame.patientId), IdDictionary.canonical(frame.doctorId));
+                text.created = handle(segment, frame.position);
+                add(new PatientRecords(frame.patientId, frame.doctorId, frame.nurseId, division, text));
+                break;
+            }
+            case ENTRY: {
+                PatientRecords record = recordOf(frame.patientId, frame.doctorId);
+                if (record == null || record.getEntryCount() != frame.index) {
+                    return;
+                }
+                ((LogText) record.getText()).restore(frame.index, handle(segment, frame.textPosition()), frame.text.length);
+                record.addStoredEntry(frame.epochDay);
+                break;
+            }
+            default: {
+                List<PatientRecords> removed = super.deleteRecords(frame.patientId);
+                if (removed != null) {
+                    release(removed);
+                }
+                break;
+            }
+        }
+        segment.liveBytes.addAndGet(length);
+    }
+
+    private Segment createSegment(long sequence) throws IOException {
+        Path path = directory.resolve(fileName(sequence));
+        Segment segment = new Segment(nextSegmentId.incrementAndGet(), sequence, sequence, path,
+                FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE));
+        writeHeader(segment);
+        segmentsById.put(segment.id, segment);
+        return segment;
+    }
+
+    private Segment openSegment(Path path, long sequence) throws IOException {
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        ByteBuffer header = ByteBuffer.allocate(SEGMENT_HEADER_BYTES);
+        while (header.hasRemaining() && channel.read(header, header.position()) >= 0) {
+            // Read the whole header
+        }
+        header.flip();
+        if (header.remaining() < SEGMENT_HEADER_BYTES || header.getLong() != MAGIC) {
+            channel.close();
+            throw new IOException(path + " is not a record log segment");
+        }
+        Segment segment = new Segment(nextSegmentId.incrementAndGet(), sequence, header.getLong(), path, channel);
+        segment.size = channel.size();
+        segmentsById.put(segment.id, segment);
+        return segment;
+    }
+
+    private static void writeHeader(Segment segment) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(SEGMENT_HEADER_BYTES).putLong(MAGIC).putLong(segment.firstSequence);
+        header.flip();
+        writeFully(segment.channel, header, 0);
+        segment.size = SEGMENT_HEADER_BYTES;
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer bytes, long position) throws IOException {
+        long at = position;
+        while (bytes.hasRemaining()) {
+            at += channel.write(bytes, at);
+        }
+    }
+
+    private static String fileName(long sequence) {
+        return String.format("%016d", sequence) + SEGMENT_SUFFIX;
+    }
+
+    private static long handle(Segment segment, long position) {
+        return ((long) segment.id << OFFSET_BITS) | position;
+    }
+
+    private static int segmentId(long handle) {
+        return (int) (handle >>> OFFSET_BITS);
+    }
+
+    private static <T> T lastOf(List<T> list) {
+        return list.get(list.size() - 1);
+    }
+
+    private static class Segment {
+        final int id;
+        final long sequence;
+        final long firstSequence;
+        final Path path;
+        volatile FileChannel channel;
+        volatile long size;
+        // Bytes of frames still needed to rebuild the records
+        final AtomicLong liveBytes = new AtomicLong();
+        // Closed or replaced by a merge, after which the path may name another segment's file
+        volatile boolean ended;
+        // Holds taken before the segment was replaced and not released yet; guarded by the store's retired list
+        int holders;
+
+        Segment(int id, long sequence, long firstSequence, Path path, FileChannel channel) {
+            this.id = id;
+            this.sequence = sequence;
+            this.firstSequence = firstSequence;
+            this.path = path;
+            this.channel = channel;
+        }
+
+        /**
+         * The channel for reading and appending. A thread interrupted during I/O closes a file channel for all
+         * its users, so a channel closed that way is opened again; only the one interrupted read or write fails.
+         */
+        FileChannel channel() throws IOException {
+            FileChannel current = channel;
+            if (current.isOpen() || ended) {
+                return current;
+            }
+            synchronized (this) {
+                if (!channel.isOpen() && !ended) {
+                    channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+                }
+                return channel;
+            }
+        }
+
+        synchronized void close() throws IOException {
+            ended = true;
+            channel.close();
+        }
+    }
+
+    /**
+     * Text of a record's entries, kept in the segments.
+     */
+    private class LogText extends EntryText {
+        private static final int INITIAL_ENTRIES = 4;
+
+        final String patientId;
+        final String doctorId;
+        // Handle of the frame creating the record, moved by merges under the store's lock
+        long created;
+        long[] handles = new long[INITIAL_ENTRIES];
+        int[] lengths = new int[INITIAL_ENTRIES];
+
+        LogText(String patientId, String doctorId) {
+            this.patientId = patientId;
+            this.doctorId = doctorId;
+        }
+
+        @Override
+        void append(int index, int epochDay, byte[] utf8) {
+            Frame frame = new Frame(ENTRY).id(patientId).id(doctorId).entry(index, epochDay, utf8);
+            restore(index, write(frame) + frame.textOffset(), utf8.length);
+        }
+
+        void restore(int index, long handle, int length) {
+            if (index == handles.length) {
+                handles = Arrays.copyOf(handles, index * 2);
+                lengths = Arrays.copyOf(lengths, index * 2);
+            }
+            handles[index] = handle;
+            lengths[index] = length;
+        }
+
+        @Override
+        View view(int count) {
+            long[] capturedHandles = handles;
+            int[] capturedLengths = lengths;
+            return index -> readText(capturedHandles[index], capturedLengths[index]);
+        }
+    }
+
+    /**
+     * One change as written to a segment.
+     */
+    private static class Frame {
+        final byte type;
+        long position;
+        String patientId;
+        String doctorId;
+        String nurseId;
+        int index;
+        int epochDay;
+        byte[] text;
+        private final List<String> ids = new ArrayList<>(3);
+
+        Frame(byte type) {
+            this.type = type;
+        }
+
+        Frame id(String id) {
+            ids.add(id);
+            if (ids.size() == 1) {
+                patientId = id;
+            } else if (ids.size() == 2) {
+                doctorId = id;
+            } else {
+                nurseId = id;
+            }
+            return this;
+        }
+
+        Frame entry(int index, int epochDay, byte[] text) {
+            this.index = index;
+            this.epochDay = epochDay;
+            this.text = text;
+            return this;
+        }
+
+        ByteBuffer encode() {
+            ByteArrayOutputStream body = new ByteArrayOutputStream(64 + (text == null ? 0 : text.length));
+            try (DataOutputStream out = new DataOutputStream(body)) {
+                out.writeByte(type);
+                for (String id : ids) {
+                    out.writeUTF(id);
+                }
+                if (type == ENTRY) {
+                    out.writeInt(index);
+                    out.writeInt(epochDay);
+                    out.writeInt(text.length);
+                    out.write(text);
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            byte[] bytes = body.toByteArray();
+            CRC32 crc = new CRC32();
+            crc.update(bytes);
+            ByteBuffer frame = ByteBuffer.allocate(FRAME_HEADER_BYTES + bytes.length);
+            frame.putInt(bytes.length).putInt((int) crc.getValue()).put(bytes).flip();
+            return frame;
+        }
+
+        int encodedLength() {
+            int length = FRAME_HEADER_BYTES + 1;
+            for (String id : ids) {
+                length += idBytes(id);
+            }
+            return type == ENTRY ? length + 12 + text.length : length;
+        }
+
+        // Where the text starts, from the start of the frame; it is the last thing in an entry frame
+        int textOffset() {
+            return encodedLength() - text.length;
+        }
+
+        long textPosition() {
+            return position + textOffset();
+        }
+    }
+
+    /**
+     * Reads a segment's frames in order, stopping at the end or at the first frame that is not whole.
+     */
+    private static class FrameReader implements AutoCloseable {
+        private final DataInputStream in;
+        private final long end;
+        long position = SEGMENT_HEADER_BYTES;
+
+        FrameReader(Segment segment) throws IOException {
+            this.end = segment.size;
+            // A stream of its own, so reading does not move the channel used by writers
+            FileChannel channel = FileChannel.open(segment.path, StandardOpenOption.READ);
+            channel.position(SEGMENT_HEADER_BYTES);
+            this.in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel), 64 * 1024));
+        }
+
+        Frame next() throws IOException {
+            int length;
+            int checksum;
+            byte[] body;
+            try {
+                length = in.readInt();
+                checksum = in.readInt();
+                if (length <= 0 || length > end - position - FRAME_HEADER_BYTES) {
+                    return null;
+                }
+                body = new byte[length];
+                in.readFully(body);
+            } catch (EOFException e) {
+                return null;
+            }
+            CRC32 crc = new CRC32();
+            crc.update(body);
+            if ((int) crc.getValue() != checksum) {
+                return null;
+            }
+
+            DataInputStream fields = new DataInputStream(new ByteArrayInputStream(body));
+            Frame frame = new Frame(fields.readByte());
+            frame.position = position;
+            frame.id(fields.readUTF());
+            if (frame.type == CREATE) {
+                frame.id(fields.readUTF()).id(fields.readUTF());
+            } else if (frame.type == ENTRY) {
+                frame.id(fields.readUTF());
+                int index = fields.readInt();
+                int epochDay = fields.readInt();
+                byte[] text = new byte[fields.readInt()];
+                fields.readFully(text);
+                frame.entry(index, epochDay, text);
+            }
+            position += FRAME_HEADER_BYTES + length;
+            return frame;
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+}
@@ -3,12 +3,24 @@ package util;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.PrintStream;
+import java.time.LocalDate;
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 public class Logger {
     private PrintStream output;
     private static final String DEFAULT_LOG_PATH = "../Database/Logs";
+    private final String filePath;
+    private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+
+    /**
+     * Told of each audit entry once it is written.
+     */
+    public interface Listener {
+        void logged(String editor, String patient, String action);
+    }
 
     private static final DateTimeFormatter TIME_DATE_FORMATTER = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
     private static final DateTimeFormatter DATE_FORMATTER = DateTimeFormatter.ofPattern("yyyy-MM-dd");
@@ -18,6 +30,7 @@ public class Logger {
     }
 
     public Logger(String logFilePath) {
+        this.filePath = logFilePath;
         try {
             FileOutputStream fileOutput = new FileOutputStream(logFilePath, true);
             output = new PrintStream(fileOutput);
@@ -27,6 +40,14 @@ public class Logger {
         }
     }
 
+    public String getFilePath() {
+        return filePath;
+    }
+
+    public void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
     public static String getTimeDate() {
         return LocalDateTime.now().format(TIME_DATE_FORMATTER);
     }
@@ -35,15 +56,30 @@ public class Logger {
         return LocalDateTime.now().format(DATE_FORMATTER);
     }
 
+    public static int getEpochDay() {
+        return (int) LocalDate.now().toEpochDay();
+    }
+
     // logs entry to the file
     public void log(String editor, String patient, String action) {
+        log(null, editor, patient, action);
+    }
+
+    // logs entry to the file, tagged with the connection and request it was made in
+    public void log(RequestContext request, String editor, String patient, String action) {
         if (output != null) {
             String logEntry = String.format("%s: %s %s for %s", getTimeDate(), editor, action, patient);
+            if (request != null) {
+                logEntry += " [" + request + "]";
+            }
             output.println(logEntry);
             output.flush();
         } else {
             System.err.println("Logger output stream is not initialized.");
         }
+        for (Listener listener : listeners) {
+            listener.logged(editor, patient, action);
+        }
     }
 
     /**
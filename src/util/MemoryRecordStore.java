@@ -0,0 +1,99 @@
+package util;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import entities.Division;
+
+/**
+ * Records held in memory: the map is concurrent and each patient's list is copy-on-write, so readers never
+ * lock. The store keeps nothing on disk itself; the records file is written by a {@link RecordCheckpointer}.
+ * Entry text is kept on the heap, or in a {@link TextArena} outside it if one is given.
+ */
+public class MemoryRecordStore implements RecordStore {
+    private final ConcurrentHashMap<String, List<PatientRecords>> records = new ConcurrentHashMap<>();
+    private final TextArena arena;
+
+    public MemoryRecordStore() {
+        this(null);
+    }
+
+    public MemoryRecordStore(TextArena arena) {
+        this.arena = arena;
+    }
+
+    @Override
+    public List<PatientRecords> getRecords(String patientId) {
+        return records.get(patientId);
+    }
+
+    @Override
+    public PatientRecords createRecord(String patientId, String doctorId, String nurseId, Division division) {
+        return add(new PatientRecords(patientId, doctorId, nurseId, division, newText()));
+    }
+
+    private EntryText newText() {
+        return arena == null ? new EntryText.Heap() : new EntryText.OffHeap(arena);
+    }
+
+    /**
+     * Adds the record to the end of its patient's list.
+     */
+    protected PatientRecords add(PatientRecords record) {
+        records.computeIfAbsent(record.getPatientId(), id -> new CopyOnWriteArrayList<>()).add(record);
+        return record;
+    }
+
+    @Override
+    public void appendEntry(PatientRecords record, String entry, int epochDay) {
+        record.addEntry(entry, epochDay);
+    }
+
+    @Override
+    public List<PatientRecords> deleteRecords(String patientId) {
+        return records.remove(patientId);
+    }
+
+    @Override
+    public List<PatientRecords> putRecords(String patientId, List<PatientRecords> patientRecords) {
+        List<PatientRecords> stored = new CopyOnWriteArrayList<>();
+        for (PatientRecords record : patientRecords) {
+            stored.add(arena == null ? record : moveText(record));
+        }
+        records.put(IdDictionary.canonical(patientId), stored);
+        return stored;
+    }
+
+    private PatientRecords moveText(PatientRecords record) {
+        PatientRecords moved = new PatientRecords(record.getPatientId(), record.getDoctorId(), record.getNurseId(),
+                                                  record.getDivision(), newText());
+        for (PatientRecordEntry entry : record.getEntries()) {
+            moved.addEntry(entry.getEntry(), entry.getEpochDay());
+        }
+        return moved;
+    }
+
+    @Override
+    public Set<Map.Entry<String, List<PatientRecords>>> entries() {
+        return Collections.unmodifiableMap(records).entrySet();
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return records.isEmpty();
+    }
+
+    @Override
+    public void flush() throws IOException {
+        // Nothing is kept on disk by the store
+    }
+
+    @Override
+    public void close() throws IOException {
+    }
+}
@@ -1,15 +1,42 @@
 package util;
 
+import java.time.LocalDate;
+import java.time.format.DateTimeParseException;
+
+/**
+ * A single dated entry. Records store entries column-wise, so instances are short-lived views.
+ */
 public class PatientRecordEntry {
-    private String entry;
-    private String date;
+    // Marks an entry whose date could not be parsed; its text is kept as it was read
+    static final int NO_DATE = Integer.MIN_VALUE;
+
+    private final String entry;
+    private final int epochDay;
 
     public PatientRecordEntry(String entry, String date) {
-        this.date = date;
+        this.epochDay = toEpochDay(date);
+        this.entry = epochDay == NO_DATE ? date + ":" + entry : entry;
+    }
+
+    public PatientRecordEntry(String entry, int epochDay) {
         this.entry = entry;
+        this.epochDay = epochDay;
     }
 
-    public String getDate() { return date; }
+    public String getDate() { return epochDay == NO_DATE ? "" : formatEpochDay(epochDay); }
+    public int getEpochDay() { return epochDay; }
     public String getEntry(){ return entry; }
-    public String toString(){ return  date + ":" + entry; }
+    public String toString(){ return epochDay == NO_DATE ? entry : getDate() + ":" + entry; }
+
+    static int toEpochDay(String date) {
+        try {
+            return (int) LocalDate.parse(date).toEpochDay();
+        } catch (DateTimeParseException e) {
+            return NO_DATE;
+        }
+    }
+
+    static String formatEpochDay(int epochDay) {
+        return LocalDate.ofEpochDay(epochDay).toString();
+    }
 }
@@ -1,23 +1,44 @@
 package util;
 
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 import entities.Division;
 import entities.Person;
 
 public class PatientRecords {
-    private final List<PatientRecordEntry> records;
+    private static final int INITIAL_ENTRIES = 4;
+
+    // Entries are stored column-wise: entry i has date epochDays[i] and its text in the text column.
+    // Entries are only ever appended, so a reader that captured the columns and a count can render
+    // without holding the lock.
+    private int[] epochDays;
+    private final EntryText text;
+    private int entryCount;
+    // Version of the patient's records that each entry added since start-up came with; null until the first,
+    // and 0 for entries that were already there
+    private long[] entryVersions;
+
     private final String patientId;
     private final String doctorId;
     private final String nurseId;
     private final Division division;
 
     public PatientRecords(String patientId, String doctorId, String nurseId, Division division) {
-        this.records = new ArrayList<>();
-        this.patientId = patientId;
-        this.doctorId = doctorId;
-        this.nurseId = nurseId;
+        this(patientId, doctorId, nurseId, division, new EntryText.Heap());
+    }
+
+    /**
+     * Record keeping its entries' text in the given column, e.g. one of a store's files.
+     */
+    PatientRecords(String patientId, String doctorId, String nurseId, Division division, EntryText text) {
+        this.epochDays = new int[INITIAL_ENTRIES];
+        this.text = text;
+        this.patientId = IdDictionary.canonical(patientId);
+        this.doctorId = IdDictionary.canonical(doctorId);
+        this.nurseId = IdDictionary.canonical(nurseId);
         this.division = division;
     }
 
@@ -34,13 +55,90 @@ public class PatientRecords {
         return division.getId();
     }
 
+    public Division getDivision() {
+        return division;
+    }
+
 
     public String getPatientId() {
         return patientId;
     }
 
     public void addRecord(PatientRecordEntry record) {
-        records.add(record);
+        addEntry(record.getEntry(), record.getEpochDay());
+    }
+
+    public synchronized void addEntry(String entry, int epochDay) {
+        text.append(entryCount, epochDay, entry.getBytes(StandardCharsets.UTF_8));
+        addStoredEntry(epochDay);
+    }
+
+    /**
+     * Counts an entry whose text the column already holds, as when a store reads back its files.
+     */
+    synchronized void addStoredEntry(int epochDay) {
+        if (entryCount == epochDays.length) {
+            epochDays = Arrays.copyOf(epochDays, entryCount * 2);
+        }
+        epochDays[entryCount] = epochDay;
+        entryCount++;
+    }
+
+    /**
+     * Records the patient's version that entry {@code index} was added in.
+     */
+    synchronized void setEntryVersion(int index, long version) {
+        if (entryVersions == null || index >= entryVersions.length) {
+            entryVersions = Arrays.copyOf(entryVersions == null ? new long[0] : entryVersions, epochDays.length);
+        }
+        entryVersions[index] = version;
+    }
+
+    /**
+     * The first entry added after the given version of the patient's records, or the entry count if none was.
+     */
+    synchronized int firstEntryAfter(long version) {
+        int first = entryCount;
+        while (entryVersions != null && first > 0 && first - 1 < entryVersions.length
+                && entryVersions[first - 1] > version) {
+            first--;
+        }
+        return first;
+    }
+
+    EntryText getText() {
+        return text;
+    }
+
+    public synchronized int getEntryCount() {
+        return entryCount;
+    }
+
+    /**
+     * The date of an entry, without reading its text.
+     */
+    public synchronized int getEpochDay(int index) {
+        if (index < 0 || index >= entryCount) {
+            throw new IndexOutOfBoundsException("Entry " + index + " of " + entryCount);
+        }
+        return epochDays[index];
+    }
+
+    public PatientRecordEntry getEntry(int index) {
+        Columns columns = snapshot();
+        if (index < 0 || index >= columns.count) {
+            throw new IndexOutOfBoundsException("Entry " + index + " of " + columns.count);
+        }
+        return new PatientRecordEntry(columns.text(index), columns.epochDays[index]);
+    }
+
+    public List<PatientRecordEntry> getEntries() {
+        Columns columns = snapshot();
+        List<PatientRecordEntry> entries = new ArrayList<>(columns.count);
+        for (int i = 0; i < columns.count; i++) {
+            entries.add(new PatientRecordEntry(columns.text(i), columns.epochDays[i]));
+        }
+        return entries;
     }
 
     public boolean isNurseOrDoctor(Person person) {
@@ -48,14 +146,96 @@ public class PatientRecords {
         return pID.equals(doctorId) || pID.equals(nurseId);
     }
 
+    /**
+     * Writes the same text as {@link #toString()} without building it as one string.
+     */
+    public void writeTo(ResponseSink sink) {
+        writeTo(sink, 0, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Writes the header and the entries from {@code from} up to, not including, {@code to}.
+     */
+    public void writeTo(ResponseSink sink, int from, int to) {
+        sink.append("Doctor=").append(doctorId).append(",Nurse=").append(nurseId);
+        appendEntries(sink, from, to);
+    }
+
+    /**
+     * Writes the entries from {@code from} up to, not including, {@code to}, each after a line break, as
+     * {@link #writeTo(ResponseSink, int, int)} writes them after the header.
+     */
+    void appendEntries(ResponseSink sink, int from, int to) {
+        Columns columns = snapshot();
+        for (int i = from; i < Math.min(to, columns.count); i++) {
+            sink.append("\n");
+            columns.appendEntry(i, sink);
+        }
+    }
+
+    /**
+     * Number of the first {@code count} entries dated from {@code fromDay} to {@code toDay}, both included.
+     */
+    public int countEntries(int count, int fromDay, int toDay) {
+        Columns columns = snapshot();
+        int matching = 0;
+        for (int i = 0; i < Math.min(count, columns.count); i++) {
+            if (columns.epochDays[i] >= fromDay && columns.epochDays[i] <= toDay) {
+                matching++;
+            }
+        }
+        return matching;
+    }
+
+    /**
+     * Writes the first {@code count} entries dated from {@code fromDay} to {@code toDay}, one per line
+     * as in the records file.
+     */
+    public void writeEntries(ResponseSink sink, int count, int fromDay, int toDay) {
+        Columns columns = snapshot();
+        for (int i = 0; i < Math.min(count, columns.count); i++) {
+            if (columns.epochDays[i] >= fromDay && columns.epochDays[i] <= toDay) {
+                columns.appendEntry(i, sink);
+                sink.append("\n");
+            }
+        }
+    }
 
     @Override
     public String toString() {
         StringBuilder output = new StringBuilder("Doctor=").append(doctorId)
                                                 .append(",Nurse=").append(nurseId);
-        for (PatientRecordEntry record : records) {
-            output.append("\n").append(record);
+        Columns columns = snapshot();
+        for (int i = 0; i < columns.count; i++) {
+            output.append("\n").append(new PatientRecordEntry(columns.text(i), columns.epochDays[i]));
         }
         return output.toString();
     }
+
+    private synchronized Columns snapshot() {
+        return new Columns(epochDays, text.view(entryCount), entryCount);
+    }
+
+    private static class Columns {
+        final int[] epochDays;
+        final EntryText.View text;
+        final int count;
+
+        Columns(int[] epochDays, EntryText.View text, int count) {
+            this.epochDays = epochDays;
+            this.text = text;
+            this.count = count;
+        }
+
+        String text(int i) {
+            return text.text(i);
+        }
+
+        void appendEntry(int i, ResponseSink sink) {
+            if (epochDays[i] != PatientRecordEntry.NO_DATE) {
+                sink.append(PatientRecordEntry.formatEpochDay(epochDays[i])).append(":");
+            }
+            sink.append(text(i));
+        }
+    }
 }
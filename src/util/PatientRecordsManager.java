@@ -2,21 +2,75 @@ package util;
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 import entities.*;
 
 public class PatientRecordsManager {
-    private final String filePath = "../Database/records";
-    private HashMap<String, ArrayList<PatientRecords>> records;
-    private PersonRepository personRepository;
+    private static final String DEFAULT_FILE_PATH = "../Database/records";
+
+    private final String filePath;
+    // Divisions whose records this server keeps, or null for all of them
+    private final Set<String> ownedDivisions;
+    // Shared by every connection: readers never lock; creates and deletes are serialized on the manager
+    private final RecordStore records;
+    private final PersonRepository personRepository;
+    private final List<RecordListener> listeners = new CopyOnWriteArrayList<>();
+    private final List<RecordListener> orderedListeners = new CopyOnWriteArrayList<>();
+    private final List<RecordSnapshot> snapshots = new CopyOnWriteArrayList<>();
+    private final RecordVersions versions = new RecordVersions();
 
     public PatientRecordsManager(PersonRepository p) {
+        this(p, DEFAULT_FILE_PATH, null);
+    }
+
+    /**
+     * Manager over the given records file, keeping only records of the owned divisions (null for all).
+     */
+    public PatientRecordsManager(PersonRepository p, String filePath, Set<String> ownedDivisions) {
+        this(p, new MemoryRecordStore(), filePath, ownedDivisions);
+    }
+
+    /**
+     * Manager over the given store. A store that starts out empty is filled from the records file, which for
+     * a store keeping its own files is a one-time import.
+     */
+    public PatientRecordsManager(PersonRepository p, RecordStore store, String filePath, Set<String> ownedDivisions) {
         this.personRepository = p;
-        records = new HashMap<String, ArrayList<PatientRecords>>();
-        readRecords();
+        this.filePath = filePath;
+        this.ownedDivisions = ownedDivisions;
+        this.records = store;
+        if (store.isEmpty()) {
+            readRecords();
+        }
+    }
+
+    public void addListener(RecordListener listener) {
+        listeners.add(listener);
     }
 
-    public void saveRecords() {
+    /**
+     * Adds a listener told of each change while the patient's locks are still held, so it sees the changes
+     * to one patient in the order they were made. It must be quick and must not call back into the manager.
+     */
+    public void addOrderedListener(RecordListener listener) {
+        orderedListeners.add(listener);
+    }
+
+    /**
+     * Opens a snapshot of the records of the divisions, to be closed once its scan is done.
+     */
+    public synchronized RecordSnapshot openSnapshot(List<Division> divisions) {
+        RecordSnapshot snapshot = new RecordSnapshot(this, personRepository, divisions, records.hold());
+        snapshots.add(snapshot);
+        return snapshot;
+    }
+
+    void closeSnapshot(RecordSnapshot snapshot) {
+        snapshots.remove(snapshot);
+    }
+
+    public synchronized void saveRecords() {
         File recordFile = new File(filePath);
     
         // Attempt to create the file if it doesn't exist
@@ -35,34 +89,158 @@ public class PatientRecordsManager {
     
         // try-with-resources to ensure PrintWriter is closed properly
         try (PrintWriter writer = new PrintWriter(recordFile)) {
-            for (Map.Entry<String, ArrayList<PatientRecords>> entry : records.entrySet()) {
-                writer.println(entry.getKey());
-                for (PatientRecords record : entry.getValue()) {
-                    writer.println(record);
-                }
-                writer.println("---");
-            }
+            writeRecords(writer);
         } catch (FileNotFoundException e) {
             System.err.println("Record file not found: " + recordFile.getAbsolutePath());
             e.printStackTrace();
         }
     }
 
+    /**
+     * Writes all records in the records file format.
+     */
+    public void writeRecords(PrintWriter writer) {
+        for (Map.Entry<String, List<PatientRecords>> entry : records.entries()) {
+            writePatient(writer, entry.getKey(), entry.getValue());
+        }
+    }
+
+    /**
+     * Writes one patient's block of the records file.
+     */
+    public void writePatient(PrintWriter writer, String patientId, List<PatientRecords> patientRecords) {
+        writer.println(patientId);
+        for (PatientRecords record : patientRecords) {
+            writer.println(record);
+        }
+        writer.println("---");
+    }
+
+    public String getFilePath() {
+        return filePath;
+    }
+
+    public RecordStore getStore() {
+        return records;
+    }
+
+    /**
+     * Loads the records file, parsing chunks of whole patient blocks in parallel. Each chunk goes into the
+     * store as soon as it is parsed, so a store keeping text elsewhere never holds the whole file on the heap.
+     */
     public void readRecords() {
-        try (BufferedReader bufferedReader = new BufferedReader(new FileReader(filePath))) {
-            String line;
-            while ((line = bufferedReader.readLine()) != null) {
-                String patientId = line;
-                ArrayList<PatientRecords> patientRecords = readPatientRecords(bufferedReader, patientId);
-                records.put(patientId, patientRecords);
-            }
+        if (!new File(filePath).exists()) {
+            return;
+        }
+        try {
+            FileChunks.parse(new File(filePath), 0, "---", this::storeOwnedRecords, Integer::sum);
         } catch (IOException e) {
             e.printStackTrace();
         }
     }
 
-    private ArrayList<PatientRecords> readPatientRecords(BufferedReader bufferedReader, String patientId) throws IOException {
-        ArrayList<PatientRecords> temp = new ArrayList<>();
+    private int storeOwnedRecords(BufferedReader bufferedReader) throws IOException {
+        Map<String, List<PatientRecords>> parsed = parseOwnedRecords(bufferedReader);
+        for (Map.Entry<String, List<PatientRecords>> entry : parsed.entrySet()) {
+            records.putRecords(entry.getKey(), entry.getValue());
+        }
+        return parsed.size();
+    }
+
+    private Map<String, List<PatientRecords>> parseOwnedRecords(BufferedReader bufferedReader) throws IOException {
+        Map<String, List<PatientRecords>> parsed = parseRecords(bufferedReader, null);
+        if (ownedDivisions != null) {
+            for (List<PatientRecords> owned : parsed.values()) {
+                owned.removeIf(record -> !ownedDivisions.contains(record.getDivisionId()));
+            }
+            parsed.values().removeIf(List::isEmpty);
+        }
+        return parsed;
+    }
+
+    /**
+     * Parses records in the records file format until end of stream or the terminator line.
+     */
+    private Map<String, List<PatientRecords>> parseRecords(BufferedReader bufferedReader, String terminator) throws IOException {
+        Map<String, List<PatientRecords>> parsed = new HashMap<>();
+        String line;
+        while ((line = bufferedReader.readLine()) != null && !line.equals(terminator)) {
+            String patientId = IdDictionary.canonical(line);
+            List<PatientRecords> patientRecords = readPatientRecords(bufferedReader, patientId);
+            parsed.put(patientId, patientRecords);
+        }
+        return parsed;
+    }
+
+    /**
+     * Replaces every record with the ones read from the stream, e.g. a snapshot sent by a primary server.
+     */
+    public synchronized void replaceAll(BufferedReader bufferedReader, String terminator) throws IOException {
+        Map<String, List<PatientRecords>> parsed = parseRecords(bufferedReader, terminator);
+        List<String> patientIds = new ArrayList<>();
+        for (Map.Entry<String, List<PatientRecords>> entry : records.entries()) {
+            patientIds.add(entry.getKey());
+        }
+        for (String patientId : patientIds) {
+            deleteRecord(patientId);
+        }
+        for (Map.Entry<String, List<PatientRecords>> entry : parsed.entrySet()) {
+            RecordVersions.Version version = versions.forChange(entry.getKey());
+            synchronized (version) {
+                for (PatientRecords record : records.putRecords(entry.getKey(), entry.getValue())) {
+                    for (RecordListener listener : orderedListeners) {
+                        listener.recordCreated(record);
+                    }
+                    notifyCreated(record);
+                }
+                versions.recordsChanged(version);
+            }
+        }
+    }
+
+    /**
+     * Creates a record without validation, as replayed from another server. Does nothing if it exists.
+     *
+     * @return whether the record was created.
+     */
+    public synchronized boolean applyCreate(String patientId, String doctorId, String nurseId) {
+        Person doctor = personRepository.getPersonFromId(doctorId);
+        if (doctor == null || getRecord(patientId, doctorId) != null) {
+            return false;
+        }
+        createRecord(patientId, doctor, nurseId);
+        return true;
+    }
+
+    /**
+     * Appends an entry replayed from another server, unless the record already has an entry at that index.
+     *
+     * @return whether the entry was appended; false too if the record is missing or lacks earlier entries.
+     */
+    public boolean applyEntry(String patientId, String doctorId, int entryIndex, int epochDay, String entry) {
+        PatientRecords record = getRecord(patientId, doctorId);
+        if (record != null && record.getEntryCount() == entryIndex) {
+            addEntry(record, entry, epochDay);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Deletes a patient's records as replayed from another server.
+     *
+     * @return whether the patient had any records.
+     */
+    public synchronized boolean applyDelete(String patientId) {
+        if (records.getRecords(patientId) == null) {
+            return false;
+        }
+        deleteRecord(patientId);
+        return true;
+    }
+
+    private List<PatientRecords> readPatientRecords(BufferedReader bufferedReader, String patientId) throws IOException {
+        List<PatientRecords> temp = new ArrayList<>();
         String line;
         while (!(line = bufferedReader.readLine()).equals("---")) {
             if (line.startsWith("Doctor")) {
@@ -71,7 +249,7 @@ public class PatientRecordsManager {
                 addRecordToLatestRecord(temp, line);
             }
         }
-        return temp;
+        return new CopyOnWriteArrayList<>(temp);
     }
 
     private PatientRecords parseRecordEntry(String line, String patientId) {
@@ -82,7 +260,7 @@ public class PatientRecordsManager {
         return new PatientRecords(patientId, doctorId, nurseId, division);
     }
 
-    private void addRecordToLatestRecord(ArrayList<PatientRecords> records, String line) {
+    private void addRecordToLatestRecord(List<PatientRecords> records, String line) {
         String[] parts = line.split(":", 2);
         if (!records.isEmpty()) {
             records.get(records.size() - 1).addRecord(new PatientRecordEntry(parts[1], parts[0]));
@@ -90,7 +268,7 @@ public class PatientRecordsManager {
     }
 
     public PatientRecords getRecord(String patientId, String doctorOrNurseId) {
-        ArrayList<PatientRecords> patientRecords = records.get(patientId);
+        List<PatientRecords> patientRecords = records.getRecords(patientId);
         if (patientRecords == null) {
             return null;  // No records for the given patient ID
         }
@@ -108,61 +286,219 @@ public class PatientRecordsManager {
     }
 
 
-    public ArrayList<PatientRecords> getRecords(String patientId) {
-        if (records.containsKey(patientId)) {
-            return records.get(patientId);
+    public List<PatientRecords> getRecords(String patientId) {
+        return records.getRecords(patientId);
+    }
+
+    /**
+     * The patient's records and their version, compared with the version token the client has, if any.
+     * The records and entry counts are read together under the patient's version, so no change is half seen.
+     */
+    public VersionedRecords getRecordsSince(String patientId, String sinceToken) {
+        // A token of an earlier start, another server or none at all gets the full records
+        long since = sinceToken == null ? -1 : versions.parse(sinceToken);
+        RecordVersions.Version version = versions.get(patientId);
+        if (version == null) {
+            VersionedRecords unchanged = readVersioned(patientId, since, versions.getStartVersion(),
+                                                       versions.getStartVersion());
+            // Still unchanged: a change makes the patient's version before it touches the records
+            if (versions.get(patientId) == null) {
+                return unchanged;
+            }
+            version = versions.get(patientId);
+        }
+        synchronized (version) {
+            return readVersioned(patientId, since, version.current, version.recordsChanged);
         }
-        return null;
     }
 
-    public ArrayList<Patient> getPatientsForPerson(Person person) {
-        ArrayList<Patient> patients = new ArrayList<>();
+    private VersionedRecords readVersioned(String patientId, long since, long current, long recordsChanged) {
+        List<PatientRecords> patientRecords = records.getRecords(patientId);
+        List<PatientRecords> captured = patientRecords == null ? Collections.emptyList() : new ArrayList<>(patientRecords);
+        VersionedRecords.Change change;
+        if (since == current) {
+            change = VersionedRecords.Change.NOT_MODIFIED;
+        } else if (since >= recordsChanged && since < current) {
+            change = VersionedRecords.Change.ADDED;
+        } else {
+            change = VersionedRecords.Change.FULL;
+        }
+        int[] firstEntries = new int[captured.size()];
+        int[] entryCounts = new int[captured.size()];
+        for (int i = 0; i < captured.size(); i++) {
+            PatientRecords record = captured.get(i);
+            synchronized (record) {
+                entryCounts[i] = record.getEntryCount();
+                firstEntries[i] = change == VersionedRecords.Change.ADDED ? record.firstEntryAfter(since) : 0;
+            }
+        }
+        return new VersionedRecords(versions.token(current), change, captured, firstEntries, entryCounts);
+    }
 
-        for (ArrayList<PatientRecords> recordList : records.values()) {
-            addPatientsForPerson(person, recordList, patients);
+    /**
+     * Every patient id with its records; the iteration is weakly consistent with concurrent changes.
+     */
+    public Set<Map.Entry<String, List<PatientRecords>>> getRecordEntries() {
+        return records.entries();
+    }
+
+    /**
+     * Visits every patient's records; the iteration is weakly consistent with concurrent changes.
+     */
+    public Collection<List<PatientRecords>> getAllRecords() {
+        List<List<PatientRecords>> all = new ArrayList<>();
+        for (Map.Entry<String, List<PatientRecords>> entry : records.entries()) {
+            all.add(entry.getValue());
         }
+        return all;
+    }
 
-        return patients;
+    public void addEntry(PatientRecords record, String entry, int epochDay) {
+        int entryIndex;
+        RecordVersions.Version version = versions.forChange(record.getPatientId());
+        // Open snapshots learn of the entry together with the append, so none of them can see it uncounted
+        synchronized (version) {
+            synchronized (record) {
+                records.appendEntry(record, entry, epochDay);
+                entryIndex = record.getEntryCount() - 1;
+                record.setEntryVersion(entryIndex, versions.entryAdded(version));
+                for (RecordSnapshot snapshot : snapshots) {
+                    snapshot.entryAdded(record, entryIndex);
+                }
+                for (RecordListener listener : orderedListeners) {
+                    listener.entryAdded(record, entryIndex);
+                }
+            }
+        }
+        for (RecordListener listener : listeners) {
+            listener.entryAdded(record, entryIndex);
+        }
     }
 
-    private void addPatientsForPerson(Person person, ArrayList<PatientRecords> recordList, ArrayList<Patient> patients) {
-        for (PatientRecords record : recordList) {
-            if (record.isNurseOrDoctor(person)) {
-                patients.add(getPatientById(record.getPatientId()));
+    /**
+     * Appends a run of entries to one record with a single hold of its locks, as a bulk import does.
+     */
+    void addEntries(PatientRecords record, List<String> entries, int[] epochDays) {
+        int firstIndex;
+        RecordVersions.Version version = versions.forChange(record.getPatientId());
+        synchronized (version) {
+            synchronized (record) {
+                firstIndex = record.getEntryCount();
+                for (int i = 0; i < entries.size(); i++) {
+                    records.appendEntry(record, entries.get(i), epochDays[i]);
+                    record.setEntryVersion(firstIndex + i, versions.entryAdded(version));
+                    for (RecordSnapshot snapshot : snapshots) {
+                        snapshot.entryAdded(record, firstIndex + i);
+                    }
+                    for (RecordListener listener : orderedListeners) {
+                        listener.entryAdded(record, firstIndex + i);
+                    }
+                }
+            }
+        }
+        for (int i = 0; i < entries.size(); i++) {
+            for (RecordListener listener : listeners) {
+                listener.entryAdded(record, firstIndex + i);
             }
         }
     }
 
+    public ArrayList<Patient> getPatientsForPerson(Person person) {
+        ArrayList<Patient> patients = new ArrayList<>();
+
+        for (PatientRecords record : records.getRecordsForStaff(person.getId())) {
+            patients.add(getPatientById(record.getPatientId()));
+        }
+
+        return patients;
+    }
+
     private Patient getPatientById(String patientId) {
         return (Patient) personRepository.getPersonFromId(patientId);
     }
 
-    public void deleteRecord(String patientId) {
-        records.remove(patientId);
+    public synchronized void deleteRecord(String patientId) {
+        List<PatientRecords> removed;
+        RecordVersions.Version version = versions.forChange(patientId);
+        synchronized (version) {
+            removed = records.deleteRecords(patientId);
+            if (removed != null) {
+                versions.recordsChanged(version);
+                for (RecordListener listener : orderedListeners) {
+                    listener.recordsDeleted(patientId, removed);
+                }
+            }
+        }
+        if (removed != null) {
+            for (RecordSnapshot snapshot : snapshots) {
+                snapshot.recordsDeleted(patientId, removed);
+            }
+            for (RecordListener listener : listeners) {
+                listener.recordsDeleted(patientId, removed);
+            }
+        }
     }
 
-    public boolean addRecord(String patientId, Doctor doctor, String nurseId) {
-        PatientRecords newRecord = createRecord(patientId, doctor, nurseId);
-    
+    public synchronized boolean addRecord(String patientId, Doctor doctor, String nurseId) {
         if (!isValidRecord(patientId, nurseId, doctor)) {
             return false;
         }
     
-        if (!records.containsKey(patientId)) {
-            records.put(patientId, initializeRecordList(newRecord));
-            return true;
-        }
-    
         if (getRecord(patientId, doctor.getId()) == null) {
-            records.get(patientId).add(newRecord);
+            createRecord(patientId, doctor, nurseId);
             return true;
         }
     
         return false;
     }
-    
-    private PatientRecords createRecord(String patientId, Doctor doctor, String nurseId) {
-        return new PatientRecords(patientId, doctor.getId(), nurseId, doctor.getDivision());
+
+    /**
+     * Finds or creates the record of each row of a bulk import, all under one hold of the manager's lock. A
+     * row whose patient already has a record with the doctor but another nurse is rejected instead.
+     */
+    synchronized void createRecords(List<BulkImporter.RecordRow> rows) {
+        for (BulkImporter.RecordRow row : rows) {
+            PatientRecords existing = getRecord(row.patientId, row.doctor.getId());
+            if (existing == null) {
+                row.record = createRecord(row.patientId, row.doctor, row.nurseId);
+                row.created = true;
+            } else if (existing.getNurseId().equals(row.nurseId)) {
+                row.record = existing;
+            } else {
+                row.reject("patient already has a record with doctor " + row.doctor.getId()
+                           + " and nurse " + existing.getNurseId());
+            }
+        }
+    }
+
+    /**
+     * Whether this server keeps the records of the division.
+     */
+    public boolean keepsDivision(String divisionId) {
+        return ownedDivisions == null || ownedDivisions.contains(divisionId);
+    }
+
+    private PatientRecords createRecord(String patientId, Person doctor, String nurseId) {
+        PatientRecords created;
+        RecordVersions.Version version = versions.forChange(patientId);
+        synchronized (version) {
+            created = records.createRecord(patientId, doctor.getId(), nurseId, doctor.getDivision());
+            versions.recordsChanged(version);
+            for (RecordListener listener : orderedListeners) {
+                listener.recordCreated(created);
+            }
+        }
+        notifyCreated(created);
+        return created;
+    }
+
+    private void notifyCreated(PatientRecords record) {
+        for (RecordSnapshot snapshot : snapshots) {
+            snapshot.recordCreated(record);
+        }
+        for (RecordListener listener : listeners) {
+            listener.recordCreated(record);
+        }
     }
     
     private boolean isValidRecord(String patientId, String nurseId, Doctor doctor) {
@@ -177,10 +513,4 @@ public class PatientRecordsManager {
         return patient.getDivision().equals(division) && nurse.getDivision().equals(division);
     }
     
-    private ArrayList<PatientRecords> initializeRecordList(PatientRecords newRecord) {
-        ArrayList<PatientRecords> recordList = new ArrayList<>();
-        recordList.add(newRecord);
-        return recordList;
-    }
-    
 }
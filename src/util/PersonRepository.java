@@ -2,18 +2,30 @@ package util;
 
 import java.math.BigInteger;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 import entities.*;
 
 import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
 import java.io.FileReader;
 import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 
 public class PersonRepository {
     private static final String DEFAULT_FILE_PATH = "../Database/ClientInfo";
     
     private final String filePath;
+    // Read by every connection while a bulk import may be adding to them
     private final Map<BigInteger, Person> persons;
+    private final Map<String, Person> personsById;
     private final List<Division> divisions;
 
     public PersonRepository() {
@@ -22,8 +34,9 @@ public class PersonRepository {
 
     public PersonRepository(String filePath) {
         this.filePath = filePath;
-        this.persons = new HashMap<>();
-        this.divisions = new ArrayList<>();
+        this.persons = new ConcurrentHashMap<>();
+        this.personsById = new ConcurrentHashMap<>();
+        this.divisions = new CopyOnWriteArrayList<>();
         readFile();
     }
 
@@ -32,18 +45,17 @@ public class PersonRepository {
     }
 
     public Person getPersonFromId(String id) {
-        for (Person person : persons.values()) {
-            if (person.getId().equals(id)) {
-                return person;
-            }
-        }
-        return null;
+        return personsById.get(id);
     }
 
     public Set<Map.Entry<BigInteger, Person>> getPersons() {
         return persons.entrySet();
     }
 
+    public List<Division> getDivisions() {
+        return Collections.unmodifiableList(divisions);
+    }
+
     public Division getDivisionFromId(String id) {
         for (Division division : divisions) {
             if (division.getId().equals(id)) {
@@ -53,13 +65,78 @@ public class PersonRepository {
         return null;
     }
 
+    /**
+     * Adds divisions and writes them to the person file, whose division section is rewritten to a new file
+     * that then replaces it.
+     */
+    public synchronized void addDivisions(List<Division> added) throws IOException {
+        if (added.isEmpty()) {
+            return;
+        }
+        Path path = Paths.get(filePath);
+        Path temp = path.resolveSibling(path.getFileName() + ".tmp");
+        try (BufferedReader reader = Files.newBufferedReader(path, Charset.defaultCharset());
+             BufferedWriter writer = Files.newBufferedWriter(temp, Charset.defaultCharset())) {
+            String line;
+            boolean inDivisions = true;
+            while ((line = reader.readLine()) != null) {
+                if (inDivisions && line.trim().equals("---")) {
+                    for (Division division : added) {
+                        writer.write(division.getId() + ":" + division.getName());
+                        writer.newLine();
+                    }
+                    inDivisions = false;
+                }
+                writer.write(line);
+                writer.newLine();
+            }
+        }
+        Files.move(temp, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        divisions.addAll(added);
+    }
+
+    /**
+     * Adds persons, given with their lines in the person file format, and appends the lines to the file.
+     * The caller has checked that no serial number or id is taken.
+     */
+    public synchronized void addPersons(Map<BigInteger, Person> added, List<String> lines) throws IOException {
+        if (added.isEmpty()) {
+            return;
+        }
+        Files.write(Paths.get(filePath), lines, Charset.defaultCharset(), StandardOpenOption.APPEND);
+        for (Map.Entry<BigInteger, Person> entry : added.entrySet()) {
+            Person person = entry.getValue();
+            persons.put(entry.getKey(), person);
+            personsById.put(person.getId(), person);
+            if (person instanceof Patient && person.getDivision() != null) {
+                person.getDivision().addMember((Patient) person);
+            }
+        }
+    }
+
     private void readFile() {
-        try (BufferedReader reader = new BufferedReader(new FileReader(filePath))) {
+        File file = new File(filePath);
+        try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
             readDivisions(reader);
-            readPersons(reader);
         } catch (IOException e) {
             System.err.println("Error reading the person information file: " + e.getMessage());
             e.printStackTrace();
+            return;
+        }
+
+        // Persons follow the divisions, one per line, and are parsed in parallel chunks
+        try {
+            long personsStart = FileChunks.offsetAfterLine(file, 0, "---");
+            persons.putAll(FileChunks.parse(file, personsStart, null, this::readPersons, (left, right) -> {
+                left.putAll(right);
+                return left;
+            }));
+        } catch (IOException e) {
+            System.err.println("Error reading the person information file: " + e.getMessage());
+            e.printStackTrace();
+        }
+        for (Person person : persons.values()) {
+            personsById.put(person.getId(), person);
         }
     }
 
@@ -77,7 +154,8 @@ public class PersonRepository {
         }
     }
 
-    private void readPersons(BufferedReader reader) throws IOException {
+    private Map<BigInteger, Person> readPersons(BufferedReader reader) throws IOException {
+        Map<BigInteger, Person> persons = new HashMap<>();
         String line;
         while ((line = reader.readLine()) != null) {
             String[] personInfo = line.split(":");
@@ -111,9 +189,10 @@ public class PersonRepository {
                 System.err.println("Invalid serial number format in line: " + line);
             }
         }
+        return persons;
     }
 
-    private Person createPerson(String type, String name, Division division, String id, String additionalInfo) {
+    Person createPerson(String type, String name, Division division, String id, String additionalInfo) {
         switch (type) {
             case "Nurse":
                 return new Nurse(name, division, id);
@@ -0,0 +1,177 @@
+package util;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Periodically writes changed records to the records file in the background.
+ *
+ * <p>Each checkpoint writes a fresh file and atomically moves it over the old one. Only patients changed
+ * since the last checkpoint are rendered from memory; every other patient's block is copied byte for byte
+ * from the previous file, whose block offsets are remembered. A checkpoint is skipped when nothing changed.
+ */
+public class RecordCheckpointer implements RecordListener {
+    private static final int COPY_BUFFER_SIZE = 64 * 1024;
+
+    private final PatientRecordsManager recordsManager;
+    private final Path recordsFile;
+    private final Set<String> dirty = ConcurrentHashMap.newKeySet();
+    private final ScheduledExecutorService scheduler;
+    // Where each patient's block sits in the file written by the last checkpoint
+    private Map<String, long[]> blocks = new HashMap<>();
+    private long writtenSize = -1;
+    private long writtenModified = -1;
+
+    public RecordCheckpointer(PatientRecordsManager recordsManager) {
+        this.recordsManager = recordsManager;
+        this.recordsFile = Paths.get(recordsManager.getFilePath());
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "record-checkpointer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        recordsManager.addListener(this);
+    }
+
+    public void start(int intervalSeconds) {
+        scheduler.scheduleWithFixedDelay(this::checkpointQuietly, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Stops periodic checkpoints, waiting for one in progress to finish.
+     */
+    public void stop() throws InterruptedException {
+        scheduler.shutdown();
+        scheduler.awaitTermination(1, TimeUnit.MINUTES);
+    }
+
+    public boolean hasChanges() {
+        return !dirty.isEmpty();
+    }
+
+    @Override
+    public void recordCreated(PatientRecords record) {
+        dirty.add(record.getPatientId());
+    }
+
+    @Override
+    public void entryAdded(PatientRecords record, int entryIndex) {
+        dirty.add(record.getPatientId());
+    }
+
+    @Override
+    public void recordsDeleted(String patientId, List<PatientRecords> removed) {
+        dirty.add(patientId);
+    }
+
+    private void checkpointQuietly() {
+        try {
+            checkpoint();
+        } catch (IOException e) {
+            System.err.println("Checkpoint of " + recordsFile + " failed: " + e.getMessage());
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Writes all changes made so far to the records file.
+     *
+     * @return the number of patients rendered from memory, 0 if nothing had changed.
+     */
+    public synchronized int checkpoint() throws IOException {
+        if (dirty.isEmpty()) {
+            return 0;
+        }
+        // The changes this checkpoint writes. They are unmarked before the scan, so a change made during it,
+        // including a delete after the patient's block was written, stays marked for the next checkpoint.
+        Set<String> changedIds = new HashSet<>(dirty);
+        dirty.removeAll(changedIds);
+
+        File current = recordsFile.toFile();
+        if (current.length() != writtenSize || current.lastModified() != writtenModified) {
+            // Someone else wrote the file since our last checkpoint, so the remembered offsets are useless
+            blocks.clear();
+        }
+
+        Path temp = recordsFile.resolveSibling(recordsFile.getFileName() + ".checkpoint");
+        Map<String, long[]> newBlocks = new HashMap<>();
+        ByteArrayOutputStream rendered = new ByteArrayOutputStream();
+        PrintWriter renderer = new PrintWriter(rendered);
+        byte[] copyBuffer = new byte[COPY_BUFFER_SIZE];
+        int renderedPatients = 0;
+        long position = 0;
+
+        try {
+            try (RandomAccessFile previous = current.exists() ? new RandomAccessFile(current, "r") : null;
+                 FileOutputStream fileOut = new FileOutputStream(temp.toFile());
+                 OutputStream out = new BufferedOutputStream(fileOut, COPY_BUFFER_SIZE)) {
+
+                for (Map.Entry<String, List<PatientRecords>> entry : recordsManager.getRecordEntries()) {
+                    String patientId = entry.getKey();
+                    // A patient changed since the scan started is rendered now but stays marked, as a change
+                    // racing with the rendering may be missing from it
+                    boolean changed = changedIds.contains(patientId) || dirty.contains(patientId);
+                    long[] block = blocks.get(patientId);
+                    long length;
+
+                    if (changed || block == null || previous == null) {
+                        rendered.reset();
+                        recordsManager.writePatient(renderer, patientId, entry.getValue());
+                        renderer.flush();
+                        rendered.writeTo(out);
+                        length = rendered.size();
+                        renderedPatients++;
+                    } else {
+                        copy(previous, block[0], block[1], out, copyBuffer);
+                        length = block[1];
+                    }
+                    newBlocks.put(patientId, new long[]{position, length});
+                    position += length;
+                }
+
+                out.flush();
+                fileOut.getFD().sync();
+            }
+            Files.move(temp, recordsFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException | RuntimeException e) {
+            // The file was not replaced, so the next checkpoint has all of these to write
+            dirty.addAll(changedIds);
+            throw e;
+        }
+        blocks = newBlocks;
+        writtenSize = current.length();
+        writtenModified = current.lastModified();
+        return renderedPatients;
+    }
+
+    private static void copy(RandomAccessFile from, long offset, long length, OutputStream to, byte[] buffer)
+            throws IOException {
+        from.seek(offset);
+        long remaining = length;
+        while (remaining > 0) {
+            int chunk = (int) Math.min(buffer.length, remaining);
+            from.readFully(buffer, 0, chunk);
+            to.write(buffer, 0, chunk);
+            remaining -= chunk;
+        }
+    }
+}
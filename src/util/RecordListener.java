@@ -0,0 +1,16 @@
+package util;
+
+import java.util.List;
+
+/**
+ * Notified by {@link PatientRecordsManager} after each change to the records.
+ * Called on the mutating thread, so implementations should hand real work off elsewhere.
+ */
+public interface RecordListener {
+
+    void recordCreated(PatientRecords record);
+
+    void entryAdded(PatientRecords record, int entryIndex);
+
+    void recordsDeleted(String patientId, List<PatientRecords> removed);
+}
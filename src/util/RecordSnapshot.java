@@ -0,0 +1,137 @@
+package util;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import entities.Division;
+import entities.Patient;
+import entities.Person;
+
+/**
+ * The records of some divisions as they were when the snapshot was opened, for long scans such as an export.
+ *
+ * <p>Nothing is copied up front. Patients are visited division by division in id order, and changes made since
+ * the snapshot was opened are undone on the way: records created since are skipped, entries appended since are
+ * cut off by {@link #entryCount}, and the records of a patient deleted before the scan got to them are set aside
+ * until it does. Only what changes during the scan is held, so memory does not grow with the number of records,
+ * and writers only pay for a map update while a snapshot is open.
+ */
+public class RecordSnapshot implements AutoCloseable {
+
+    public interface Visitor {
+        /**
+         * Visits the records of one patient, in the order the patient has them.
+         *
+         * @return false to stop the scan.
+         */
+        boolean visit(String patientId, List<PatientRecords> records);
+    }
+
+    private final PatientRecordsManager recordsManager;
+    private final PersonRepository personRepository;
+    private final List<Division> divisions;
+    // Keeps the store from dropping the text of records deleted during the scan
+    private final RecordStore.Hold hold;
+    private final Set<PatientRecords> created = ConcurrentHashMap.newKeySet();
+    // Entry count when the snapshot was opened, only for records appended to since
+    private final Map<PatientRecords, Integer> entryCounts = new ConcurrentHashMap<>();
+
+    // Guarded by the manager, whose lock every deletion holds
+    private final Map<String, List<PatientRecords>> deleted = new HashMap<>();
+    private final Set<Division> scanned = new HashSet<>();
+    private Division scanning;
+    private String cursor;
+
+    RecordSnapshot(PatientRecordsManager recordsManager, PersonRepository personRepository, List<Division> divisions,
+                   RecordStore.Hold hold) {
+        this.recordsManager = recordsManager;
+        this.personRepository = personRepository;
+        this.divisions = new ArrayList<>(divisions);
+        this.hold = hold;
+    }
+
+    /**
+     * Visits every patient with records in the snapshot's divisions.
+     *
+     * @return false if the visitor stopped the scan.
+     */
+    public boolean scan(Visitor visitor) {
+        for (Division division : divisions) {
+            for (Patient patient : division.getMembers()) {
+                String patientId = patient.getId();
+                List<PatientRecords> records;
+                // Under the manager's lock, so a deletion happens either before this (and is set aside)
+                // or after it (and the live records were already taken)
+                synchronized (recordsManager) {
+                    scanning = division;
+                    cursor = patientId;
+                    records = deleted.remove(patientId);
+                    if (records == null) {
+                        records = recordsManager.getRecords(patientId);
+                    }
+                }
+                if (records == null) {
+                    continue;
+                }
+                List<PatientRecords> visible = new ArrayList<>(records.size());
+                for (PatientRecords record : records) {
+                    if (!created.contains(record)) {
+                        visible.add(record);
+                    }
+                }
+                if (!visible.isEmpty() && !visitor.visit(patientId, visible)) {
+                    return false;
+                }
+            }
+            synchronized (recordsManager) {
+                scanned.add(division);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Number of the record's entries when the snapshot was opened.
+     */
+    public int entryCount(PatientRecords record) {
+        // Read before the cut-off: an append and its cut-off are made under the record's lock together
+        int count = record.getEntryCount();
+        Integer countWhenOpened = entryCounts.get(record);
+        return countWhenOpened == null ? count : countWhenOpened;
+    }
+
+    @Override
+    public void close() {
+        recordsManager.closeSnapshot(this);
+        hold.release();
+    }
+
+    // Called under the manager's lock
+    void recordCreated(PatientRecords record) {
+        created.add(record);
+    }
+
+    // Called under the record's lock, with the index of the entry just appended
+    void entryAdded(PatientRecords record, int entryIndex) {
+        entryCounts.putIfAbsent(record, entryIndex);
+    }
+
+    // Called under the manager's lock
+    void recordsDeleted(String patientId, List<PatientRecords> removed) {
+        Person patient = personRepository.getPersonFromId(patientId);
+        Division division = patient == null ? null : patient.getDivision();
+        if (division == null || !divisions.contains(division) || scanned.contains(division)) {
+            return;
+        }
+        if (division.equals(scanning) && Division.compareIds(patientId, cursor) <= 0) {
+            return;
+        }
+        // A patient deleted, created again and deleted again keeps the records it had when the snapshot was opened
+        deleted.putIfAbsent(patientId, removed);
+    }
+}
@@ -0,0 +1,87 @@
+package util;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import entities.Division;
+
+/**
+ * Keeps patient records for the {@link PatientRecordsManager}, which validates changes and tells listeners
+ * about them. Engines are chosen at server start.
+ *
+ * <p>Reads do not lock, and a patient's list may be iterated while records are added to it. Creates and
+ * deletes are serialized by the manager; appends hold the record's lock.
+ */
+public interface RecordStore extends Closeable {
+
+    enum Engine {
+        FILE,  // records in memory, written to the records file by checkpoints
+        LOG    // entry text in append-only segment files, only an index in memory
+    }
+
+    /**
+     * The patient's records, or null if there are none.
+     */
+    List<PatientRecords> getRecords(String patientId);
+
+    /**
+     * Every record naming the staff member as doctor or nurse.
+     */
+    default List<PatientRecords> getRecordsForStaff(String staffId) {
+        List<PatientRecords> found = new ArrayList<>();
+        for (Map.Entry<String, List<PatientRecords>> entry : entries()) {
+            for (PatientRecords record : entry.getValue()) {
+                if (record.getDoctorId().equals(staffId) || record.getNurseId().equals(staffId)) {
+                    found.add(record);
+                }
+            }
+        }
+        return found;
+    }
+
+    PatientRecords createRecord(String patientId, String doctorId, String nurseId, Division division);
+
+    void appendEntry(PatientRecords record, String entry, int epochDay);
+
+    /**
+     * Removes all of the patient's records and returns them, or null if there were none.
+     */
+    List<PatientRecords> deleteRecords(String patientId);
+
+    /**
+     * Stores records built outside the store for a patient that has none, e.g. records parsed from a records
+     * file, and returns the stored ones.
+     */
+    List<PatientRecords> putRecords(String patientId, List<PatientRecords> records);
+
+    /**
+     * Every patient id with its records; the iteration is weakly consistent with concurrent changes.
+     */
+    Set<Map.Entry<String, List<PatientRecords>>> entries();
+
+    boolean isEmpty();
+
+    /**
+     * Keeps the text of the records there are now readable, even after they are deleted, until the hold is
+     * released. Taken by scans that may still read deleted records, such as a snapshot's.
+     */
+    default Hold hold() {
+        return () -> { };
+    }
+
+    interface Hold {
+        void release();
+    }
+
+    /**
+     * Makes every change so far durable, as far as the engine does by itself.
+     */
+    void flush() throws IOException;
+
+    @Override
+    void close() throws IOException;
+}
@@ -0,0 +1,425 @@
+package util;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SplittableRandom;
+import java.util.TreeMap;
+import java.util.stream.Stream;
+
+import entities.Division;
+import entities.Doctor;
+import entities.Nurse;
+import entities.Patient;
+import entities.Person;
+
+/**
+ * Runs the same script of changes against every record store engine, checks that they all end up with the
+ * same records, and times them.
+ *
+ * <p>Usage: {@code java util.RecordStoreConformance <workDir> [patients] [changes] [seed]}
+ *
+ * <p>A dataset is generated with {@link DatasetGenerator} and loaded into each engine. The script creates
+ * records, appends entries and deletes patients through {@link PatientRecordsManager}, choosing each change with
+ * a seeded random generator from the records as they are, so engines that agree see the same script. Between
+ * phases each engine does its own housekeeping (a checkpoint, or a merge of the log's segments) and is closed and
+ * opened again from its files. A snapshot opened before a phase of deletions and merges must still read the
+ * records as they were. Every phase ends by comparing a digest of all records, rendered in the records file
+ * format in patient id order, across the engines; any difference ends the run with a non-zero exit status.
+ */
+public final class RecordStoreConformance {
+    private static final int LOG_SEGMENT_BYTES = 1 << 20;
+    // Well above the server's default, so the script's deletions leave segments sparse enough to merge
+    private static final double LOG_MERGE_THRESHOLD = 0.9;
+    private static final int READS = 20_000;
+    private static final int FIRST_DAY = 20_000;
+
+    private final Path workDir;
+    private final int changes;
+    private final long seed;
+    private final Map<String, Map<String, String>> digests = new LinkedHashMap<>();
+
+    private RecordStoreConformance(Path workDir, int changes, long seed) {
+        this.workDir = workDir;
+        this.changes = changes;
+        this.seed = seed;
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.err.println("Usage: java util.RecordStoreConformance <workDir> [patients] [changes] [seed]");
+            System.exit(1);
+        }
+        Path workDir = Paths.get(args[0]);
+        long patients = args.length > 1 ? Long.parseLong(args[1]) : 20_000;
+        int changes = args.length > 2 ? Integer.parseInt(args[2]) : 50_000;
+        long seed = args.length > 3 ? Long.parseLong(args[3]) : 1;
+
+        deleteTree(workDir);
+        Path data = workDir.resolve("data");
+        Files.createDirectories(data);
+        DatasetGenerator generator = new DatasetGenerator(patients, seed, 2);
+        generator.writeClientInfo(data.resolve("ClientInfo").toFile());
+        generator.writeRecords(data.resolve("records").toFile());
+
+        RecordStoreConformance conformance = new RecordStoreConformance(workDir, changes, seed);
+        List<Engine> engines = List.of(
+                new FileEngine("FILE", data, false),
+                new FileEngine("FILE+offHeap", data, true),
+                new LogEngine("LOG", data));
+        for (Engine engine : engines) {
+            conformance.run(engine);
+        }
+        System.exit(conformance.report() ? 0 : 1);
+    }
+
+    /**
+     * Runs the script against the engine, keeping its digest after each phase.
+     */
+    private void run(Engine engine) throws IOException {
+        Path dir = workDir.resolve(engine.name.replace('+', '-'));
+        Files.createDirectories(dir);
+        Files.copy(engine.data.resolve("records"), dir.resolve("records"));
+        SplittableRandom random = new SplittableRandom(seed);
+        Timings timings = new Timings(engine.name);
+
+        long started = System.nanoTime();
+        engine.open(dir);
+        timings.add("load", started, 0);
+        phase(engine, "loaded");
+
+        started = System.nanoTime();
+        change(engine, random, changes / 2, 0.1);
+        timings.add("changes", started, changes / 2);
+        reads(engine, random, timings);
+
+        started = System.nanoTime();
+        engine.housekeep();
+        timings.add(engine.housekeeping(), started, 0);
+        phase(engine, "changed");
+        started = System.nanoTime();
+        engine.reopen();
+        timings.add("reopen", started, 0);
+        phase(engine, "reopened");
+
+        // The snapshot must keep reading the records as they were while patients are deleted and merged away
+        String opened = digest(engine.manager);
+        try (RecordSnapshot snapshot = engine.manager.openSnapshot(engine.repository.getDivisions())) {
+            change(engine, random, changes / 4, 0.5);
+            engine.housekeep();
+            engine.housekeep();
+            String scanned = digest(snapshot, engine.manager);
+            record(engine, "snapshot", scanned.equals(opened) ? opened : "differs from its opening: " + scanned);
+        }
+        phase(engine, "deleted");
+
+        change(engine, random, changes / 4, 0.1);
+        engine.housekeep();
+        phase(engine, "changed again");
+        engine.reopen();
+        phase(engine, "reopened again");
+        engine.close();
+        System.out.println(timings);
+    }
+
+    private void phase(Engine engine, String name) {
+        record(engine, name, digest(engine.manager));
+    }
+
+    private void record(Engine engine, String phase, String digest) {
+        digests.computeIfAbsent(phase, key -> new LinkedHashMap<>()).put(engine.name, digest);
+    }
+
+    /**
+     * Prints each phase's digests and whether the engines agree.
+     *
+     * @return whether every phase agreed.
+     */
+    private boolean report() {
+        boolean agreed = true;
+        for (Map.Entry<String, Map<String, String>> phase : digests.entrySet()) {
+            boolean same = phase.getValue().values().stream().distinct().count() == 1;
+            agreed &= same;
+            System.out.printf("%-15s %s%n", phase.getKey(), same ? "OK " + phase.getValue().values().iterator().next()
+                                                                   : "MISMATCH " + phase.getValue());
+        }
+        System.out.println(agreed ? "All engines agree" : "Engines disagree");
+        return agreed;
+    }
+
+    /**
+     * Makes the given number of changes to random patients: a deletion of all their records with the given
+     * chance, else a new record with a doctor and nurse of their division if they have none or one time in ten,
+     * else an entry in one of their records.
+     */
+    private static void change(Engine engine, SplittableRandom random, int count, double deleteChance) {
+        PatientRecordsManager manager = engine.manager;
+        for (int i = 0; i < count; i++) {
+            Patient patient = engine.patients.get(random.nextInt(engine.patients.size()));
+            List<PatientRecords> records = manager.getRecords(patient.getId());
+            double roll = random.nextDouble();
+            if (roll < deleteChance) {
+                manager.deleteRecord(patient.getId());
+            } else if (records == null || roll < deleteChance + 0.1) {
+                String division = patient.getDivision().getId();
+                List<Doctor> doctors = engine.doctors.get(division);
+                List<Nurse> nurses = engine.nurses.get(division);
+                manager.addRecord(patient.getId(), doctors.get(random.nextInt(doctors.size())),
+                                  nurses.get(random.nextInt(nurses.size())).getId());
+            } else {
+                PatientRecords record = records.get(random.nextInt(records.size()));
+                manager.addEntry(record, "change " + i + " by " + record.getDoctorId(), FIRST_DAY + random.nextInt(3650));
+            }
+        }
+    }
+
+    private static void reads(Engine engine, SplittableRandom random, Timings timings) {
+        long[] characters = new long[1];
+        ResponseSink counter = new ResponseSink() {
+            @Override
+            public ResponseSink append(CharSequence part) {
+                characters[0] += part.length();
+                return this;
+            }
+
+            @Override
+            public boolean flushChunk() {
+                return true;
+            }
+        };
+        long started = System.nanoTime();
+        for (int i = 0; i < READS; i++) {
+            List<PatientRecords> records = engine.manager.getRecords(
+                    engine.patients.get(random.nextInt(engine.patients.size())).getId());
+            if (records != null) {
+                for (PatientRecords record : records) {
+                    record.writeTo(counter);
+                }
+            }
+        }
+        timings.add("reads", started, READS);
+    }
+
+    private static String digest(PatientRecordsManager manager) {
+        Map<String, List<PatientRecords>> sorted = new TreeMap<>(Division::compareIds);
+        for (Map.Entry<String, List<PatientRecords>> entry : manager.getRecordEntries()) {
+            sorted.put(entry.getKey(), entry.getValue());
+        }
+        return digest(writer -> {
+            for (Map.Entry<String, List<PatientRecords>> entry : sorted.entrySet()) {
+                manager.writePatient(writer, entry.getKey(), entry.getValue());
+            }
+        });
+    }
+
+    // The snapshot's records cut off at their entry counts when it was opened, like an export reads them
+    private static String digest(RecordSnapshot snapshot, PatientRecordsManager manager) {
+        Map<String, List<PatientRecords>> sorted = new TreeMap<>(Division::compareIds);
+        snapshot.scan((patientId, records) -> {
+            sorted.put(patientId, records);
+            return true;
+        });
+        return digest(writer -> {
+            for (Map.Entry<String, List<PatientRecords>> entry : sorted.entrySet()) {
+                writer.println(entry.getKey());
+                for (PatientRecords record : entry.getValue()) {
+                    writer.println("Doctor=" + record.getDoctorId() + ",Nurse=" + record.getNurseId());
+                    for (int i = 0; i < snapshot.entryCount(record); i++) {
+                        writer.println(record.getEntry(i));
+                    }
+                }
+                writer.println("---");
+            }
+        });
+    }
+
+    private interface Rendering {
+        void writeTo(PrintWriter writer);
+    }
+
+    private static String digest(Rendering rendering) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        OutputStream nowhere = OutputStream.nullOutputStream();
+        try (PrintWriter writer = new PrintWriter(new DigestOutputStream(nowhere, digest), false, StandardCharsets.UTF_8)) {
+            rendering.writeTo(writer);
+        }
+        return String.format("%064x", new BigInteger(1, digest.digest())).substring(0, 16);
+    }
+
+    private static void deleteTree(Path root) throws IOException {
+        if (!Files.exists(root)) {
+            return;
+        }
+        try (Stream<Path> paths = Files.walk(root)) {
+            for (Path path : (Iterable<Path>) paths.sorted(Comparator.reverseOrder())::iterator) {
+                Files.delete(path);
+            }
+        }
+    }
+
+    /**
+     * How long each step took, with its rate where it has a count.
+     */
+    private static class Timings {
+        private final String engine;
+        private final StringBuilder steps = new StringBuilder();
+
+        Timings(String engine) {
+            this.engine = engine;
+        }
+
+        void add(String step, long startedNanos, int count) {
+            long millis = Math.max(1, (System.nanoTime() - startedNanos) / 1_000_000);
+            steps.append(steps.length() == 0 ? "" : ", ").append(step).append(' ').append(millis).append(" ms");
+            if (count > 0) {
+                steps.append(" (").append(count * 1000L / millis).append("/s)");
+            }
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%-13s %s", engine, steps);
+        }
+    }
+
+    /**
+     * One engine under test, with the persons it was loaded with.
+     */
+    private abstract static class Engine {
+        final String name;
+        final Path data;
+        final List<Patient> patients = new ArrayList<>();
+        final Map<String, List<Doctor>> doctors = new HashMap<>();
+        final Map<String, List<Nurse>> nurses = new HashMap<>();
+        PersonRepository repository;
+        PatientRecordsManager manager;
+        Path dir;
+
+        Engine(String name, Path data) {
+            this.name = name;
+            this.data = data;
+        }
+
+        void open(Path dir) throws IOException {
+            this.dir = dir;
+            repository = new PersonRepository(data.resolve("ClientInfo").toString());
+            patients.clear();
+            doctors.clear();
+            nurses.clear();
+            for (Map.Entry<BigInteger, Person> entry : repository.getPersons()) {
+                Person person = entry.getValue();
+                if (person instanceof Patient) {
+                    patients.add((Patient) person);
+                } else if (person instanceof Doctor) {
+                    doctors.computeIfAbsent(person.getDivision().getId(), id -> new ArrayList<>()).add((Doctor) person);
+                } else if (person instanceof Nurse) {
+                    nurses.computeIfAbsent(person.getDivision().getId(), id -> new ArrayList<>()).add((Nurse) person);
+                }
+            }
+            // The repository's order is not fixed, the script's must be
+            patients.sort((first, second) -> Division.compareIds(first.getId(), second.getId()));
+            manager = new PatientRecordsManager(repository, openStore(), dir.resolve("records").toString(), null);
+        }
+
+        abstract RecordStore openStore() throws IOException;
+
+        abstract String housekeeping();
+
+        abstract void housekeep() throws IOException;
+
+        /**
+         * Closes the engine and opens it again from what it keeps on disk.
+         */
+        void reopen() throws IOException {
+            close();
+            open(dir);
+        }
+
+        abstract void close() throws IOException;
+    }
+
+    private static class FileEngine extends Engine {
+        private final boolean offHeap;
+        private RecordCheckpointer checkpointer;
+
+        FileEngine(String name, Path data, boolean offHeap) {
+            super(name, data);
+            this.offHeap = offHeap;
+        }
+
+        @Override
+        RecordStore openStore() {
+            return new MemoryRecordStore(offHeap ? new TextArena() : null);
+        }
+
+        @Override
+        void open(Path dir) throws IOException {
+            super.open(dir);
+            checkpointer = new RecordCheckpointer(manager);
+        }
+
+        @Override
+        String housekeeping() {
+            return "checkpoint";
+        }
+
+        @Override
+        void housekeep() throws IOException {
+            checkpointer.checkpoint();
+        }
+
+        @Override
+        void close() throws IOException {
+            // As the server does at shutdown, since the store itself keeps nothing on disk
+            checkpointer.checkpoint();
+            manager.getStore().close();
+        }
+    }
+
+    private static class LogEngine extends Engine {
+        LogEngine(String name, Path data) {
+            super(name, data);
+        }
+
+        @Override
+        RecordStore openStore() throws IOException {
+            return new LogRecordStore(dir.resolve("log"), LOG_SEGMENT_BYTES, LOG_MERGE_THRESHOLD, 0, repository);
+        }
+
+        @Override
+        String housekeeping() {
+            return "merge";
+        }
+
+        @Override
+        void housekeep() throws IOException {
+            LogRecordStore store = (LogRecordStore) manager.getStore();
+            store.flush();
+            store.merge();
+        }
+
+        @Override
+        void close() throws IOException {
+            manager.getStore().close();
+        }
+    }
+}
@@ -0,0 +1,98 @@
+package util;
+
+import java.security.SecureRandom;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Versions of the patients' record sets. Every change takes the next value of one clock, so a patient's
+ * version only grows. The clock starts at 0 on every start, so clients get versions as tokens that also name
+ * the epoch, an id drawn at random at start-up: "&lt;epoch&gt;:&lt;version&gt;". A token from before a restart,
+ * or from another server, names another epoch and is never taken for a version of this one, whatever the
+ * clocks did in between. Patients unchanged since start-up are at the start version and have no entry.
+ *
+ * <p>A patient's changes and consistent reads of its records hold its {@link Version}'s lock, taken before any
+ * record's lock.
+ */
+class RecordVersions {
+    private static final char EPOCH_SEPARATOR = ':';
+
+    private final String epoch;
+    private final long startVersion = 0;
+    private final AtomicLong clock = new AtomicLong(startVersion);
+    private final ConcurrentHashMap<String, Version> versions = new ConcurrentHashMap<>();
+
+    RecordVersions() {
+        this.epoch = Long.toString(new SecureRandom().nextLong() & Long.MAX_VALUE, Character.MAX_RADIX);
+    }
+
+    long getStartVersion() {
+        return startVersion;
+    }
+
+    /**
+     * The token a client is given for a version of this epoch.
+     */
+    String token(long version) {
+        return epoch + EPOCH_SEPARATOR + version;
+    }
+
+    /**
+     * The version a client's token stands for, or -1 if it is not a token of this epoch.
+     */
+    long parse(String token) {
+        int separator = token.lastIndexOf(EPOCH_SEPARATOR);
+        if (separator < 0 || !token.regionMatches(0, epoch, 0, separator) || separator != epoch.length()) {
+            return -1;
+        }
+        try {
+            long version = Long.parseLong(token.substring(separator + 1));
+            return version >= startVersion && version <= clock.get() ? version : -1;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * The patient's version, or null while the patient is unchanged since start-up.
+     */
+    Version get(String patientId) {
+        return versions.get(patientId);
+    }
+
+    /**
+     * The patient's version, to be locked around a change.
+     */
+    Version forChange(String patientId) {
+        return versions.computeIfAbsent(IdDictionary.canonical(patientId), id -> new Version(startVersion));
+    }
+
+    /**
+     * Moves the patient past an entry added to one of its records; called under the version's lock.
+     */
+    long entryAdded(Version version) {
+        version.current = clock.incrementAndGet();
+        return version.current;
+    }
+
+    /**
+     * Moves the patient past records created or deleted; called under the version's lock.
+     */
+    long recordsChanged(Version version) {
+        version.current = clock.incrementAndGet();
+        version.recordsChanged = version.current;
+        return version.current;
+    }
+
+    static class Version {
+        // Guarded by this
+        long current;
+        // The last version that created or deleted records, before which no list of entries added is known
+        long recordsChanged;
+
+        Version(long startVersion) {
+            this.current = startVersion;
+            this.recordsChanged = startVersion;
+        }
+    }
+}
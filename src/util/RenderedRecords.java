@@ -0,0 +1,150 @@
+package util;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Records as the read command sends them, kept so a read takes the text from memory rather than from the
+ * store. Entries are only ever appended, so the rendering of a record's first entries stays right for good: a
+ * read of a record that has grown sends the rendering and renders only the entries added since. Renderings
+ * are dropped when their record is deleted, and least recently read first once they take more than the budget.
+ */
+public class RenderedRecords implements RecordListener {
+    private final long budgetBytes;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    // Guarded by itself; sizes count a byte per character, which is how compact strings mostly keep them
+    private final LinkedHashMap<PatientRecords, Rendered> rendered = new LinkedHashMap<>(16, 0.75f, true);
+    private long renderedBytes;
+
+    public RenderedRecords(PatientRecordsManager recordsManager, long budgetBytes) {
+        this.budgetBytes = budgetBytes;
+        recordsManager.addListener(this);
+    }
+
+    private static class Rendered {
+        final int count;
+        final String text;
+
+        Rendered(int count, String text) {
+            this.count = count;
+            this.text = text;
+        }
+    }
+
+    /**
+     * Writes the record with its first {@code count} entries, as {@link PatientRecords#writeTo} does.
+     */
+    public void writeTo(PatientRecords record, int count, ResponseSink sink) {
+        Rendered cached = get(record);
+        if (cached != null && cached.count > count) {
+            // A read as of a version older than the rendering
+            record.writeTo(sink, 0, count);
+            return;
+        }
+        (cached == null ? misses : hits).incrementAndGet();
+        sink.append(render(record, cached, count));
+    }
+
+    /**
+     * Renders the record ahead of its first read, unless its entries are all rendered already.
+     */
+    public void warm(PatientRecords record) {
+        Rendered cached = get(record);
+        int count = record.getEntryCount();
+        if (cached == null || cached.count < count) {
+            render(record, cached, count);
+        }
+    }
+
+    private String render(PatientRecords record, Rendered cached, int count) {
+        if (cached != null && cached.count == count) {
+            return cached.text;
+        }
+        StringBuilder text = new StringBuilder();
+        ResponseSink builder = new ResponseSink() {
+            @Override
+            public ResponseSink append(CharSequence part) {
+                text.append(part);
+                return this;
+            }
+
+            @Override
+            public boolean flushChunk() {
+                return true;
+            }
+        };
+        if (cached == null) {
+            record.writeTo(builder, 0, count);
+        } else {
+            text.append(cached.text);
+            record.appendEntries(builder, cached.count, count);
+        }
+        String result = text.toString();
+        put(record, new Rendered(count, result));
+        return result;
+    }
+
+    private Rendered get(PatientRecords record) {
+        synchronized (rendered) {
+            return rendered.get(record);
+        }
+    }
+
+    private void put(PatientRecords record, Rendered added) {
+        if (added.text.length() > budgetBytes) {
+            return;
+        }
+        synchronized (rendered) {
+            Rendered previous = rendered.get(record);
+            if (previous != null && previous.count >= added.count) {
+                // Another read got further first
+                return;
+            }
+            rendered.put(record, added);
+            renderedBytes += added.text.length() - (previous == null ? 0 : previous.text.length());
+            Iterator<Rendered> eldest = rendered.values().iterator();
+            while (renderedBytes > budgetBytes) {
+                renderedBytes -= eldest.next().text.length();
+                eldest.remove();
+            }
+        }
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getRenderedBytes() {
+        synchronized (rendered) {
+            return renderedBytes;
+        }
+    }
+
+    @Override
+    public void recordCreated(PatientRecords record) {
+    }
+
+    @Override
+    public void entryAdded(PatientRecords record, int entryIndex) {
+        // Renderings of the entries before it stay right; the next read renders this one
+    }
+
+    @Override
+    public void recordsDeleted(String patientId, List<PatientRecords> removed) {
+        synchronized (rendered) {
+            for (PatientRecords record : removed) {
+                Rendered dropped = rendered.remove(record);
+                if (dropped != null) {
+                    renderedBytes -= dropped.text.length();
+                }
+            }
+        }
+    }
+}
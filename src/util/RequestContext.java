@@ -0,0 +1,67 @@
+package util;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Identifies one command from a client, so its audit lines and server log lines can be matched, and collects
+ * where its time went. A command that asks for an entry's text runs in two parts under the same request.
+ */
+public class RequestContext {
+    private final long connectionId;
+    private final long requestId;
+    private final String command;
+    private long queueNanos;
+    private long handlerNanos;
+    private long writeNanos;
+
+    public RequestContext(long connectionId, long requestId, String command) {
+        this.connectionId = connectionId;
+        this.requestId = requestId;
+        this.command = command;
+    }
+
+    public long getConnectionId() {
+        return connectionId;
+    }
+
+    public long getRequestId() {
+        return requestId;
+    }
+
+    public String getCommand() {
+        return command;
+    }
+
+    public void addQueueNanos(long nanos) {
+        queueNanos += nanos;
+    }
+
+    public void addHandlerNanos(long nanos) {
+        handlerNanos += nanos;
+    }
+
+    public void addWriteNanos(long nanos) {
+        writeNanos += nanos;
+    }
+
+    public long getTotalMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(queueNanos + handlerNanos + writeNanos);
+    }
+
+    /**
+     * The durations spent waiting for a worker, handling the command and writing its response.
+     */
+    public String timings() {
+        return "queue=" + millis(queueNanos) + "ms handler=" + millis(handlerNanos)
+                + "ms write=" + millis(writeNanos) + "ms";
+    }
+
+    private static String millis(long nanos) {
+        return String.format("%.1f", nanos / 1_000_000.0);
+    }
+
+    @Override
+    public String toString() {
+        return "conn=" + connectionId + " req=" + requestId;
+    }
+}
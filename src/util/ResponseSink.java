@@ -0,0 +1,16 @@
+package util;
+
+/**
+ * Destination for a response that may be sent to the client in several chunks.
+ */
+public interface ResponseSink {
+
+    ResponseSink append(CharSequence text);
+
+    /**
+     * Sends everything appended so far to the client.
+     *
+     * @return false if the client is gone and the caller should stop producing output.
+     */
+    boolean flushChunk();
+}
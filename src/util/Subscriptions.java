@@ -0,0 +1,11 @@
+package util;
+
+/**
+ * A connection's subscriptions to new entries of patients' records, kept by the server that owns the connection.
+ */
+public interface Subscriptions {
+
+    void subscribe(String patientId);
+
+    void unsubscribe(String patientId);
+}
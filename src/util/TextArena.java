@@ -0,0 +1,42 @@
+package util;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Space for entry text outside the Java heap, handed out from large direct buffers that many records share.
+ *
+ * <p>Text is only ever appended, and nothing is freed explicitly: a chunk's memory is returned once no
+ * record and no response being rendered refers to it any more, like the heap arrays it replaces. A deleted
+ * record's text therefore stays until the other entries in its chunks are gone too.
+ */
+public class TextArena {
+    private static final int CHUNK_BYTES = 1 << 20;
+
+    private ByteBuffer current;  // guarded by this
+
+    /**
+     * Copies the text into the arena and records where it went at {@code index} of the two arrays.
+     */
+    void store(byte[] utf8, ByteBuffer[] chunks, int[] offsets, int index) {
+        ByteBuffer chunk;
+        int offset;
+        synchronized (this) {
+            if (utf8.length > CHUNK_BYTES / 4) {
+                // Large text gets a buffer of its own rather than wasting the rest of a chunk
+                chunk = ByteBuffer.allocateDirect(utf8.length);
+                offset = 0;
+            } else {
+                if (current == null || current.remaining() < utf8.length) {
+                    current = ByteBuffer.allocateDirect(CHUNK_BYTES);
+                }
+                chunk = current;
+                offset = current.position();
+                current.position(offset + utf8.length);
+            }
+        }
+        // The reserved range is this caller's alone, and absolute puts do not move the buffer's position
+        chunk.put(offset, utf8);
+        chunks[index] = chunk;
+        offsets[index] = offset;
+    }
+}
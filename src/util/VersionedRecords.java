@@ -0,0 +1,75 @@
+package util;
+
+import java.util.List;
+
+/**
+ * A patient's records as of one version, compared to the version a client already has. Entries added after
+ * the read are left out, so the records always match the version.
+ */
+public class VersionedRecords {
+
+    public enum Change {
+        NOT_MODIFIED,  // the client has this version
+        ADDED,         // the client's version has the same records, each record lists only its new entries
+        FULL           // the client's version is unknown, too old or has other records
+    }
+
+    private final String version;
+    private final Change change;
+    private final List<PatientRecords> records;
+    // Per record, the first entry to send and the number of entries as of the version
+    private final int[] firstEntries;
+    private final int[] entryCounts;
+
+    VersionedRecords(String version, Change change, List<PatientRecords> records, int[] firstEntries, int[] entryCounts) {
+        this.version = version;
+        this.change = change;
+        this.records = records;
+        this.firstEntries = firstEntries;
+        this.entryCounts = entryCounts;
+    }
+
+    /**
+     * The version as the token clients send back.
+     */
+    public String getVersion() {
+        return version;
+    }
+
+    public Change getChange() {
+        return change;
+    }
+
+    /**
+     * The records as of the version; empty if the patient has none.
+     */
+    public List<PatientRecords> getRecords() {
+        return records;
+    }
+
+    /**
+     * Writes the record as {@link PatientRecords#writeTo} does, but only the entries the client lacks.
+     *
+     * @return false if nothing was written: the client has all of the record, or it is not one of these.
+     */
+    public boolean writeRecord(PatientRecords record, ResponseSink sink) {
+        return writeRecord(record, null, sink);
+    }
+
+    /**
+     * Writes the record as {@link #writeRecord(PatientRecords, ResponseSink)} does, taking a whole record from
+     * the rendered ones, if given, rather than from the store.
+     */
+    public boolean writeRecord(PatientRecords record, RenderedRecords rendered, ResponseSink sink) {
+        int i = records.indexOf(record);
+        if (i < 0 || change == Change.NOT_MODIFIED || firstEntries[i] == entryCounts[i] && change == Change.ADDED) {
+            return false;
+        }
+        if (rendered != null && firstEntries[i] == 0) {
+            rendered.writeTo(record, entryCounts[i], sink);
+        } else {
+            record.writeTo(sink, firstEntries[i], entryCounts[i]);
+        }
+        return true;
+    }
+}